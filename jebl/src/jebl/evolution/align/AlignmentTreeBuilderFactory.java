@@ -1,6 +1,7 @@
 package jebl.evolution.align;
 
 import jebl.evolution.alignments.Alignment;
+import jebl.evolution.alignments.Patterns;
 import jebl.evolution.distances.*;
 import jebl.evolution.graphs.Node;
 import jebl.evolution.sequences.Sequence;
@@ -65,7 +66,7 @@ public class AlignmentTreeBuilderFactory {
     }
 
     /**
-     * @param alignment Alignment to calculate distance matrix from
+     * @param patterns Alignment (or site patterns, e.g. a bootstrap replicate) to calculate distance matrix from
      * @param method the tree building method to use
      * @param model substitution model for distance matrix: JukesCantor, TamuraNei, HKY or F84.
      * @param progressListener must not be null. If you are not interested in progress, pass in ProgressListener.EMPTY
@@ -75,38 +76,49 @@ public class AlignmentTreeBuilderFactory {
      * @return A tree building result (containing a tree and a distance matrix) or possibly null if progressListener.isCanceled()
      * @throws CannotBuildDistanceMatrixException only if useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable is false
      */
-    static public Result build(final Alignment alignment, TreeBuilderFactory.Method method, final TreeBuilderFactory.DistanceModel model, ProgressListener progressListener, final boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
+    static public Result build(final Patterns patterns, TreeBuilderFactory.Method method, final TreeBuilderFactory.DistanceModel model, ProgressListener progressListener, final boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
             throws CannotBuildDistanceMatrixException
     {
         DistanceMatrixBuilder matrixBuilder = new DistanceMatrixBuilder() {
             public DistanceMatrix buildDistanceMatrix(final ProgressListener progressListener) throws CannotBuildDistanceMatrixException {
-                switch( model ) {
-                    case F84:
-                        return new F84DistanceMatrix(alignment, progressListener);
-                    case HKY:
-                        return new HKYDistanceMatrix(alignment, progressListener,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable);
-                    case TamuraNei:
-                        return new TamuraNeiDistanceMatrix(alignment, progressListener,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable);
-                    case JukesCantor:
-                    default:
-                        return new JukesCantorDistanceMatrix(alignment, progressListener,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable);
-                }
+                return createDistanceMatrix(patterns, model, progressListener, useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable);
             }
         };
         return build(matrixBuilder, method, progressListener);
     }
 
     /**
-     * @param alignment Alignment to calculate distance matrix from
+     * @return distances between the taxa of patterns under model (JukesCantor, TamuraNei, HKY or F84)
+     * @throws CannotBuildDistanceMatrixException only if useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable is false
+     */
+    static DistanceMatrix createDistanceMatrix(Patterns patterns, TreeBuilderFactory.DistanceModel model, ProgressListener progressListener,
+                                               boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
+            throws CannotBuildDistanceMatrixException
+    {
+        switch( model ) {
+            case F84:
+                return new F84DistanceMatrix(patterns, progressListener);
+            case HKY:
+                return new HKYDistanceMatrix(patterns, progressListener,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable);
+            case TamuraNei:
+                return new TamuraNeiDistanceMatrix(patterns, progressListener,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable);
+            case JukesCantor:
+            default:
+                return new JukesCantorDistanceMatrix(patterns, progressListener,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable);
+        }
+    }
+
+    /**
+     * @param patterns Alignment (or site patterns, e.g. a bootstrap replicate) to calculate distance matrix from
      * @param method the tree building method to use
      * @param model substitution model for distance matrix: JukesCantor, TamuraNei, HKY or F84.
      * @param progressListener must not be null. If you are not interested in progress, pass in ProgressListener.EMPTY
      * @return A tree building result (containing a tree and a distance matrix)  or possibly null if progressListener.isCanceled()
      */
-    static public Result build(final Alignment alignment, TreeBuilderFactory.Method method, final TreeBuilderFactory.DistanceModel model, ProgressListener progressListener)
+    static public Result build(final Patterns patterns, TreeBuilderFactory.Method method, final TreeBuilderFactory.DistanceModel model, ProgressListener progressListener)
             throws CannotBuildDistanceMatrixException
     {
-        return build(alignment,method,model,progressListener,false);
+        return build(patterns,method,model,progressListener,false);
     }
 
     /**
@@ -0,0 +1,253 @@
+package jebl.evolution.align;
+
+import jebl.evolution.alignments.CompressedPatterns;
+import jebl.evolution.alignments.Patterns;
+import jebl.evolution.alignments.ResampledPatterns;
+import jebl.evolution.distances.CannotBuildDistanceMatrixException;
+import jebl.evolution.distances.DistanceMatrix;
+import jebl.evolution.graphs.Graph;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+import jebl.evolution.trees.TreeBuilderFactory;
+import jebl.util.Attributable;
+import jebl.util.CompositeProgressListener;
+import jebl.util.FixedBitSet;
+import jebl.util.ParallelUtils;
+import jebl.util.ProgressListener;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Bootstrap support for the branches of a distance tree.
+ *
+ * Each replicate is drawn as a {@link ResampledPatterns} from its own seed, which is taken in order from a generator
+ * seeded with the seed of the analysis, so the support does not depend on the number of threads. The replicates are
+ * run in batches on a pool of threads. Each replicate tree is reduced to the set of splits of the reference tree it
+ * contains and then discarded, so memory use does not grow with the number of replicates.
+ *
+ * The support of a branch (the percentage of replicate trees containing its split) is stored as the
+ * {@link #SUPPORT_ATTRIBUTE_NAME} attribute of the branch: of the node below it in a rooted tree, and of the
+ * edge in an unrooted tree. Pairs of sequences which do not overlap in a replicate get twice the largest distance.
+ */
+public class BootstrapSupport {
+
+    public static final String SUPPORT_ATTRIBUTE_NAME = "Bootstrap support(%)";
+
+    /**
+     * @param patterns alignment (or its patterns) to resample
+     * @param method   the tree building method to use
+     * @param model    substitution model for distance matrix: JukesCantor, TamuraNei, HKY or F84.
+     */
+    public BootstrapSupport(Patterns patterns, TreeBuilderFactory.Method method, TreeBuilderFactory.DistanceModel model) {
+        this.patterns = patterns;
+        this.method = method;
+        this.model = model;
+    }
+
+    /**
+     * @param replicateCount number of bootstrap replicates. The default is 100.
+     */
+    public void setReplicateCount(int replicateCount) {
+        if( replicateCount < 1 ) {
+            throw new IllegalArgumentException("At least one replicate is required");
+        }
+        this.replicateCount = replicateCount;
+    }
+
+    /**
+     * @param seed seed from which the seeds of the replicates are drawn
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param threadCount number of threads running replicates. Values less than 1 mean one per processor.
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount < 1 ? ParallelUtils.getDefaultThreadCount() : threadCount;
+    }
+
+    /**
+     * Build a tree from all sites, and annotate it with the support of its branches.
+     *
+     * @param progressListener must not be null. If you are not interested in progress, pass in ProgressListener.EMPTY
+     * @return the annotated tree, or null if progressListener.isCanceled()
+     */
+    public Tree build(ProgressListener progressListener) {
+        final CompositeProgressListener progress = new CompositeProgressListener(progressListener, 1.0, replicateCount);
+
+        progress.beginSubtask("Building reference tree");
+        final AlignmentTreeBuilderFactory.Result reference;
+        try {
+            reference = AlignmentTreeBuilderFactory.build(patterns, method, model, progress, true);
+        } catch( CannotBuildDistanceMatrixException e ) {
+            // not thrown when pairs which do not overlap get twice the maximum distance
+            throw new RuntimeException(e);
+        }
+        if( reference == null || progress.isCanceled() ) {
+            return null;
+        }
+
+        progress.beginSubtask("Building bootstrap trees");
+        return annotate(reference.tree, progress);
+    }
+
+    /**
+     * Annotate a tree with the support of its branches.
+     *
+     * @param tree             tree whose taxa are those of the patterns, for example a maximum likelihood tree
+     * @param progressListener must not be null. If you are not interested in progress, pass in ProgressListener.EMPTY
+     * @return tree, or null if progressListener.isCanceled() (in which case the tree is not annotated)
+     */
+    public Tree annotate(Tree tree, ProgressListener progressListener) {
+        final List<Taxon> taxa = patterns.getTaxa();
+        final Map<Taxon, Integer> taxonIndices = new HashMap<Taxon, Integer>();
+        for(int i = 0; i < taxa.size(); ++i) {
+            taxonIndices.put(taxa.get(i), i);
+        }
+
+        // index of each split of the tree, and the branches having it (both branches below the root of a rooted tree)
+        final Map<FixedBitSet, Integer> splitIndices = new HashMap<FixedBitSet, Integer>();
+        final List<List<Attributable>> branches = new ArrayList<List<Attributable>>();
+        for( Map.Entry<FixedBitSet, List<Attributable>> e : getSplits(tree, taxonIndices).entrySet() ) {
+            splitIndices.put(e.getKey(), branches.size());
+            branches.add(e.getValue());
+        }
+
+        final int[] counts = countSplits(splitIndices, taxonIndices, progressListener);
+        if( counts == null ) {
+            return null;
+        }
+
+        for(int s = 0; s < counts.length; ++s) {
+            final double support = (100.0 * counts[s]) / replicateCount;
+            for( Attributable branch : branches.get(s) ) {
+                branch.setAttribute(SUPPORT_ATTRIBUTE_NAME, support);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * @return number of replicate trees containing each split, or null if cancelled
+     */
+    private int[] countSplits(final Map<FixedBitSet, Integer> splitIndices, final Map<Taxon, Integer> taxonIndices,
+                              ProgressListener progress) {
+        final CompressedPatterns source = new CompressedPatterns(patterns);
+        final Random seeds = new Random(seed);
+        final int[] counts = new int[splitIndices.size()];
+
+        final ExecutorService executor = threadCount > 1 ? ParallelUtils.newThreadPool(threadCount) : null;
+        try {
+            final int batchSize = REPLICATES_PER_THREAD * threadCount;
+            for(int start = 0; start < replicateCount; start += batchSize) {
+                final int end = Math.min(start + batchSize, replicateCount);
+                final List<Callable<boolean[]>> tasks = new ArrayList<Callable<boolean[]>>(end - start);
+                for(int r = start; r < end; ++r) {
+                    final long replicateSeed = seeds.nextLong();
+                    tasks.add(new Callable<boolean[]>() {
+                        public boolean[] call() throws CannotBuildDistanceMatrixException {
+                            final ResampledPatterns replicate = ResampledPatterns.bootstrap(source, new Random(replicateSeed));
+                            final DistanceMatrix distances = AlignmentTreeBuilderFactory.createDistanceMatrix(replicate,
+                                    model, ProgressListener.EMPTY, true);
+                            final Tree tree = TreeBuilderFactory.getBuilder(method, distances).build();
+
+                            final boolean[] has = new boolean[counts.length];
+                            for( FixedBitSet split : getSplits(tree, taxonIndices).keySet() ) {
+                                final Integer index = splitIndices.get(split);
+                                if( index != null ) {
+                                    has[index] = true;
+                                }
+                            }
+                            return has;
+                        }
+                    });
+                }
+
+                final List<boolean[]> results = executor != null ?
+                        ParallelUtils.invokeAll(tasks, executor) : ParallelUtils.invokeAll(tasks, 1);
+                for( boolean[] has : results ) {
+                    for(int s = 0; s < has.length; ++s) {
+                        if( has[s] ) {
+                            ++counts[s];
+                        }
+                    }
+                }
+                if( progress.setProgress(end, replicateCount) ) {
+                    return null;
+                }
+            }
+        } finally {
+            if( executor != null ) {
+                executor.shutdownNow();
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return the non trivial splits of the tree, each normalized to exclude the first taxon, and the branches
+     *         inducing each (the nodes below them in a rooted tree, edges otherwise)
+     */
+    private static Map<FixedBitSet, List<Attributable>> getSplits(Tree tree, Map<Taxon, Integer> taxonIndices) {
+        final Map<FixedBitSet, List<Attributable>> splits = new LinkedHashMap<FixedBitSet, List<Attributable>>();
+        final Node start = tree instanceof RootedTree ? ((RootedTree) tree).getRootNode() :
+                tree.getExternalNodes().iterator().next();
+        addSplits(tree, start, null, taxonIndices, splits);
+        return splits;
+    }
+
+    /**
+     * @return set of tips in the subtree of node away from parent
+     */
+    private static FixedBitSet addSplits(Tree tree, Node node, Node parent, Map<Taxon, Integer> taxonIndices,
+                                         Map<FixedBitSet, List<Attributable>> splits) {
+        final int taxonCount = taxonIndices.size();
+        final FixedBitSet tips = new FixedBitSet(taxonCount);
+        if( tree.isExternal(node) ) {
+            final Integer index = taxonIndices.get(tree.getTaxon(node));
+            if( index == null ) {
+                throw new IllegalArgumentException("Taxon " + tree.getTaxon(node) + " is not in the alignment");
+            }
+            tips.set(index);
+        }
+        for( Node n : tree.getAdjacencies(node) ) {
+            if( n != parent ) {
+                tips.union(addSplits(tree, n, node, taxonIndices, splits));
+            }
+        }
+
+        final int size = tips.cardinality();
+        if( parent != null && size > 1 && size < taxonCount - 1 ) {
+            final FixedBitSet split = tips.contains(0) ? FixedBitSet.complement(tips) : tips;
+            List<Attributable> branches = splits.get(split);
+            if( branches == null ) {
+                branches = new ArrayList<Attributable>(1);
+                splits.put(split, branches);
+            }
+            try {
+                branches.add(tree instanceof RootedTree ? node : tree.getEdge(parent, node));
+            } catch( Graph.NoEdgeException e ) {
+                // parent and node are adjacent
+                throw new RuntimeException(e);
+            }
+        }
+        return tips;
+    }
+
+    // replicates in each batch, per thread
+    private static final int REPLICATES_PER_THREAD = 4;
+
+    private final Patterns patterns;
+    private final TreeBuilderFactory.Method method;
+    private final TreeBuilderFactory.DistanceModel model;
+
+    private int replicateCount = 100;
+    private long seed = System.currentTimeMillis();
+    private int threadCount = ParallelUtils.getDefaultThreadCount();
+}
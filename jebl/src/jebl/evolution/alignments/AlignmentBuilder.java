@@ -0,0 +1,76 @@
+package jebl.evolution.alignments;
+
+import jebl.evolution.sequences.Sequence;
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.taxa.Taxon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects sequences (for example from a streaming importer) and builds a {@link CompactAlignment} from them.
+ *
+ * Adding a sequence takes constant time, so unlike adding sequences one at a time to a {@link BasicAlignment}
+ * (which rebuilds its patterns after each), building an alignment of n sequences takes time linear in its size.
+ */
+public class AlignmentBuilder {
+
+    public AlignmentBuilder() {
+    }
+
+    /**
+     * @param sequence sequence to add. Its type must match that of the sequences already added, and its taxon
+     *                 must be new.
+     */
+    public void addSequence(Sequence sequence) {
+        if( sequenceType == null ) {
+            sequenceType = sequence.getSequenceType();
+        }
+        if( sequenceType != sequence.getSequenceType() ) {
+            throw new IllegalArgumentException(
+                    "Type of sequence " + sequence.getTaxon().getName() +
+                            " does not match that of other sequences in the alignment" +
+                            " (data type = " + sequence.getSequenceType().getName() +
+                            ", but expected " + sequenceType.getName() + ").");
+        }
+        if( sequencesByTaxon.containsKey(sequence.getTaxon()) ) {
+            throw new IllegalArgumentException("duplicate sequence name " + sequence.getTaxon());
+        }
+        sequencesByTaxon.put(sequence.getTaxon(), sequence);
+        sequences.add(sequence);
+    }
+
+    /**
+     * @param sequences sequences to add, in order
+     */
+    public void addSequences(Collection<? extends Sequence> sequences) {
+        for( Sequence sequence : sequences ) {
+            addSequence(sequence);
+        }
+    }
+
+    /**
+     * @return number of sequences added
+     */
+    public int getSequenceCount() {
+        return sequences.size();
+    }
+
+    /**
+     * @return an alignment of the sequences added so far, in the order they were added. The builder may be used
+     *         to add more sequences and build again.
+     */
+    public CompactAlignment build() {
+        if( sequences.isEmpty() ) {
+            throw new IllegalStateException("No sequences have been added");
+        }
+        return new CompactAlignment(sequenceType, sequences, new HashMap<Taxon, Sequence>(sequencesByTaxon));
+    }
+
+    private SequenceType sequenceType = null;
+    private final List<Sequence> sequences = new ArrayList<Sequence>();
+    private final Map<Taxon, Sequence> sequencesByTaxon = new HashMap<Taxon, Sequence>();
+}
@@ -38,7 +38,6 @@ public class BasicAlignment implements Alignment {
         for (Sequence sequence : sequences) {
             put(sequence);
         }
-        constructPatterns();
     }
 
     /**
@@ -50,7 +49,6 @@ public class BasicAlignment implements Alignment {
         for (Sequence sequence : sequences) {
             put(sequence);
         }
-        constructPatterns();
     }
 
     /**
@@ -77,18 +75,24 @@ public class BasicAlignment implements Alignment {
 	}
 
 	public int getSiteCount() {
-	    return patterns.size();
+	    return getPatterns().size();
 	}
 
     public int getPatternCount() {
-        return patterns.size();
+        return getPatterns().size();
     }
 
 	public int getPatternLength() {
 		return taxonList.size();
 	}
 
-    public List<Pattern> getPatterns() {
+    /**
+     * @return one pattern per site, built on first use after the sequences change
+     */
+    public synchronized List<Pattern> getPatterns() {
+        if (patterns == null) {
+            constructPatterns();
+        }
         return patterns;
     }
 
@@ -103,9 +107,9 @@ public class BasicAlignment implements Alignment {
 	 * Adds a sequence to this alignment
 	 * @param sequence the new sequence.
 	 */
-	public void addSequence(Sequence sequence) {
+	public synchronized void addSequence(Sequence sequence) {
 	    put(sequence);
-	    constructPatterns();
+	    patterns = null;
 	}
 
     private void put(Sequence sequence) {
@@ -120,7 +124,7 @@ public class BasicAlignment implements Alignment {
                             ", but expected " + sequenceType.getName() + ").");
         }
 
-        if( taxonList.indexOf(sequence.getTaxon()) >= 0 ) {
+        if( sequences.containsKey(sequence.getTaxon()) ) {
            throw new IllegalArgumentException("duplicate sequence name " + sequence.getTaxon());
         }
         
@@ -129,7 +133,7 @@ public class BasicAlignment implements Alignment {
     }
 
     private void constructPatterns() {
-        patterns.clear();
+        patterns = new ArrayList<Pattern>();
 
         int maxLen = 0;
         List<Sequence> sequences = getSequenceList();
@@ -155,7 +159,7 @@ public class BasicAlignment implements Alignment {
     private SequenceType sequenceType = null;
     private List<Taxon> taxonList = new ArrayList<Taxon>();
     private Map<Taxon, Sequence> sequences = new LinkedHashMap<Taxon, Sequence>();
-    private List<Pattern> patterns = new ArrayList<Pattern>();
+    private List<Pattern> patterns = null;
 
     private class BasicPattern implements Pattern {
 
@@ -0,0 +1,197 @@
+package jebl.evolution.alignments;
+
+import jebl.evolution.sequences.Sequence;
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.sequences.State;
+import jebl.evolution.taxa.Taxon;
+
+import java.util.*;
+
+/**
+ * An alignment whose states are held as a matrix of state indices, one byte per site of each sequence.
+ * Built with an {@link AlignmentBuilder}.
+ *
+ * The site patterns are light weight views of the columns of the matrix, created on first use, so building even a
+ * very large alignment takes a single pass over the sequences. As in {@link BasicAlignment}, sequences shorter
+ * than the longest are padded with gaps.
+ */
+public class CompactAlignment implements Alignment {
+
+    CompactAlignment(SequenceType sequenceType, List<Sequence> sequences, Map<Taxon, Sequence> sequencesByTaxon) {
+        this.sequenceType = sequenceType;
+        this.sequences = Collections.unmodifiableList(new ArrayList<Sequence>(sequences));
+        this.sequencesByTaxon = sequencesByTaxon;
+
+        final List<Taxon> taxa = new ArrayList<Taxon>(sequences.size());
+        int maxLength = 0;
+        for( Sequence sequence : sequences ) {
+            taxa.add(sequence.getTaxon());
+            maxLength = Math.max(maxLength, sequence.getLength());
+        }
+        this.taxa = Collections.unmodifiableList(taxa);
+        siteCount = maxLength;
+
+        final byte gap = (byte) sequenceType.getGapState().getIndex();
+        states = new byte[sequences.size()][];
+        for(int i = 0; i < states.length; ++i) {
+            final byte[] indices = sequences.get(i).getStateIndices();
+            if( indices.length == siteCount ) {
+                states[i] = indices;
+            } else {
+                states[i] = new byte[siteCount];
+                System.arraycopy(indices, 0, states[i], 0, indices.length);
+                Arrays.fill(states[i], indices.length, siteCount, gap);
+            }
+        }
+    }
+
+    public Set<Sequence> getSequences() {
+        return new LinkedHashSet<Sequence>(sequences);
+    }
+
+    public List<Sequence> getSequenceList() {
+        return sequences;
+    }
+
+    public Sequence getSequence(Taxon taxon) {
+        return sequencesByTaxon.get(taxon);
+    }
+
+    public SequenceType getSequenceType() {
+        return sequenceType;
+    }
+
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    public int getPatternCount() {
+        return siteCount;
+    }
+
+    public int getPatternLength() {
+        return taxa.size();
+    }
+
+    public List<Taxon> getTaxa() {
+        return taxa;
+    }
+
+    /**
+     * @return one pattern per site, each a view of a column of the alignment
+     */
+    public List<Pattern> getPatterns() {
+        List<Pattern> p = patterns;
+        if( p == null ) {
+            final List<Pattern> columns = new ArrayList<Pattern>(siteCount);
+            for(int site = 0; site < siteCount; ++site) {
+                columns.add(new ColumnPattern(site));
+            }
+            p = Collections.unmodifiableList(columns);
+            patterns = p;
+        }
+        return p;
+    }
+
+    /**
+     * @param sequence index of a sequence (in the order of getTaxa())
+     * @param site     site number
+     * @return index of the state of the sequence at the site
+     */
+    public int getStateIndex(int sequence, int site) {
+        return states[sequence][site];
+    }
+
+    /**
+     * @param sequence index of a sequence (in the order of getTaxa())
+     * @return a copy of the state indices of the sequence, padded with gaps to the length of the alignment
+     */
+    public byte[] getStateIndices(int sequence) {
+        return states[sequence].clone();
+    }
+
+    /**
+     * @return the matrix of state indices, states[sequence][site]. Not copied, so must not be changed.
+     */
+    byte[][] getStateMatrix() {
+        return states;
+    }
+
+    /**
+     * A site pattern reading its states from the column of the matrix.
+     */
+    private class ColumnPattern implements Pattern {
+        ColumnPattern(int site) {
+            this.site = site;
+        }
+
+        public SequenceType getSequenceType() {
+            return sequenceType;
+        }
+
+        public int getLength() {
+            return states.length;
+        }
+
+        public List<Taxon> getTaxa() {
+            return taxa;
+        }
+
+        public State getState(int index) {
+            return sequenceType.getState(states[index][site]);
+        }
+
+        public List<State> getStates() {
+            final List<State> column = new ArrayList<State>(states.length);
+            for( byte[] sequence : states ) {
+                column.add(sequenceType.getState(sequence[site]));
+            }
+            return column;
+        }
+
+        public Set<State> getStateSet() {
+            return new HashSet<State>(getStates());
+        }
+
+        public double getWeight() {
+            return 1.0;
+        }
+
+        public State getMostFrequentState() {
+            int maxCount = 0;
+            State mostFrequentState = null;
+            final int[] counts = new int[sequenceType.getStateCount()];
+            for( byte[] sequence : states ) {
+                final State state = sequenceType.getState(sequence[site]);
+                counts[state.getIndex()] += 1;
+                if( !state.isAmbiguous() && counts[state.getIndex()] > maxCount ) {
+                    maxCount = counts[state.getIndex()];
+                    mostFrequentState = state;
+                }
+            }
+            return mostFrequentState;
+        }
+
+        public double getStateFrequency(State state) {
+            double count = 0;
+            for( byte[] sequence : states ) {
+                if( sequence[site] == state.getIndex() ) {
+                    count += 1;
+                }
+            }
+            return count / states.length;
+        }
+
+        private final int site;
+    }
+
+    private final SequenceType sequenceType;
+    private final List<Sequence> sequences;
+    private final Map<Taxon, Sequence> sequencesByTaxon;
+    private final List<Taxon> taxa;
+    private final int siteCount;
+    // states[i][j] is the index of the state of sequence i at site j
+    private final byte[][] states;
+
+    private volatile List<Pattern> patterns = null;
+}
@@ -0,0 +1,213 @@
+package jebl.evolution.alignments;
+
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.sequences.State;
+import jebl.evolution.taxa.Taxon;
+
+import java.util.*;
+
+/**
+ * The distinct site patterns of an alignment (or of any other set of patterns), each weighted by the total weight
+ * of the sites having it, along with the pattern of each site.
+ *
+ * Sites are compared by their columns of state indices, packed and hashed, so compressing takes time linear in the
+ * size of the alignment. Anything which sums over patterns with their weights (distances, parsimony, likelihood)
+ * gives the same answer for the compressed patterns as for the sites, in time proportional to the number of
+ * distinct patterns. For conserved alignments this is typically many times fewer.
+ */
+public class CompressedPatterns implements Patterns {
+
+    /**
+     * @param source patterns to compress, usually an alignment
+     */
+    public CompressedPatterns(Patterns source) {
+        taxa = source.getTaxa();
+        sequenceType = source.getSequenceType();
+
+        final List<Pattern> sites = source.getPatterns();
+        final int taxonCount = taxa.size();
+        sitePatternIndices = new int[sites.size()];
+
+        final Map<Column, Integer> indices = new HashMap<Column, Integer>();
+        final List<State[]> columns = new ArrayList<State[]>();
+        double[] sums = new double[16];
+        for(int s = 0; s < sites.size(); ++s) {
+            final Pattern site = sites.get(s);
+            final char[] packed = new char[taxonCount];
+            for(int i = 0; i < taxonCount; ++i) {
+                packed[i] = (char) site.getState(i).getIndex();
+            }
+            final Column column = new Column(packed);
+            Integer index = indices.get(column);
+            if( index == null ) {
+                index = columns.size();
+                indices.put(column, index);
+                final State[] states = new State[taxonCount];
+                for(int i = 0; i < taxonCount; ++i) {
+                    states[i] = site.getState(i);
+                }
+                columns.add(states);
+                if( index == sums.length ) {
+                    final double[] grown = new double[2 * sums.length];
+                    System.arraycopy(sums, 0, grown, 0, sums.length);
+                    sums = grown;
+                }
+            }
+            sums[index] += site.getWeight();
+            sitePatternIndices[s] = index;
+        }
+
+        weights = new double[columns.size()];
+        System.arraycopy(sums, 0, weights, 0, weights.length);
+        final List<Pattern> unique = new ArrayList<Pattern>(columns.size());
+        for(int p = 0; p < columns.size(); ++p) {
+            unique.add(new CompressedPattern(columns.get(p), weights[p]));
+        }
+        patterns = Collections.unmodifiableList(unique);
+    }
+
+    /**
+     * @return number of distinct patterns
+     */
+    public int getPatternCount() {
+        return patterns.size();
+    }
+
+    public int getPatternLength() {
+        return taxa.size();
+    }
+
+    /**
+     * @return the distinct patterns, in order of their first site
+     */
+    public List<Pattern> getPatterns() {
+        return patterns;
+    }
+
+    public List<Taxon> getTaxa() {
+        return taxa;
+    }
+
+    public SequenceType getSequenceType() {
+        return sequenceType;
+    }
+
+    /**
+     * @return number of sites (patterns before compression)
+     */
+    public int getSiteCount() {
+        return sitePatternIndices.length;
+    }
+
+    /**
+     * @param site site number
+     * @return index in getPatterns() of the pattern of the site
+     */
+    public int getPatternIndex(int site) {
+        return sitePatternIndices[site];
+    }
+
+    /**
+     * @return index in getPatterns() of the pattern of each site
+     */
+    public int[] getSitePatternIndices() {
+        return sitePatternIndices.clone();
+    }
+
+    /**
+     * @return weight of each distinct pattern, the sum of the weights of its sites (its number of sites when
+     *         compressing an alignment)
+     */
+    public double[] getPatternWeights() {
+        return weights.clone();
+    }
+
+    /**
+     * A column of state indices, as a hash key.
+     */
+    private static final class Column {
+        Column(char[] states) {
+            this.states = states;
+            hash = Arrays.hashCode(states);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Column && ((Column) o).hash == hash && Arrays.equals(((Column) o).states, states);
+        }
+
+        private final char[] states;
+        private final int hash;
+    }
+
+    private class CompressedPattern implements Pattern {
+        CompressedPattern(State[] states, double weight) {
+            this.states = Collections.unmodifiableList(Arrays.asList(states));
+            this.weight = weight;
+        }
+
+        public SequenceType getSequenceType() {
+            return sequenceType;
+        }
+
+        public int getLength() {
+            return states.size();
+        }
+
+        public List<Taxon> getTaxa() {
+            return taxa;
+        }
+
+        public State getState(int index) {
+            return states.get(index);
+        }
+
+        public List<State> getStates() {
+            return states;
+        }
+
+        public Set<State> getStateSet() {
+            return new HashSet<State>(states);
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public State getMostFrequentState() {
+            int maxCount = 0;
+            State mostFrequentState = null;
+            final int[] counts = new int[sequenceType.getStateCount()];
+            for( State state : states ) {
+                counts[state.getIndex()] += 1;
+                if( !state.isAmbiguous() && counts[state.getIndex()] > maxCount ) {
+                    maxCount = counts[state.getIndex()];
+                    mostFrequentState = state;
+                }
+            }
+            return mostFrequentState;
+        }
+
+        public double getStateFrequency(State state) {
+            double count = 0;
+            for( State s : states ) {
+                if( s == state ) {
+                    count += 1;
+                }
+            }
+            return count / states.size();
+        }
+
+        private final List<State> states;
+        private final double weight;
+    }
+
+    private final List<Taxon> taxa;
+    private final SequenceType sequenceType;
+    private final List<Pattern> patterns;
+    private final double[] weights;
+    private final int[] sitePatternIndices;
+}
@@ -0,0 +1,275 @@
+package jebl.evolution.alignments;
+
+import jebl.evolution.sequences.CompactSequence;
+import jebl.evolution.sequences.Sequence;
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.sequences.State;
+import jebl.evolution.taxa.Taxon;
+import jebl.util.ParallelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Builds the consensus of the sequences of an alignment in one pass over their state indices.
+ *
+ * The states of each column are counted into a histogram of state indices. The sequences are read a batch at a
+ * time in alignment order (the rows of a {@link CompactAlignment} are read in place), so a large alignment is never
+ * copied as a whole. With more than one thread (see {@link #setThreadCount(int)}), the columns are split into blocks
+ * counted on separate threads.
+ *
+ * By default the consensus of a column is its most frequent unambiguous state, as given by
+ * {@link Pattern#getMostFrequentState()}: of equally frequent states, the one reaching that count first. With a
+ * threshold, it is the state covering the fewest canonical states which are together at least that fraction of the
+ * unambiguous states in the column, taken in order of decreasing frequency; for nucleotides this is the IUPAC
+ * ambiguity code of the bases. Either way, a column with no unambiguous states gets its most frequent state (a gap
+ * in a column of gaps).
+ */
+public class ConsensusBuilder {
+
+    /**
+     * @param alignment alignment whose sequences are summarized. Sequences shorter than the longest are padded
+     *                  with gaps, as in the patterns of the alignment.
+     */
+    public ConsensusBuilder(Alignment alignment) {
+        this.alignment = alignment;
+    }
+
+    /**
+     * @param threshold fraction of the unambiguous states in a column which the consensus must cover, in (0..1];
+     *                  or 0 (the default) for the most frequent state.
+     */
+    public void setThreshold(double threshold) {
+        if( threshold < 0 || threshold > 1 ) {
+            throw new IllegalArgumentException("Threshold must be in [0..1], got " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param threadCount number of threads counting columns. The default is 1, counting on the calling thread.
+     *                    Values less than 1 mean one per processor.
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount < 1 ? ParallelUtils.getDefaultThreadCount() : threadCount;
+    }
+
+    /**
+     * @param taxon taxon of the consensus sequence
+     * @return consensus sequence
+     */
+    public Sequence build(Taxon taxon) {
+        return new CompactSequence(alignment.getSequenceType(), taxon, buildStateIndices());
+    }
+
+    /**
+     * @return state index of the consensus of each site
+     */
+    public byte[] buildStateIndices() {
+        final SequenceType sequenceType = alignment.getSequenceType();
+        final List<Sequence> sequences = alignment.getSequenceList();
+        final byte[][] matrix = alignment instanceof CompactAlignment ? ((CompactAlignment) alignment).getStateMatrix() : null;
+
+        int siteCount = 0;
+        for( Sequence sequence : sequences ) {
+            siteCount = Math.max(siteCount, sequence.getLength());
+        }
+        final Columns columns = new Columns(sequenceType, siteCount);
+
+        final int blockCount = Math.max(1, Math.min(siteCount / MIN_BLOCK_SIZE, threadCount));
+        final ExecutorService executor = blockCount > 1 ? ParallelUtils.newThreadPool(blockCount) : null;
+        try {
+            final int batchSize = matrix != null ? Math.max(1, sequences.size()) : ROWS_PER_BATCH;
+            for(int start = 0; start < sequences.size(); start += batchSize) {
+                final int end = Math.min(start + batchSize, sequences.size());
+                final int firstRow = start;
+                final byte[][] rows = new byte[end - start][];
+                for(int i = start; i < end; ++i) {
+                    rows[i - start] = matrix != null ? matrix[i] : sequences.get(i).getStateIndices();
+                }
+
+                final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(blockCount);
+                for(int b = 0; b < blockCount; ++b) {
+                    final int from = (int)(((long) b * siteCount) / blockCount);
+                    final int to = (int)(((long) (b + 1) * siteCount) / blockCount);
+                    tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            columns.count(rows, firstRow, from, to);
+                            return null;
+                        }
+                    });
+                }
+                if( executor != null ) {
+                    ParallelUtils.invokeAll(tasks, executor);
+                } else {
+                    ParallelUtils.invokeAll(tasks, 1);
+                }
+            }
+        } finally {
+            if( executor != null ) {
+                executor.shutdownNow();
+            }
+        }
+
+        return threshold > 0 ? columns.getThresholdConsensus(threshold) : columns.getConsensus();
+    }
+
+    /**
+     * The state counts of the columns of an alignment. Disjoint ranges of sites may be counted concurrently.
+     */
+    private static class Columns {
+        Columns(SequenceType sequenceType, int siteCount) {
+            this.sequenceType = sequenceType;
+            this.siteCount = siteCount;
+            stateCount = sequenceType.getStateCount();
+            gap = (byte) sequenceType.getGapState().getIndex();
+
+            ambiguous = new boolean[stateCount];
+            canonicalStates = new long[stateCount];
+            for(int s = 0; s < stateCount; ++s) {
+                final State state = sequenceType.getState(s);
+                ambiguous[s] = state.isAmbiguous();
+                for( State canonical : state.getCanonicalStates() ) {
+                    canonicalStates[s] |= 1L << canonical.getIndex();
+                }
+            }
+
+            counts = new int[siteCount * stateCount];
+            lastRows = new int[siteCount * stateCount];
+        }
+
+        /**
+         * Count the states of sites from to to - 1 of rows (which may be shorter than the alignment).
+         *
+         * @param firstRow index of rows[0] in the alignment
+         */
+        void count(byte[][] rows, int firstRow, int from, int to) {
+            // a tile of columns at a time, so that their counts stay in the cache
+            for(int tile = from; tile < to; tile += SITES_PER_TILE) {
+                final int tileEnd = Math.min(tile + SITES_PER_TILE, to);
+                for(int r = 0; r < rows.length; ++r) {
+                    final byte[] row = rows[r];
+                    for(int site = tile; site < tileEnd; ++site) {
+                        final int i = site * stateCount + (site < row.length ? row[site] : gap);
+                        ++counts[i];
+                        lastRows[i] = firstRow + r;
+                    }
+                }
+            }
+        }
+
+        byte[] getConsensus() {
+            final byte[] consensus = new byte[siteCount];
+            for(int site = 0; site < siteCount; ++site) {
+                consensus[site] = getMostFrequentUnambiguousState(site);
+            }
+            return consensus;
+        }
+
+        byte[] getThresholdConsensus(double threshold) {
+            final byte[] consensus = new byte[siteCount];
+            final int[] order = new int[stateCount];
+            for(int site = 0; site < siteCount; ++site) {
+                final int offset = site * stateCount;
+                int total = 0;
+                int n = 0;
+                for(int s = 0; s < stateCount; ++s) {
+                    if( !ambiguous[s] && counts[offset + s] > 0 ) {
+                        total += counts[offset + s];
+                        // insertion sort by decreasing count, stable for equal counts
+                        int i = n++;
+                        while( i > 0 && counts[offset + order[i - 1]] < counts[offset + s] ) {
+                            order[i] = order[i - 1];
+                            --i;
+                        }
+                        order[i] = s;
+                    }
+                }
+                if( total == 0 ) {
+                    consensus[site] = getMostFrequentState(site);
+                    continue;
+                }
+
+                long covered = 0;
+                int sum = 0;
+                for(int i = 0; i < n && sum < threshold * total; ++i) {
+                    covered |= canonicalStates[order[i]];
+                    sum += counts[offset + order[i]];
+                }
+                consensus[site] = getCoveringState(covered);
+            }
+            return consensus;
+        }
+
+        /**
+         * As Pattern.getMostFrequentState(): of the most frequent unambiguous states, the first to reach its count,
+         * which is the one whose last occurrence comes first. If there are none, the most frequent state.
+         */
+        private byte getMostFrequentUnambiguousState(int site) {
+            final int offset = site * stateCount;
+            int best = -1;
+            for(int s = 0; s < stateCount; ++s) {
+                final int count = counts[offset + s];
+                if( !ambiguous[s] && count > 0 && (best < 0 || count > counts[offset + best] ||
+                        (count == counts[offset + best] && lastRows[offset + s] < lastRows[offset + best])) ) {
+                    best = s;
+                }
+            }
+            return best >= 0 ? (byte) best : getMostFrequentState(site);
+        }
+
+        /**
+         * @return the most frequent state at the site, ambiguous or not (of equally frequent ones, the first)
+         */
+        private byte getMostFrequentState(int site) {
+            int best = gap;
+            for(int s = 0; s < stateCount; ++s) {
+                if( counts[site * stateCount + s] > counts[site * stateCount + best] ) {
+                    best = s;
+                }
+            }
+            return (byte) best;
+        }
+
+        /**
+         * @return the state with the fewest canonical states including all those given, or the unknown state if none
+         */
+        private byte getCoveringState(long canonical) {
+            int best = -1;
+            for(int s = 0; s < stateCount; ++s) {
+                if( (canonicalStates[s] & canonical) == canonical &&
+                        (best < 0 || Long.bitCount(canonicalStates[s]) < Long.bitCount(canonicalStates[best])) ) {
+                    best = s;
+                }
+            }
+            return (byte) (best >= 0 ? best : sequenceType.getUnknownState().getIndex());
+        }
+
+        private final SequenceType sequenceType;
+        private final int siteCount;
+        private final int stateCount;
+        private final byte gap;
+        private final boolean[] ambiguous;
+        // bit i set for each canonical state of index i of each state
+        private final long[] canonicalStates;
+
+        // counts[site * stateCount + s] is the number of sequences with state s at the site
+        private final int[] counts;
+        // index of the last sequence counted with state s at the site, at the same place
+        private final int[] lastRows;
+    }
+
+    // sequences read at a time from alignments other than CompactAlignment
+    private static final int ROWS_PER_BATCH = 256;
+    // fewest sites counted on a thread of their own
+    private static final int MIN_BLOCK_SIZE = 1024;
+    // sites whose counts are updated together by each pass over the sequences
+    private static final int SITES_PER_TILE = 512;
+
+    private final Alignment alignment;
+
+    private double threshold = 0;
+    private int threadCount = 1;
+}
@@ -38,7 +38,7 @@ public abstract class ConsensusSequence implements Sequence {
      */
     public String getString() {
         if (sequence == null) {
-            sequence = jebl.evolution.sequences.Utils.getStateIndices(constructConsensus(source));
+            sequence = constructConsensusIndices(source);
         }
 
         SequenceType sequenceType = getSequenceType();
@@ -54,16 +54,16 @@ public abstract class ConsensusSequence implements Sequence {
      */
     public State[] getStates() {
         if (sequence == null) {
-            sequence = jebl.evolution.sequences.Utils.getStateIndices(constructConsensus(source));
+            sequence = constructConsensusIndices(source);
         }
         return getSequenceType().toStateArray(sequence);
     }
 
     public byte[] getStateIndices() {
         if (sequence == null) {
-            sequence = jebl.evolution.sequences.Utils.getStateIndices(constructConsensus(source));
+            sequence = constructConsensusIndices(source);
         }
-        return sequence;
+        return sequence.clone();
     }
 
     /**
@@ -71,7 +71,7 @@ public abstract class ConsensusSequence implements Sequence {
      */
     public State getState(int site) {
         if (sequence == null) {
-            sequence = jebl.evolution.sequences.Utils.getStateIndices(constructConsensus(source));
+            sequence = constructConsensusIndices(source);
         }
         return getSequenceType().getState(sequence[site]);
     }
@@ -83,20 +83,22 @@ public abstract class ConsensusSequence implements Sequence {
      */
     public int getLength() {
         if (sequence == null) {
-            sequence = jebl.evolution.sequences.Utils.getStateIndices(constructConsensus(source));
+            sequence = constructConsensusIndices(source);
         }
         return sequence.length;
     }
 
+    /**
+     * @return the most frequent state of each site
+     * @see ConsensusBuilder
+     */
     public static State[] constructConsensus(Alignment source) {
-        State[] consensus = new State[source.getPatterns().size()];
-        int i = 0;
-        for (Pattern pattern : source.getPatterns()) {
-            consensus[i] = pattern.getMostFrequentState();
-            i++;
-        }
+        return source.getSequenceType().toStateArray(constructConsensusIndices(source));
+    }
 
-        return consensus;
+    private static byte[] constructConsensusIndices(Alignment source) {
+        // counted on the calling thread; use ConsensusBuilder directly for more threads
+        return new ConsensusBuilder(source).buildStateIndices();
     }
 
     /**
@@ -1,9 +1,8 @@
 package jebl.evolution.alignments;
 
-import jebl.evolution.sequences.BasicSequence;
+import jebl.evolution.sequences.CompactSequence;
 import jebl.evolution.sequences.Sequence;
 import jebl.evolution.sequences.SequenceType;
-import jebl.evolution.sequences.State;
 import jebl.evolution.taxa.Taxon;
 
 import java.util.List;
@@ -20,6 +19,9 @@ import java.util.Set;
  * (sampling with replacment).
  *
  * Due to Java restrictions on constructors, class is implemented using delegation.
+ *
+ * Each replicate copies the states of all its sites. When many replicates are needed, {@link ResampledPatterns}
+ * represents a replicate by pattern weights instead.
  */
 
 public class ResampledAlignment implements Alignment {
@@ -35,25 +37,17 @@ public class ResampledAlignment implements Alignment {
         final int nNewSites = siteIndices.length;
         final int nSeqs = srcAlignment.getSequences().size();
 
-        // Work directly with states (fastest)
-        State[][] newSeqsStates = new State[nSeqs][];
-
-        for(int k = 0; k < nSeqs; ++k) {
-            newSeqsStates[k] = new State[nNewSites];
-        }
-
+        // Work directly with state indices (fastest)
         final List<Sequence> seqs = srcAlignment.getSequenceList();
-        for(int n = 0; n < nNewSites; ++n) {
-            final int fromSite = siteIndices[n];
-            for(int k = 0; k < nSeqs; ++k) {
-                newSeqsStates[k][n] = seqs.get(k).getState(fromSite);
-            }
-        }
-
         Sequence[] newSeqs = new Sequence[nSeqs];
         for(int k = 0; k < nSeqs; ++k) {
-            Sequence src = seqs.get(k);
-            newSeqs[k] = new BasicSequence(src.getSequenceType(), src.getTaxon(), newSeqsStates[k]);
+            final Sequence src = seqs.get(k);
+            final byte[] srcIndices = src.getStateIndices();
+            final byte[] newIndices = new byte[nNewSites];
+            for(int n = 0; n < nNewSites; ++n) {
+                newIndices[n] = srcIndices[siteIndices[n]];
+            }
+            newSeqs[k] = new CompactSequence(src.getSequenceType(), src.getTaxon(), newIndices);
         }
         alignment = new BasicAlignment(newSeqs);
     }
@@ -0,0 +1,203 @@
+package jebl.evolution.alignments;
+
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.sequences.State;
+import jebl.evolution.taxa.Taxon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A bootstrap or jackknife replicate of an alignment, held as the number of times each distinct pattern of the
+ * alignment (see {@link CompressedPatterns}) occurs in the replicate.
+ *
+ * Unlike {@link BootstrappedAlignment} and {@link JackknifedAlignment}, which copy the states of every resampled
+ * site into new sequences, a replicate costs one int per distinct pattern, and the patterns themselves are shared
+ * with the source. The replicate can be passed wherever patterns are accepted (distance matrices, parsimony, tree
+ * likelihood and the tree builders using them). Its patterns are those occurring at least once, each weighted by
+ * its number of occurrences.
+ *
+ * Given equally seeded random number generators, bootstrap() and jackknife() draw the same sites as
+ * BootstrappedAlignment and JackknifedAlignment.
+ */
+public class ResampledPatterns implements Patterns {
+
+    /**
+     * @param source  distinct patterns of the source alignment
+     * @param weights number of occurrences in the replicate of each pattern of the source (in the order of
+     *                source.getPatterns()). The array is not copied.
+     */
+    public ResampledPatterns(CompressedPatterns source, int[] weights) {
+        final List<Pattern> sourcePatterns = source.getPatterns();
+        if( weights.length != sourcePatterns.size() ) {
+            throw new IllegalArgumentException("Expected " + sourcePatterns.size() + " weights, got " + weights.length);
+        }
+
+        this.source = source;
+        this.weights = weights;
+
+        final List<Pattern> patterns = new ArrayList<Pattern>();
+        int siteCount = 0;
+        for(int p = 0; p < weights.length; ++p) {
+            if( weights[p] < 0 ) {
+                throw new IllegalArgumentException("Negative weight for pattern " + p);
+            }
+            if( weights[p] > 0 ) {
+                patterns.add(new ResampledPattern(sourcePatterns.get(p), weights[p]));
+                siteCount += weights[p];
+            }
+        }
+        this.patterns = Collections.unmodifiableList(patterns);
+        this.siteCount = siteCount;
+    }
+
+    /**
+     * Draw a bootstrap replicate: as many sites as the source has, sampled with replacement.
+     *
+     * @param source distinct patterns of the source alignment
+     * @param r      random number generator
+     * @return replicate
+     */
+    public static ResampledPatterns bootstrap(CompressedPatterns source, Random r) {
+        final int nSites = source.getSiteCount();
+        final int[] weights = new int[source.getPatternCount()];
+        for(int n = 0; n < nSites; ++n) {
+            weights[source.getPatternIndex(r.nextInt(nSites))] += 1;
+        }
+        return new ResampledPatterns(source, weights);
+    }
+
+    /**
+     * Draw a jackknife replicate: a fraction of the sites of the source, sampled without replacement.
+     *
+     * @param source  distinct patterns of the source alignment
+     * @param percent fraction of sites to keep, in [0..1]
+     * @param r       random number generator
+     * @return replicate
+     */
+    public static ResampledPatterns jackknife(CompressedPatterns source, double percent, Random r) {
+        final int nSites = source.getSiteCount();
+        final int nNewSites = (int)Math.ceil(nSites * percent);
+
+        final int[] sites = new int[nSites];
+        for(int n = 0; n < nSites; ++n) {
+            sites[n] = n;
+        }
+        for(int i = 0; i < nSites; ++i) {
+            final int index = r.nextInt(nSites - i) + i;
+            final int temp = sites[index];
+            sites[index] = sites[i];
+            sites[i] = temp;
+        }
+
+        final int[] weights = new int[source.getPatternCount()];
+        for(int n = 0; n < nNewSites; ++n) {
+            weights[source.getPatternIndex(sites[n])] += 1;
+        }
+        return new ResampledPatterns(source, weights);
+    }
+
+    /**
+     * @return number of patterns occurring in the replicate
+     */
+    public int getPatternCount() {
+        return patterns.size();
+    }
+
+    public int getPatternLength() {
+        return source.getPatternLength();
+    }
+
+    /**
+     * @return the patterns occurring in the replicate, each weighted by its number of occurrences
+     */
+    public List<Pattern> getPatterns() {
+        return patterns;
+    }
+
+    public List<Taxon> getTaxa() {
+        return source.getTaxa();
+    }
+
+    public SequenceType getSequenceType() {
+        return source.getSequenceType();
+    }
+
+    /**
+     * @return number of sites in the replicate
+     */
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * @return distinct patterns of the source
+     */
+    public CompressedPatterns getSource() {
+        return source;
+    }
+
+    /**
+     * @return number of occurrences in the replicate of each pattern of the source
+     */
+    public int[] getWeights() {
+        return weights.clone();
+    }
+
+    /**
+     * A pattern of the source, with the weight of the replicate.
+     */
+    private static class ResampledPattern implements Pattern {
+        ResampledPattern(Pattern pattern, int weight) {
+            this.pattern = pattern;
+            this.weight = weight;
+        }
+
+        public SequenceType getSequenceType() {
+            return pattern.getSequenceType();
+        }
+
+        public int getLength() {
+            return pattern.getLength();
+        }
+
+        public List<Taxon> getTaxa() {
+            return pattern.getTaxa();
+        }
+
+        public State getState(int index) {
+            return pattern.getState(index);
+        }
+
+        public List<State> getStates() {
+            return pattern.getStates();
+        }
+
+        public Set<State> getStateSet() {
+            return pattern.getStateSet();
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public State getMostFrequentState() {
+            return pattern.getMostFrequentState();
+        }
+
+        public double getStateFrequency(State state) {
+            return pattern.getStateFrequency(state);
+        }
+
+        private final Pattern pattern;
+        private final int weight;
+    }
+
+    private final CompressedPatterns source;
+    private final int[] weights;
+    private final List<Pattern> patterns;
+    private final int siteCount;
+}
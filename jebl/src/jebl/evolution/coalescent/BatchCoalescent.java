@@ -0,0 +1,261 @@
+package jebl.evolution.coalescent;
+
+import jebl.evolution.trees.RootedTree;
+import jebl.math.Binomial;
+import jebl.util.ParallelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Coalescent log likelihoods (as {@link Coalescent#calculateLogLikelihood(IntervalList, DemographicFunction)}) of
+ * many sets of intervals, for example those of the trees of a posterior sample, for many values of the
+ * parameters of a demographic model.
+ *
+ * The intervals are copied once into flat arrays. For {@link ConstantPopulation}, {@link ExponentialGrowth} and
+ * {@link LogisticGrowth} the integrals are evaluated in closed form from these arrays, without calling the
+ * demographic function: the constant population likelihood of a tree takes constant time, and the others a
+ * single exponential per interval. The trees and parameter values are split into tiles which are evaluated in
+ * parallel. Other demographic functions are evaluated through their methods, on the calling thread.
+ */
+public class BatchCoalescent {
+
+	/**
+	 * Use as many threads as available processors.
+	 *
+	 * @param intervals sets of intervals
+	 */
+	public BatchCoalescent(List<? extends IntervalList> intervals) {
+		this(intervals, ParallelUtils.getDefaultThreadCount());
+	}
+
+	/**
+	 * @param intervals sets of intervals
+	 * @param threadCount number of threads. Values less than 1 mean one per processor.
+	 */
+	public BatchCoalescent(List<? extends IntervalList> intervals, int threadCount) {
+		this.threadCount = threadCount;
+		listCount = intervals.size();
+		offsets = new int[listCount + 1];
+		for (int t = 0; t < listCount; t++) {
+			offsets[t + 1] = offsets[t] + intervals.get(t).getIntervalCount();
+		}
+
+		final int n = offsets[listCount];
+		durations = new double[n];
+		finishTimes = new double[n];
+		pairCounts = new double[n];
+		coalescent = new boolean[n];
+		coalescentCounts = new int[listCount];
+		pairTimes = new double[listCount];
+		coalescentTimes = new double[listCount];
+
+		for (int t = 0; t < listCount; t++) {
+			final IntervalList list = intervals.get(t);
+			double finishTime = 0.0;
+			for (int i = 0, k = offsets[t]; k < offsets[t + 1]; i++, k++) {
+				durations[k] = list.getInterval(i);
+				finishTime += durations[k];
+				finishTimes[k] = finishTime;
+				pairCounts[k] = Binomial.choose2(list.getLineageCount(i));
+				coalescent[k] = list.getIntervalType(i) == IntervalList.IntervalType.COALESCENT;
+
+				pairTimes[t] += pairCounts[k] * durations[k];
+				if (coalescent[k]) {
+					coalescentCounts[t]++;
+					coalescentTimes[t] += finishTime;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Extract the intervals of many trees in parallel.
+	 *
+	 * @param trees rooted binary trees
+	 * @param threadCount number of threads. Values less than 1 mean one per processor.
+	 * @return batch of the intervals of the trees, in order
+	 */
+	public static BatchCoalescent forTrees(List<? extends RootedTree> trees, int threadCount) {
+		final List<Callable<IntervalList>> tasks = new ArrayList<Callable<IntervalList>>(trees.size());
+		for (final RootedTree tree : trees) {
+			tasks.add(new Callable<IntervalList>() {
+				public IntervalList call() {
+					final Intervals intervals = new Intervals(tree);
+					// the intervals are computed on first use
+					intervals.getIntervalCount();
+					return intervals;
+				}
+			});
+		}
+		return new BatchCoalescent(ParallelUtils.invokeAll(tasks, threadCount), threadCount);
+	}
+
+	/**
+	 * @return number of sets of intervals
+	 */
+	public int getIntervalListCount() {
+		return listCount;
+	}
+
+	/**
+	 * @param demographicFunction model whose parameters are varied. Its own parameter values are not used, and
+	 * are changed only if it is not one of the models with closed form integrals.
+	 * @param arguments values of the arguments of the model, one row per point (in the order of
+	 * {@link DemographicFunction#setArgument}, e.g. N0, r and c for a logistic growth model)
+	 * @return log likelihood of each set of intervals (first index) at each point (second index)
+	 */
+	public double[][] getLogLikelihoods(DemographicFunction demographicFunction, final double[][] arguments) {
+		final double[][] logL = new double[listCount][arguments.length];
+
+		final Model model = getModel(demographicFunction);
+		if (model == null) {
+			for (int p = 0; p < arguments.length; p++) {
+				for (int a = 0; a < arguments[p].length; a++) {
+					demographicFunction.setArgument(a, arguments[p][a]);
+				}
+				for (int t = 0; t < listCount; t++) {
+					logL[t][p] = getLogLikelihood(t, demographicFunction);
+				}
+			}
+			return logL;
+		}
+
+		final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int t0 = 0; t0 < listCount; t0 += LISTS_PER_TASK) {
+			for (int p0 = 0; p0 < arguments.length; p0 += POINTS_PER_TASK) {
+				final int firstList = t0;
+				final int firstPoint = p0;
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						final int lastList = Math.min(firstList + LISTS_PER_TASK, listCount);
+						final int lastPoint = Math.min(firstPoint + POINTS_PER_TASK, arguments.length);
+						for (int t = firstList; t < lastList; t++) {
+							for (int p = firstPoint; p < lastPoint; p++) {
+								logL[t][p] = getLogLikelihood(t, model, arguments[p]);
+							}
+						}
+						return null;
+					}
+				});
+			}
+		}
+		ParallelUtils.invokeAll(tasks, threadCount);
+		return logL;
+	}
+
+	/**
+	 * @param list index of a set of intervals
+	 * @param demographicFunction demographic model
+	 * @return log likelihood of the set of intervals under the model
+	 */
+	public double getLogLikelihood(int list, DemographicFunction demographicFunction) {
+		final Model model = getModel(demographicFunction);
+		if (model != null) {
+			final double[] arguments = new double[demographicFunction.getArgumentCount()];
+			for (int a = 0; a < arguments.length; a++) {
+				arguments[a] = demographicFunction.getArgument(a);
+			}
+			return getLogLikelihood(list, model, arguments);
+		}
+
+		double logL = 0.0;
+		for (int k = offsets[list]; k < offsets[list + 1]; k++) {
+			final double finishTime = finishTimes[k];
+			final double intervalArea = demographicFunction.getIntegral(finishTime - durations[k], finishTime);
+			logL -= pairCounts[k] * intervalArea;
+			if (coalescent[k]) {
+				logL -= Math.log(demographicFunction.getDemographic(finishTime));
+			}
+		}
+		return logL;
+	}
+
+	private static enum Model { CONSTANT, EXPONENTIAL, LOGISTIC }
+
+	/**
+	 * @return the closed form model for the class of demographicFunction (subclasses change the model, so are
+	 * not matched), or null if there is none
+	 */
+	private static Model getModel(DemographicFunction demographicFunction) {
+		final Class<?> c = demographicFunction.getClass();
+		if (c == ConstantPopulation.class) {
+			return Model.CONSTANT;
+		}
+		if (c == ExponentialGrowth.class) {
+			return Model.EXPONENTIAL;
+		}
+		if (c == LogisticGrowth.class) {
+			return Model.LOGISTIC;
+		}
+		return null;
+	}
+
+	private double getLogLikelihood(int list, Model model, double[] arguments) {
+		final double N0 = arguments[0];
+		final int coalescentCount = coalescentCounts[list];
+
+		if (model == Model.CONSTANT) {
+			return -coalescentCount * Math.log(N0) - pairTimes[list] / N0;
+		}
+
+		final double r = arguments[1];
+		final double c = model == Model.LOGISTIC ? arguments[2] : 0.0;
+
+		// sum over intervals of pairs times the integral of exp(r t) over the interval, i.e.
+		// (exp(r finish) - exp(r start)) / r, accumulated as exp(r start) expm1(r duration) / r
+		double pairIntegral = 0.0;
+		// sum over coalescent intervals of log(c + exp(-r finish)), for the logistic model
+		double logTerms = 0.0;
+		if (r == 0.0) {
+			pairIntegral = pairTimes[list];
+			if (model == Model.LOGISTIC) {
+				logTerms = coalescentCount * Math.log(c + 1.0);
+			}
+		} else {
+			double expStart = 1.0;
+			for (int k = offsets[list]; k < offsets[list + 1]; k++) {
+				final double growth = Math.expm1(r * durations[k]);
+				pairIntegral += pairCounts[k] * expStart * growth / r;
+				expStart += expStart * growth;
+				if (model == Model.LOGISTIC && coalescent[k]) {
+					logTerms += Math.log(c + 1.0 / expStart);
+				}
+			}
+		}
+
+		if (model == Model.EXPONENTIAL) {
+			// N(t) = N0 exp(-r t)
+			return -coalescentCount * Math.log(N0) + r * coalescentTimes[list] - pairIntegral / N0;
+		}
+
+		// N(t) = N0 (1 + c) exp(-r t) / (c + exp(-r t))
+		final double scale = N0 * (1.0 + c);
+		return -coalescentCount * Math.log(scale) + r * coalescentTimes[list] + logTerms -
+				(pairTimes[list] + c * pairIntegral) / scale;
+	}
+
+	// sets of intervals and points evaluated by each task
+	private static final int LISTS_PER_TASK = 32;
+	private static final int POINTS_PER_TASK = 32;
+
+	private final int threadCount;
+	private final int listCount;
+
+	// intervals of list t are at offsets[t] to offsets[t + 1] - 1
+	private final int[] offsets;
+	private final double[] durations;
+	// time at the end of each interval
+	private final double[] finishTimes;
+	// number of pairs of lineages in each interval
+	private final double[] pairCounts;
+	// whether each interval ends in a coalescence
+	private final boolean[] coalescent;
+
+	// per list: the number of coalescent intervals, sum of pairs times durations, and sum of the end times of the
+	// coalescent intervals
+	private final int[] coalescentCounts;
+	private final double[] pairTimes;
+	private final double[] coalescentTimes;
+}
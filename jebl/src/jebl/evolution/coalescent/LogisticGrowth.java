@@ -124,6 +124,41 @@ public class LogisticGrowth extends ExponentialGrowth {
 		return term5 + term4;
 	}
 
+    @Override
+    public int getArgumentCount() {
+        return 3;
+    }
+
+    @Override
+    public String getArgumentName(int n) {
+        switch (n) {
+            case 0: return "N0";
+            case 1: return "r";
+            case 2: return "c";
+        }
+        throw new IllegalArgumentException("Argument " + n + " does not exist");
+    }
+
+    @Override
+    public double getArgument(int n) {
+        switch (n) {
+            case 0: return getN0();
+            case 1: return getGrowthRate();
+            case 2: return getShape();
+        }
+        throw new IllegalArgumentException("Argument " + n + " does not exist");
+    }
+
+    @Override
+    public void setArgument(int n, double value) {
+        switch (n) {
+            case 0: setN0(value); break;
+            case 1: setGrowthRate(value); break;
+            case 2: setShape(value); break;
+            default: throw new IllegalArgumentException("Argument " + n + " does not exist");
+        }
+    }
+
 	//
 	// private stuff
 	//
@@ -1,11 +1,14 @@
 package jebl.evolution.distances;
 
 import jebl.evolution.taxa.Taxon;
+import jebl.util.ParallelUtils;
 import jebl.util.ProgressListener;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author Andrew Rambaut
@@ -154,6 +157,110 @@ public class BasicDistanceMatrix implements DistanceMatrix {
                 if( progress != null ) progress.setProgress( ++done / tot);
             }
         }
+        fillMissingDistances(distances, noDistance, maxDistance);
+        return distances;
+    }
+
+    /**
+     * As {@link #buildDistancesMatrix(PairwiseDistanceCalculator, int, boolean, ProgressListener)}, with the pairs
+     * split into tasks which are evaluated in parallel. The calculator must be safe to call from several threads.
+     * Progress is reported after each batch of tasks, from the calling thread.
+     *
+     * @param threadCount number of threads. Values less than 1 mean one per processor.
+     */
+    protected static double[][] buildDistancesMatrix(final PairwiseDistanceCalculator pairwiseDistanceCalculator, int dimension,
+                                                     final boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable,
+                                                     ProgressListener progress, int threadCount)
+            throws CannotBuildDistanceMatrixException
+    {
+        final double[][] distances = new double[dimension][dimension];
+        final double noDistance = -1;
+
+        // pairs (i,j), i < j, in row order
+        final int[] rows = new int[dimension * (dimension - 1) / 2];
+        final int[] columns = new int[rows.length];
+        int n = 0;
+        for(int i = 0; i < dimension; ++i) {
+            for(int j = i + 1; j < dimension; ++j) {
+                rows[n] = i;
+                columns[n] = j;
+                ++n;
+            }
+        }
+
+        if( threadCount < 1 ) {
+            threadCount = ParallelUtils.getDefaultThreadCount();
+        }
+        final ExecutorService executor = threadCount > 1 ? ParallelUtils.newThreadPool(threadCount) : null;
+        try {
+            runPairTasks(pairwiseDistanceCalculator, distances, rows, columns, noDistance,
+                    useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable, progress, executor);
+        } finally {
+            if( executor != null ) {
+                executor.shutdownNow();
+            }
+        }
+
+        double maxDistance = -1;
+        for(int i = 0; i < dimension; ++i) {
+            for(int j = i+1; j < dimension; ++j) {
+                maxDistance = Math.max(distances[i][j], maxDistance);
+            }
+        }
+        fillMissingDistances(distances, noDistance, maxDistance);
+        return distances;
+    }
+
+    /**
+     * Calculate the distances of the given pairs in batches of tasks, run on the executor or (if null) on the
+     * calling thread.
+     */
+    private static void runPairTasks(final PairwiseDistanceCalculator pairwiseDistanceCalculator, final double[][] distances,
+                                     final int[] rows, final int[] columns, final double noDistance,
+                                     final boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable,
+                                     ProgressListener progress, ExecutorService executor) {
+        final int batchSize = PAIRS_PER_TASK * TASKS_PER_BATCH;
+        for(int start = 0; start < rows.length; start += batchSize) {
+            final int end = Math.min(start + batchSize, rows.length);
+            final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for(int first = start; first < end; first += PAIRS_PER_TASK) {
+                final int from = first;
+                final int to = Math.min(first + PAIRS_PER_TASK, end);
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        for(int k = from; k < to; ++k) {
+                            final int i = rows[k];
+                            final int j = columns[k];
+                            try {
+                                distances[i][j] = pairwiseDistanceCalculator.calculatePairwiseDistance(i, j);
+                            } catch (CannotBuildDistanceMatrixException e) {
+                                if (!useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable) {
+                                    throw e;
+                                }
+                                distances[i][j] = noDistance;
+                            }
+                            distances[j][i] = distances[i][j];
+                        }
+                        return null;
+                    }
+                });
+            }
+            if( executor != null ) {
+                ParallelUtils.invokeAll(tasks, executor);
+            } else {
+                ParallelUtils.invokeAll(tasks, 1);
+            }
+            if( progress != null ) progress.setProgress(end, rows.length);
+        }
+    }
+
+    /**
+     * Replace distances which could not be calculated by twice the maximum distance.
+     */
+    private static void fillMissingDistances(double[][] distances, double noDistance, double maxDistance)
+            throws CannotBuildDistanceMatrixException
+    {
+        final int dimension = distances.length;
         if (maxDistance<0) {
             throw new CannotBuildDistanceMatrixException("It is not possible to compute the Tamura-Nei genetic distance " +
                     "for these sequences because no pair of sequences overlap in the alignment.");
@@ -165,6 +272,10 @@ public class BasicDistanceMatrix implements DistanceMatrix {
                 }
             }
         }
-        return distances;
     }
+
+    // pairs evaluated by each task of buildDistancesMatrix
+    private static final int PAIRS_PER_TASK = 16;
+    // tasks between progress reports
+    private static final int TASKS_PER_BATCH = 64;
 }
\ No newline at end of file
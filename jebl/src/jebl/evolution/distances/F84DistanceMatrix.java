@@ -1,11 +1,14 @@
 package jebl.evolution.distances;
 
-import jebl.evolution.alignments.Alignment;
+import jebl.evolution.alignments.CompressedPatterns;
 import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
 import jebl.evolution.sequences.Nucleotides;
 import jebl.evolution.sequences.State;
 import jebl.util.ProgressListener;
 
+import java.util.List;
+
 /**
 
  * @author Joseph Heled
@@ -16,12 +19,12 @@ import jebl.util.ProgressListener;
 
 public class F84DistanceMatrix extends BasicDistanceMatrix {
 
-    public F84DistanceMatrix(Alignment alignment, ProgressListener progress) {
-        super(alignment.getTaxa(), new Initialaizer().getDistances(alignment, progress));
+    public F84DistanceMatrix(Patterns patterns, ProgressListener progress) {
+        super(patterns.getTaxa(), new Initialaizer().getDistances(patterns, progress));
     }
 
-    public F84DistanceMatrix(Alignment alignment) {
-        super(alignment.getTaxa(), new Initialaizer().getDistances(alignment, null));
+    public F84DistanceMatrix(Patterns patterns) {
+        super(patterns.getTaxa(), new Initialaizer().getDistances(patterns, null));
     }
 
     static class Initialaizer {
@@ -30,7 +33,8 @@ public class F84DistanceMatrix extends BasicDistanceMatrix {
         // Private stuff
         //
         private static final double MAX_DISTANCE = 1000.0;
-        private Alignment alignment;
+        private Patterns source;
+        private List<Pattern> patterns;
 
         /**
          * Calculate a pairwise distance
@@ -40,7 +44,7 @@ public class F84DistanceMatrix extends BasicDistanceMatrix {
             double[] total = new double [4];
             double[] transversions = new double [4];
 
-            for( Pattern pattern : alignment.getPatterns() ) {
+            for( Pattern pattern : patterns ) {
                 State state1 = pattern.getState(taxon1);
                 State state2 = pattern.getState(taxon2);
 
@@ -65,16 +69,17 @@ public class F84DistanceMatrix extends BasicDistanceMatrix {
         }
 
 
-        synchronized double[][] getDistances(Alignment alignment, ProgressListener progress) {
-            this.alignment = alignment;
+        synchronized double[][] getDistances(Patterns source, ProgressListener progress) {
+            this.source = source;
+            this.patterns = new CompressedPatterns(source).getPatterns();
 
-            final int stateCount = alignment.getSequenceType().getCanonicalStateCount();
+            final int stateCount = source.getSequenceType().getCanonicalStateCount();
 
             if (stateCount != 4) {
                 throw new IllegalArgumentException("F84DistanceMatrix must have nucleotide patterns");
             }
 
-            int dimension = alignment.getTaxa().size();
+            int dimension = source.getTaxa().size();
             double[][] distances = new double[dimension][dimension];
             float tot = (dimension * (dimension - 1)) / 2;
             int done = 0;
@@ -1,11 +1,14 @@
 package jebl.evolution.distances;
 
-import jebl.evolution.alignments.Alignment;
+import jebl.evolution.alignments.CompressedPatterns;
 import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
 import jebl.evolution.sequences.Nucleotides;
 import jebl.evolution.sequences.State;
 import jebl.util.ProgressListener;
 
+import java.util.List;
+
 /**
  *  Compute HKY corrected distance matrix
  *
@@ -75,21 +78,22 @@ import jebl.util.ProgressListener;
 
 public class HKYDistanceMatrix extends BasicDistanceMatrix {
 
-    public HKYDistanceMatrix(Alignment alignment, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
+    public HKYDistanceMatrix(Patterns patterns, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
             throws CannotBuildDistanceMatrixException
     {
-        super(alignment.getTaxa(), new Initializer().getDistances(alignment, progress,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable));
+        super(patterns.getTaxa(), new Initializer().getDistances(patterns, progress,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable));
     }
 
-    public HKYDistanceMatrix(Alignment alignment, ProgressListener progress) throws CannotBuildDistanceMatrixException {
-        this(alignment,progress,false);
+    public HKYDistanceMatrix(Patterns patterns, ProgressListener progress) throws CannotBuildDistanceMatrixException {
+        this(patterns,progress,false);
     }
 
     static class Initializer extends ModelBasedDistanceMatrix implements PairwiseDistanceCalculator  {
         //
         // Private stuff
         //
-        private Alignment alignment;
+        private Patterns source;
+        private List<Pattern> patterns;
 
         //used in correction formula
         private double constA, constB, constC;
@@ -105,7 +109,7 @@ public class HKYDistanceMatrix extends BasicDistanceMatrix {
                                     // including identical columns (which have neither a transition nor a transversion) )
             boolean noGapsPairFound = false;
 
-            for( Pattern pattern : alignment.getPatterns() ) {
+            for( Pattern pattern : patterns ) {
                 State state1 = pattern.getState(taxon1);
                 State state2 = pattern.getState(taxon2);
 
@@ -169,23 +173,25 @@ public class HKYDistanceMatrix extends BasicDistanceMatrix {
         }
         
         private String getTaxonName(int index) {
-            return alignment.getSequenceList().get(index).getTaxon().getName();
+            return source.getTaxa().get(index).getName();
         }
 
 
-        double[][] getDistances(Alignment alignment, ProgressListener progress , boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
+        double[][] getDistances(Patterns source, ProgressListener progress , boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
                 throws CannotBuildDistanceMatrixException
         {
-            this.alignment = alignment;
+            final CompressedPatterns compressed = new CompressedPatterns(source);
+            this.source = source;
+            this.patterns = compressed.getPatterns();
 
             // ASK Alexei
-            final int stateCount = alignment.getSequenceType().getCanonicalStateCount();
+            final int stateCount = source.getSequenceType().getCanonicalStateCount();
 
             if (stateCount != 4) {
                 throw new IllegalArgumentException("HKYDistanceMatrix must have nucleotide patterns");
             }
 
-            double[] freqs = getFrequenciesSafe(alignment);
+            double[] freqs = getFrequenciesSafe(compressed);
 
             // Ask Alexei (mapping 0-a etc)
             double freqA = freqs[Nucleotides.A_STATE.getIndex()];
@@ -197,7 +203,7 @@ public class HKYDistanceMatrix extends BasicDistanceMatrix {
             constB = (freqA * freqG) + (freqC * freqT);
             constC = (freqR * freqY);
 
-            int dimension = alignment.getTaxa().size();
+            int dimension = source.getTaxa().size();
             return BasicDistanceMatrix.buildDistancesMatrix(this,dimension,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable,progress);
         }
     }
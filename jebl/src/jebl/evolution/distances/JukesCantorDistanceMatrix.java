@@ -1,11 +1,14 @@
 package jebl.evolution.distances;
 
-import jebl.evolution.alignments.Alignment;
+import jebl.evolution.alignments.CompressedPatterns;
 import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
 import jebl.evolution.sequences.SequenceType;
 import jebl.evolution.sequences.State;
 import jebl.util.ProgressListener;
 
+import java.util.List;
+
 /**
  * Compute jukes-cantor corrected distance matrix for a set of aligned sequences.
  * Adapted from BEAST code by joseph.
@@ -18,20 +21,22 @@ import jebl.util.ProgressListener;
 
 public class JukesCantorDistanceMatrix extends BasicDistanceMatrix {
 
-    public JukesCantorDistanceMatrix(Alignment alignment, ProgressListener progress) throws CannotBuildDistanceMatrixException {
-        this(alignment,progress,false);    
+    public JukesCantorDistanceMatrix(Patterns patterns, ProgressListener progress) throws CannotBuildDistanceMatrixException {
+        this(patterns,progress,false);    
     }
     
-    public JukesCantorDistanceMatrix(Alignment alignment, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
+    public JukesCantorDistanceMatrix(Patterns patterns, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
             throws CannotBuildDistanceMatrixException
     {
-        super(alignment.getTaxa(), new Initializer().getDistances(alignment, progress,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable));
+        super(patterns.getTaxa(), new Initializer().getDistances(patterns, progress,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable));
     }
 
     private static class Initializer implements PairwiseDistanceCalculator {
         // Helpers during construction
         private double maxTheoreticalSubsRate;
-        private Alignment alignment;
+        private Patterns source;
+        // distinct site patterns of the alignment, weighted by their number of sites
+        private List<Pattern> patterns;
         private static final double MAX_DISTANCE = 1000.0;
 
         /**
@@ -45,14 +50,14 @@ public class JukesCantorDistanceMatrix extends BasicDistanceMatrix {
             boolean noGapsPairFound = false;
 
             // If both sequences are of zero length then the substitution ratio is zero because they are identical
-            if(alignment.getPatterns().size() == 0)
+            if(patterns.size() == 0)
                 return 0.0;
 
-            for( Pattern pattern : alignment.getPatterns() ) {
+            for( Pattern pattern : patterns ) {
                 State state1 = pattern.getState(taxon1);
                 State state2 = pattern.getState(taxon2);
 
-                final double weight = pattern.getWeight(); //ALWAYS 1
+                final double weight = pattern.getWeight();
 
 
                 // ignore any ambiguous states or gaps
@@ -95,22 +100,23 @@ public class JukesCantorDistanceMatrix extends BasicDistanceMatrix {
             return Math.min(expDist, MAX_DISTANCE);
         }
 
-        synchronized double[][] getDistances(Alignment alignment, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
+        synchronized double[][] getDistances(Patterns source, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
                 throws CannotBuildDistanceMatrixException
         {
-            this.alignment = alignment;
+            this.source = source;
+            this.patterns = new CompressedPatterns(source).getPatterns();
 
             // Manually put in 4 and 20 because JEBL returns 22 for AA state count (includes pyrrolysine and selenocysteine)
-            int stateCount = alignment.getSequenceType().equals(SequenceType.NUCLEOTIDE) ? 4 : 20;
+            int stateCount = source.getSequenceType().equals(SequenceType.NUCLEOTIDE) ? 4 : 20;
 
             maxTheoreticalSubsRate = ((double)stateCount - 1) / stateCount;
 
-            int dimension = alignment.getTaxa().size();
+            int dimension = source.getTaxa().size();
             return BasicDistanceMatrix.buildDistancesMatrix(this,dimension,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable,progress);
         }
 
         private String getTaxonName(int index) {
-            return alignment.getSequenceList().get(index).getTaxon().getName();
+            return source.getTaxa().get(index).getName();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package jebl.evolution.distances;
+
+import jebl.evolution.alignments.CompressedPatterns;
+import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
+import jebl.evolution.likelihood.TreeLikelihood;
+import jebl.evolution.sequences.State;
+import jebl.evolution.substmodel.MatrixExponential;
+import jebl.evolution.substmodel.RateMatrix;
+import jebl.math.UnivariateFunction;
+import jebl.math.UnivariateMinimum;
+import jebl.util.ParallelUtils;
+import jebl.util.ProgressListener;
+
+import java.util.List;
+
+/**
+ * Maximum likelihood distances under any substitution model, for example {@link jebl.evolution.substmodel.WAG}
+ * for proteins.
+ *
+ * For each pair of sequences the sites are first reduced to a table of counts of each pair of states (sites where
+ * either sequence has a gap or an ambiguous state are ignored). The distance t maximising
+ * sum over states a,b of count(a,b) log P(t)[a][b] is then found with {@link UnivariateMinimum}, where P(t) is
+ * computed from one eigen decomposition of the rate matrix shared by all pairs. Only the non zero entries of the
+ * table are evaluated, so this is fast even for amino acids. The pairs are evaluated in parallel.
+ */
+public class MaximumLikelihoodDistanceMatrix extends BasicDistanceMatrix {
+
+    /**
+     * @param patterns   the aligned sequences, or their site patterns (for example a bootstrap replicate, see
+     *                   {@link jebl.evolution.alignments.ResampledPatterns})
+     * @param rateMatrix substitution model for the sequence type of the patterns
+     * @param progress   progress listener, or null
+     */
+    public MaximumLikelihoodDistanceMatrix(Patterns patterns, RateMatrix rateMatrix, ProgressListener progress)
+            throws CannotBuildDistanceMatrixException {
+        this(patterns, rateMatrix, progress, false, ParallelUtils.getDefaultThreadCount());
+    }
+
+    /**
+     * @param patterns    the aligned sequences, or their site patterns
+     * @param rateMatrix  substitution model for the sequence type of the patterns
+     * @param progress    progress listener, or null
+     * @param useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable
+     *                    if true pairs of sequences which do not overlap get twice the largest distance, otherwise
+     *                    they cause an exception
+     * @param threadCount number of threads. Values less than 1 mean one per processor.
+     */
+    public MaximumLikelihoodDistanceMatrix(Patterns patterns, RateMatrix rateMatrix, ProgressListener progress,
+                                           boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable,
+                                           int threadCount)
+            throws CannotBuildDistanceMatrixException {
+        super(patterns.getTaxa(), new Initializer(patterns, rateMatrix).getDistances(progress,
+                useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable, threadCount));
+    }
+
+    private static class Initializer implements PairwiseDistanceCalculator {
+        Initializer(Patterns source, RateMatrix rateMatrix) {
+            this.source = source;
+            final int[] matrixIndices = TreeLikelihood.getMatrixIndices(rateMatrix, source.getSequenceType());
+
+            // forces an AbstractRateMatrix to build its rates before they are read
+            rateMatrix.setDistance(0.0);
+            matrixExponential = new MatrixExponential(rateMatrix);
+            stateCount = rateMatrix.getDimension();
+
+            final List<Pattern> patterns = new CompressedPatterns(source).getPatterns();
+            final int taxonCount = source.getTaxa().size();
+            weights = new double[patterns.size()];
+            states = new int[taxonCount][patterns.size()];
+            for(int p = 0; p < patterns.size(); ++p) {
+                final Pattern pattern = patterns.get(p);
+                weights[p] = pattern.getWeight();
+                for(int i = 0; i < taxonCount; ++i) {
+                    final State state = pattern.getState(i);
+                    states[i][p] = state.isGap() || state.isAmbiguous() || state.getIndex() >= matrixIndices.length ?
+                            -1 : matrixIndices[state.getIndex()];
+                }
+            }
+        }
+
+        double[][] getDistances(ProgressListener progress,
+                                boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable, int threadCount)
+                throws CannotBuildDistanceMatrixException {
+            return buildDistancesMatrix(this, states.length, useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable,
+                    progress, threadCount);
+        }
+
+        public double calculatePairwiseDistance(int taxon1, int taxon2) throws CannotBuildDistanceMatrixException {
+            final int[] states1 = states[taxon1];
+            final int[] states2 = states[taxon2];
+
+            // counts of each pair of states, indexed as the transition probabilities
+            final double[] table = new double[stateCount * stateCount];
+            for(int p = 0; p < weights.length; ++p) {
+                if( states1[p] >= 0 && states2[p] >= 0 ) {
+                    table[states1[p] * stateCount + states2[p]] += weights[p];
+                }
+            }
+
+            int count = 0;
+            double total = 0.0;
+            double different = 0.0;
+            for(int k = 0; k < table.length; ++k) {
+                if( table[k] > 0 ) {
+                    ++count;
+                    total += table[k];
+                    if( k / stateCount != k % stateCount ) {
+                        different += table[k];
+                    }
+                }
+            }
+            if( total == 0.0 ) {
+                throw new CannotBuildDistanceMatrixException("maximum likelihood", getTaxonName(taxon1),
+                        getTaxonName(taxon2));
+            }
+            if( different == 0.0 ) {
+                return 0.0;
+            }
+
+            final int[] entries = new int[count];
+            final double[] counts = new double[count];
+            for(int k = 0, e = 0; k < table.length; ++k) {
+                if( table[k] > 0 ) {
+                    entries[e] = k;
+                    counts[e] = table[k];
+                    ++e;
+                }
+            }
+            final int entryCount = count;
+            final double[] probabilities = new double[count];
+            final UnivariateFunction minusLogLikelihood = new UnivariateFunction() {
+                public double evaluate(double distance) {
+                    matrixExponential.getTransitionProbabilities(distance, entries, entryCount, probabilities);
+                    double logL = 0.0;
+                    for(int e = 0; e < entryCount; ++e) {
+                        logL += counts[e] * Math.log(probabilities[e]);
+                    }
+                    return -logL;
+                }
+
+                public double getLowerBound() {
+                    return 0.0;
+                }
+
+                public double getUpperBound() {
+                    return MAX_DISTANCE;
+                }
+            };
+
+            // start from the Jukes-Cantor distance of the observed differences
+            final double b = (stateCount - 1.0) / stateCount;
+            final double p = different / total;
+            final double start = p < b ? Math.min(-b * Math.log(1.0 - p / b), MAX_DISTANCE / 2) : 1.0;
+
+            final double distance = new UnivariateMinimum().optimize(start, minusLogLikelihood, DISTANCE_TOLERANCE);
+            // saturated sequences: the likelihood keeps increasing (or becomes flat) towards infinity
+            if( minusLogLikelihood.evaluate(MAX_DISTANCE) <= minusLogLikelihood.evaluate(distance) ) {
+                return MAX_DISTANCE;
+            }
+            return distance;
+        }
+
+        private String getTaxonName(int index) {
+            return source.getTaxa().get(index).getName();
+        }
+
+        private final Patterns source;
+        private final MatrixExponential matrixExponential;
+        private final int stateCount;
+        // pattern weights
+        private final double[] weights;
+        // index in the rate matrix of the state of each taxon at each pattern, -1 for gaps and ambiguous states
+        private final int[][] states;
+    }
+
+    private static final double MAX_DISTANCE = 1000.0;
+    private static final double DISTANCE_TOLERANCE = 1e-7;
+}
@@ -1,9 +1,12 @@
 package jebl.evolution.distances;
 
 import jebl.evolution.alignments.Alignment;
+import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
 import jebl.evolution.sequences.Sequence;
 import jebl.evolution.sequences.SequenceType;
 import jebl.evolution.sequences.Nucleotides;
+import jebl.evolution.sequences.State;
 
 import java.util.List;
 
@@ -22,13 +25,13 @@ public class ModelBasedDistanceMatrix  {
      * @return array holding the count of each canonical state in the sequences.
      *         E.g. for nucleotide sequences, this array will have length 4.
      */
-    private int[] countStates(List<Sequence> sequences) {
+    private double[] countStates(List<Sequence> sequences) {
         if (sequences.isEmpty()) {
             throw new IllegalArgumentException("No sequences passed in - unable to determine sequence type");
         }
         SequenceType sequenceType = sequences.get(0).getSequenceType();
         final int canonicalStateCount = sequenceType.getCanonicalStateCount();
-        int[] counts = new int[canonicalStateCount];
+        double[] counts = new double[canonicalStateCount];
         for( Sequence sequence : sequences ) {
             if (!sequence.getSequenceType().equals(sequenceType)) {
                 throw new IllegalArgumentException("Sequences of mixed type");
@@ -44,14 +47,30 @@ public class ModelBasedDistanceMatrix  {
     }
 
     /**
-     * Same as countStates, but if any of the counts would normally be 0, this
-     * method adds 1 to each count to avoid counts of 0.
+     * Same as countStates(List<Sequence>), counting each state of a pattern as many times as the weight of the
+     * pattern.
+     */
+    private double[] countStates(Patterns patterns) {
+        final int canonicalStateCount = patterns.getSequenceType().getCanonicalStateCount();
+        final double[] counts = new double[canonicalStateCount];
+        for( Pattern pattern : patterns.getPatterns() ) {
+            final double weight = pattern.getWeight();
+            for( State state : pattern.getStates() ) {
+                if( state.getIndex() < canonicalStateCount ) {
+                    counts[state.getIndex()] += weight;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * If any of the counts is 0, adds 1 to each count to avoid counts of 0.
      *
-     * @param sequences
+     * @param counts state counts from countStates, adjusted in place
      * @return approximation of state counts, each guaranteed to be > 0.
      */
-    private int[] countStatesSafe(List<Sequence> sequences) {
-        int[] counts = countStates(sequences);
+    private double[] countStatesSafe(double[] counts) {
         int numSequences = counts.length;
 
         boolean anyZero = false;
@@ -70,26 +89,44 @@ public class ModelBasedDistanceMatrix  {
         return counts;
     }
 
-    private double[] getFrequenciesMaybeSafe(List<Sequence> sequences, boolean safe) {
-        SequenceType sequenceType = sequences.get(0).getSequenceType();
-        int[] counts = (safe ? countStatesSafe(sequences) : countStates(sequences));
+    private double[] getFrequenciesMaybeSafe(SequenceType sequenceType, double[] stateCounts, boolean safe) {
+        double[] counts = (safe ? countStatesSafe(stateCounts) : stateCounts);
         int canonicalStateCount = counts.length;
         double[] freqs = new double[canonicalStateCount];
 
         // calculate total number of residues
-        long count = 0;
+        double count = 0;
         for (int i=0; i < canonicalStateCount; i++) {
             count += counts[i];
         }
         for (int i=0; i < canonicalStateCount; i++) {
-            freqs[i] = (double) counts[i] / (double) count;
+            freqs[i] = counts[i] / count;
         }
 
+        setPurinePyrimidineFrequencies(sequenceType, freqs);
+        return freqs;
+    }
+
+    private double[] getFrequenciesMaybeSafe(List<Sequence> sequences, boolean safe) {
+        return getFrequenciesMaybeSafe(sequences.get(0).getSequenceType(), countStates(sequences), safe);
+    }
+
+    /**
+     * Same as getFrequenciesSafe(List<Sequence>), counting each state of a pattern as many times as the weight of
+     * the pattern. For the patterns of an alignment (compressed or not) the frequencies are those of its sequences.
+     *
+     * @param patterns site patterns, e.g. a bootstrap replicate
+     * @return Approximation of the relative canonical state frequencies in the patterns, each > 0.
+     */
+    protected double[] getFrequenciesSafe(Patterns patterns) {
+        return getFrequenciesMaybeSafe(patterns.getSequenceType(), countStates(patterns), true);
+    }
+
+    private void setPurinePyrimidineFrequencies(SequenceType sequenceType, double[] freqs) {
         if (sequenceType.equals(SequenceType.NUCLEOTIDE)) {
            freqR = freqs[Nucleotides.A_STATE.getIndex()] + freqs[Nucleotides.G_STATE.getIndex()];
            freqY = freqs[Nucleotides.C_STATE.getIndex()] + freqs[Nucleotides.T_STATE.getIndex()];
         }
-        return freqs;
     }
 
 
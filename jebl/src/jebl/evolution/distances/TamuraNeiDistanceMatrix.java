@@ -1,11 +1,14 @@
 package jebl.evolution.distances;
 
-import jebl.evolution.alignments.Alignment;
+import jebl.evolution.alignments.CompressedPatterns;
 import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
 import jebl.evolution.sequences.Nucleotides;
 import jebl.evolution.sequences.State;
 import jebl.util.ProgressListener;
 
+import java.util.List;
+
 /**
  * Date: 22/01/2006
  * Time: 17:28:59
@@ -34,16 +37,17 @@ public class TamuraNeiDistanceMatrix extends BasicDistanceMatrix {
     /**
      * @throws CannotBuildDistanceMatrixException only if useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable is false
      */
-    public TamuraNeiDistanceMatrix(Alignment alignment, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable) throws CannotBuildDistanceMatrixException {
-        super(alignment.getTaxa(), new Initializer().getDistances(alignment, progress, useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable));
+    public TamuraNeiDistanceMatrix(Patterns patterns, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable) throws CannotBuildDistanceMatrixException {
+        super(patterns.getTaxa(), new Initializer().getDistances(patterns, progress, useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable));
     }
-    public TamuraNeiDistanceMatrix(Alignment alignment, ProgressListener progress) throws CannotBuildDistanceMatrixException {
-        this(alignment,progress,false);
+    public TamuraNeiDistanceMatrix(Patterns patterns, ProgressListener progress) throws CannotBuildDistanceMatrixException {
+        this(patterns,progress,false);
     }
 
     static class Initializer extends ModelBasedDistanceMatrix implements PairwiseDistanceCalculator {
 
-        private Alignment alignment;
+        private Patterns source;
+        private List<Pattern> patterns;
 
         // used in correction formula
         private double constA1, constA2, constC;
@@ -60,7 +64,7 @@ public class TamuraNeiDistanceMatrix extends BasicDistanceMatrix {
             double sumWeight = 0.0;
             boolean noGapsPairFound = false;
 
-            for( Pattern pattern : alignment.getPatterns() ) {
+            for( Pattern pattern : patterns ) {
                 State state1 = pattern.getState(taxon1);
                 State state2 = pattern.getState(taxon2);
 
@@ -139,25 +143,27 @@ public class TamuraNeiDistanceMatrix extends BasicDistanceMatrix {
 
 
         private String getTaxonName(int index) {
-            return alignment.getSequenceList().get(index).getTaxon().getName();
+            return source.getTaxa().get(index).getName();
         }
 
         /**
          * @throws CannotBuildDistanceMatrixException only if useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable is false
          */
-        double[][] getDistances(Alignment alignment, ProgressListener progress , boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
+        double[][] getDistances(Patterns source, ProgressListener progress , boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
                 throws CannotBuildDistanceMatrixException
         {
-            this.alignment = alignment;
+            final CompressedPatterns compressed = new CompressedPatterns(source);
+            this.source = source;
+            this.patterns = compressed.getPatterns();
 
             // ASK Alexei
-            final int stateCount = alignment.getSequenceType().getCanonicalStateCount();
+            final int stateCount = source.getSequenceType().getCanonicalStateCount();
 
             if (stateCount != 4) {
                 throw new IllegalArgumentException("Tamura NeiDistanceMatrix must have nucleotide patterns");
             }
 
-            double[] freqs = getFrequenciesSafe(alignment);
+            double[] freqs = getFrequenciesSafe(compressed);
 
             double freqA = freqs[Nucleotides.A_STATE.getIndex()];
             double freqC = freqs[Nucleotides.C_STATE.getIndex()];
@@ -171,7 +177,7 @@ public class TamuraNeiDistanceMatrix extends BasicDistanceMatrix {
 
             assert(constA1 > 0.0 && constA2 > 0.0 && constC > 0.0);
 
-            final int dimension = alignment.getTaxa().size();
+            final int dimension = source.getTaxa().size();
             return BasicDistanceMatrix.buildDistancesMatrix(this, dimension, useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable, progress);
         }
 
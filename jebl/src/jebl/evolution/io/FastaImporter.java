@@ -1,6 +1,7 @@
 package jebl.evolution.io;
 
 import jebl.evolution.sequences.BasicSequence;
+import jebl.evolution.sequences.PackedNucleotideSequence;
 import jebl.evolution.sequences.Sequence;
 import jebl.evolution.sequences.SequenceType;
 import jebl.evolution.sequences.Utils;
@@ -40,6 +41,7 @@ public class FastaImporter implements SequenceImporter, ImmediateSequenceImporte
 
     private final Reader reader;
     private IllegalCharacterPolicy illegalCharacterPolicy = IllegalCharacterPolicy.abort;
+    private boolean packNucleotideSequences = false;
 
     /**
      * Use this constructor if you are reading from a file. The advantage over the
@@ -62,6 +64,14 @@ public class FastaImporter implements SequenceImporter, ImmediateSequenceImporte
         this.illegalCharacterPolicy = newPolicy;
     }
 
+    /**
+     * @param pack if true, nucleotide sequences are imported as {@link PackedNucleotideSequence}s, taking about a
+     *             quarter of the memory. Their strings hold state codes, so lower case and U are not preserved.
+     */
+    public void setPackNucleotideSequences(boolean pack) {
+        this.packNucleotideSequences = pack;
+    }
+
     /**
      * This constuctor takes a reader.
      *
@@ -195,7 +205,8 @@ public class FastaImporter implements SequenceImporter, ImmediateSequenceImporte
                 }
 
                 // now we need more again
-                BasicSequence sequence = new BasicSequence(type, taxon, seq);
+                Sequence sequence = ( packNucleotideSequences && type == SequenceType.NUCLEOTIDE ) ?
+                        new PackedNucleotideSequence(taxon, seq) : new BasicSequence(type, taxon, seq);
 
                 // get rid of memory used by the builder
                 seq.setLength(0); seq.trimToSize(); // System.gc();
@@ -0,0 +1,979 @@
+package jebl.evolution.likelihood;
+
+import jebl.evolution.alignments.CompressedPatterns;
+import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.sequences.State;
+import jebl.evolution.substmodel.AminoAcidModel;
+import jebl.evolution.substmodel.MatrixExponential;
+import jebl.evolution.substmodel.RateMatrix;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.RootedTreeTraversal;
+import jebl.evolution.trees.SimpleRootedTree;
+import jebl.math.MultivariateFunction;
+import jebl.math.OrthogonalHints;
+import jebl.math.UnivariateFunction;
+import jebl.math.UnivariateMinimum;
+import jebl.util.ParallelUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The likelihood of a rooted tree and its branch lengths for a set of site patterns under a substitution model
+ * given by a {@link RateMatrix}, computed by Felsenstein's pruning algorithm.
+ *
+ * Identical site patterns are merged and counted once, weighted by the sum of their weights. The partial
+ * likelihoods of each internal node are held in one flat array, pattern by pattern and state by state within a
+ * pattern, and are rescaled (keeping the log of the scale factors) whenever they become small enough to risk
+ * underflow. Tips with an unambiguous state are kept as a state index rather than partials. The transition
+ * probability matrix of each branch is cached and only recomputed when the branch length changes.
+ *
+ * Changing a branch length marks the nodes above the branch as dirty, and only those are recomputed by the next
+ * {@link #getLogLikelihood()}. Partials, scale factors and matrices are double buffered: {@link #storeState()}
+ * saves the current state and a later change writes the other buffer of each node it touches, so that
+ * {@link #restoreState()} (to reject a proposed change) only switches the touched nodes back to their stored
+ * buffers, without recomputing or copying any partials.
+ *
+ * Patterns are processed in contiguous blocks ({@link #setBlockSize}), which are evaluated in parallel when more
+ * than one thread is requested ({@link #setThreadCount}, releasing the threads with {@link #close()}) or a pool
+ * of threads is given ({@link #setExecutor}). Sums over patterns are formed for each block and then
+ * added in block order, so results are bit for bit the same whatever the number of threads.
+ *
+ * Nodes are identified by their index in a pre-order traversal of the tree, the root being 0; the branch above
+ * node i (i &gt; 0) has index i. Branch lengths can be optimised one at a time by Newton-Raphson using the
+ * derivatives from {@link #getBranchDerivatives} ({@link #optimiseBranchLengths}), or through
+ * {@link #getBranchLengthFunction(int)} and {@link #getBranchLengthsFunction()} with {@link UnivariateMinimum} or a
+ * {@link jebl.math.MultivariateMinimum}.
+ */
+public class TreeLikelihood {
+
+    /**
+     * @param tree       a rooted tree whose tips are the taxa of the patterns. Its branch lengths (in expected
+     *                   substitutions per site) are the starting values.
+     * @param patterns   site patterns
+     * @param rateMatrix substitution model for the sequence type of the patterns
+     */
+    public TreeLikelihood(RootedTree tree, Patterns patterns, RateMatrix rateMatrix) {
+        this(tree, patterns, rateMatrix, null);
+    }
+
+    /**
+     * @param tree              a rooted tree whose tips are the taxa of the patterns. Its branch lengths (in
+     *                          expected substitutions per site) are the starting values.
+     * @param patterns          site patterns
+     * @param rateMatrix        substitution model for the sequence type of the patterns
+     * @param matrixExponential decomposition of rateMatrix, which may be shared by several likelihoods (and
+     *                          threads) along with its cache of transition probabilities, or null to make one.
+     */
+    public TreeLikelihood(RootedTree tree, Patterns patterns, RateMatrix rateMatrix,
+                          MatrixExponential matrixExponential) {
+        this.tree = tree;
+        this.traversal = new RootedTreeTraversal(tree);
+        this.stateCount = rateMatrix.getDimension();
+
+        final SequenceType sequenceType = patterns.getSequenceType();
+        final int[] matrixIndices = getMatrixIndices(rateMatrix, sequenceType);
+
+        // forces an AbstractRateMatrix to build its rates before they are read
+        rateMatrix.setDistance(0.0);
+        this.matrixExponential = matrixExponential != null ? matrixExponential : new MatrixExponential(rateMatrix);
+        frequencies = new double[stateCount];
+        rates = new double[stateCount * stateCount];
+        final double[][] relativeRates = rateMatrix.getRelativeRates();
+        for(int i = 0; i < stateCount; ++i) {
+            frequencies[i] = rateMatrix.getEquilibriumFrequency(i);
+            System.arraycopy(relativeRates[i], 0, rates, i * stateCount, stateCount);
+        }
+
+        // merge identical patterns
+        final CompressedPatterns compressed = new CompressedPatterns(patterns);
+        final List<Pattern> unique = compressed.getPatterns();
+        patternCount = unique.size();
+        patternWeights = compressed.getPatternWeights();
+
+        final int nodeCount = traversal.getNodeCount();
+        final List<Taxon> taxa = patterns.getTaxa();
+        final Map<Taxon, Integer> rows = new HashMap<Taxon, Integer>(2 * taxa.size());
+        for(int k = 0; k < taxa.size(); ++k) {
+            rows.put(taxa.get(k), k);
+        }
+
+        parents = traversal.getParentIndices();
+        tipStates = new int[nodeCount][];
+        tipPartials = new double[nodeCount][];
+        partials = new double[2][nodeCount][];
+        scaleFactors = new double[2][nodeCount][];
+        currentPartials = new int[nodeCount];
+        storedPartials = new int[nodeCount];
+        dirty = new boolean[nodeCount];
+        dirtyNodes = new int[nodeCount];
+        touched = new boolean[nodeCount];
+        touchedNodes = new int[nodeCount];
+        for(int node = 0; node < nodeCount; ++node) {
+            if( traversal.isExternal(node) ) {
+                final Taxon taxon = tree.getTaxon(traversal.getNode(node));
+                final Integer row = rows.get(taxon);
+                if( row == null ) {
+                    throw new IllegalArgumentException("Taxon " + taxon + " of the tree is not in the patterns");
+                }
+                setTipData(node, row, unique, matrixIndices);
+            } else {
+                for(int b = 0; b < 2; ++b) {
+                    partials[b][node] = new double[patternCount * stateCount];
+                    scaleFactors[b][node] = new double[patternCount];
+                }
+                dirty[node] = true;
+                dirtyNodes[dirtyCount++] = node;
+            }
+        }
+
+        lengths = new double[nodeCount];
+        storedLengths = new double[nodeCount];
+        matrices = new double[2][nodeCount][];
+        matrixLengths = new double[2][nodeCount];
+        currentMatrices = new int[nodeCount];
+        storedMatrices = new int[nodeCount];
+        for(int node = 1; node < nodeCount; ++node) {
+            lengths[node] = tree.getLength(traversal.getNode(node));
+            for(int b = 0; b < 2; ++b) {
+                matrices[b][node] = new double[stateCount * stateCount];
+                matrixLengths[b][node] = Double.NaN;
+            }
+        }
+        System.arraycopy(lengths, 0, storedLengths, 0, nodeCount);
+        branchMatrices = new double[3][stateCount * stateCount];
+        outside = new double[patternCount * stateCount];
+        outsideStore = new double[patternCount * stateCount];
+        path = new int[nodeCount];
+        blockValues = new double[3][(patternCount + blockSize - 1) / blockSize];
+    }
+
+    /**
+     * @return number of nodes of the tree
+     */
+    public int getNodeCount() {
+        return traversal.getNodeCount();
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return index of node
+     */
+    public int getNodeIndex(Node node) {
+        return traversal.getIndex(node);
+    }
+
+    /**
+     * @param index node index
+     * @return the node of the tree with this index
+     */
+    public Node getNode(int index) {
+        return traversal.getNode(index);
+    }
+
+    /**
+     * @return number of distinct site patterns
+     */
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * @param node node index (not the root)
+     * @return length of the branch above node
+     */
+    public double getBranchLength(int node) {
+        return lengths[node];
+    }
+
+    /**
+     * @param node   node index (not the root)
+     * @param length new length of the branch above node
+     */
+    public void setBranchLength(int node, double length) {
+        if( node == 0 ) {
+            throw new IllegalArgumentException("The root has no branch");
+        }
+        if( length < 0 ) {
+            throw new IllegalArgumentException("Negative branch length " + length);
+        }
+        if( length == lengths[node] ) {
+            return;
+        }
+        touch(node);
+        lengths[node] = length;
+        // a dirty node's ancestors are all dirty
+        for(int a = parents[node]; a >= 0 && !dirty[a]; a = parents[a]) {
+            dirty[a] = true;
+            dirtyNodes[dirtyCount++] = a;
+        }
+    }
+
+    /**
+     * @return the log likelihood for the current branch lengths
+     */
+    public double getLogLikelihood() {
+        if( dirtyCount == 0 ) {
+            return logLikelihood;
+        }
+
+        // nodes to update, children first (parents have smaller indices than their children). Their buffers and
+        // the matrices below them are set up here, so that the blocks of patterns only write partials.
+        Arrays.sort(dirtyNodes, 0, dirtyCount);
+        final int[] nodes = new int[dirtyCount];
+        for(int k = 0; k < dirtyCount; ++k) {
+            final int node = dirtyNodes[dirtyCount - 1 - k];
+            nodes[k] = node;
+            dirty[node] = false;
+            touch(node);
+            currentPartials[node] = 1 - storedPartials[node];
+            for(int c = 0; c < traversal.getChildCount(node); ++c) {
+                getMatrix(traversal.getChild(node, c));
+            }
+        }
+        dirtyCount = 0;
+
+        final double[] blockLogL = blockValues[0];
+        forEachBlock(new BlockTask() {
+            void run(int block, int start, int end) {
+                for( int node : nodes ) {
+                    updatePartials(node, start, end);
+                }
+                final double[] rootPartials = partials[currentPartials[0]][0];
+                final double[] rootScale = scaleFactors[currentPartials[0]][0];
+                double logL = 0.0;
+                for(int p = start, v = start * stateCount; p < end; ++p) {
+                    double sum = 0.0;
+                    for(int i = 0; i < stateCount; ++i, ++v) {
+                        sum += frequencies[i] * rootPartials[v];
+                    }
+                    logL += patternWeights[p] * (Math.log(sum) + rootScale[p]);
+                }
+                blockLogL[block] = logL;
+            }
+        });
+
+        double logL = 0.0;
+        for( double x : blockLogL ) {
+            logL += x;
+        }
+        logLikelihood = logL;
+        return logL;
+    }
+
+    /**
+     * @param threadCount number of threads evaluating blocks of patterns in parallel. The default is 1; values
+     *                    less than 1 mean one per processor. The result does not depend on the number of threads.
+     *                    With more than one thread this likelihood starts a pool of threads of its own, which is
+     *                    kept until {@link #close()} is called or the number of threads is changed. To share one
+     *                    pool between several likelihoods, use {@link #setExecutor(ExecutorService, int)} instead.
+     */
+    public void setThreadCount(int threadCount) {
+        if( threadCount < 1 ) {
+            threadCount = ParallelUtils.getDefaultThreadCount();
+        }
+        if( threadCount == this.threadCount && (executor == null || ownsExecutor) ) {
+            return;
+        }
+        close();
+        this.threadCount = threadCount;
+        if( threadCount > 1 ) {
+            executor = ParallelUtils.newThreadPool(threadCount);
+            ownsExecutor = true;
+        }
+    }
+
+    /**
+     * Evaluate blocks of patterns in parallel on a pool of threads owned by the caller, who shuts it down when it is
+     * no longer needed. Replaces (and shuts down) any pool started by {@link #setThreadCount(int)}.
+     *
+     * @param executor    pool of threads, or null to evaluate on the calling thread
+     * @param threadCount number of tasks the blocks of patterns are divided between, normally the number of
+     *                    threads of executor
+     */
+    public void setExecutor(ExecutorService executor, int threadCount) {
+        close();
+        if( executor != null && threadCount > 1 ) {
+            this.executor = executor;
+            this.threadCount = threadCount;
+        }
+    }
+
+    /**
+     * Shut down the pool of threads started by {@link #setThreadCount(int)}, if any; a pool given to
+     * {@link #setExecutor(ExecutorService, int)} is left to its owner. The likelihood may still be used afterwards,
+     * and is then evaluated on the calling thread.
+     */
+    public void close() {
+        if( executor != null && ownsExecutor ) {
+            executor.shutdown();
+        }
+        executor = null;
+        ownsExecutor = false;
+        threadCount = 1;
+    }
+
+    /**
+     * @param blockSize number of patterns in each block evaluated as one task (the default is 256). The log
+     *                  likelihood is summed over each block, then over the blocks in order, so the result depends
+     *                  on the block size (in its last bits) but not on the number of threads.
+     */
+    public void setBlockSize(int blockSize) {
+        if( blockSize < 1 ) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.blockSize = blockSize;
+        blockValues = new double[3][(patternCount + blockSize - 1) / blockSize];
+        // sums over blocks of patterns must be recomputed
+        if( dirtyCount == 0 && partials[0][0] != null ) {
+            dirty[0] = true;
+            dirtyNodes[dirtyCount++] = 0;
+        }
+    }
+
+    /**
+     * Save the current state (branch lengths and everything computed from them), to be returned to by
+     * {@link #restoreState()}.
+     */
+    public void storeState() {
+        getLogLikelihood();
+        for(int k = 0; k < touchedCount; ++k) {
+            final int node = touchedNodes[k];
+            storedPartials[node] = currentPartials[node];
+            storedMatrices[node] = currentMatrices[node];
+            storedLengths[node] = lengths[node];
+            touched[node] = false;
+        }
+        touchedCount = 0;
+        storedLogLikelihood = logLikelihood;
+        hasStoredState = true;
+    }
+
+    /**
+     * Return to the state saved by the last {@link #storeState()}. Takes time proportional to the number of nodes
+     * changed since then, not to the number of patterns.
+     */
+    public void restoreState() {
+        if( !hasStoredState ) {
+            throw new IllegalStateException("No state has been stored");
+        }
+        for(int k = 0; k < touchedCount; ++k) {
+            final int node = touchedNodes[k];
+            currentPartials[node] = storedPartials[node];
+            currentMatrices[node] = storedMatrices[node];
+            lengths[node] = storedLengths[node];
+            touched[node] = false;
+        }
+        touchedCount = 0;
+        for(int k = 0; k < dirtyCount; ++k) {
+            dirty[dirtyNodes[k]] = false;
+        }
+        dirtyCount = 0;
+        logLikelihood = storedLogLikelihood;
+    }
+
+    /**
+     * The first and second derivatives of the log likelihood with respect to the length of one branch, computed
+     * exactly from the partials below the branch and the partials of the rest of the tree seen from its top (which
+     * are built along the path from the root, in time proportional to the depth of the node).
+     *
+     * @param node        node index (not the root)
+     * @param derivatives set to the first and second derivative
+     * @return the log likelihood
+     */
+    public double getBranchDerivatives(int node, double[] derivatives) {
+        if( node == 0 ) {
+            throw new IllegalArgumentException("The root has no branch");
+        }
+        final double logL = getLogLikelihood();
+        getBranchLogLikelihood(node, computeOutside(node), lengths[node], derivatives);
+        return logL;
+    }
+
+    /**
+     * Optimise the length of one branch by Newton-Raphson, holding the others fixed. The rest of the tree is not
+     * recomputed until the new length is set.
+     *
+     * @param node node index (not the root)
+     * @return the new log likelihood
+     */
+    public double optimiseBranchLength(int node) {
+        if( node == 0 ) {
+            throw new IllegalArgumentException("The root has no branch");
+        }
+        getLogLikelihood();
+        final double[] out = computeOutside(node);
+        final double[] derivatives = new double[2];
+        double length = lengths[node];
+        double value = getBranchLogLikelihood(node, out, length, derivatives);
+        for(int iteration = 0; iteration < MAX_NEWTON_ITERATIONS; ++iteration) {
+            double next;
+            if( derivatives[1] < 0 ) {
+                next = length - derivatives[0] / derivatives[1];
+            } else {
+                // not concave here, move uphill
+                next = derivatives[0] > 0 ? 2 * length + BRANCH_LENGTH_TOLERANCE : length / 2;
+            }
+            next = Math.min(Math.max(next, 0.0), MAX_BRANCH_LENGTH);
+
+            // shorten the step until it does not lower the likelihood
+            double nextValue = getBranchLogLikelihood(node, out, next, derivatives);
+            for(int k = 0; nextValue < value && k < MAX_STEP_HALVINGS; ++k) {
+                next = (length + next) / 2;
+                nextValue = getBranchLogLikelihood(node, out, next, derivatives);
+            }
+            if( nextValue < value ) {
+                break;
+            }
+            final boolean converged = Math.abs(next - length) < BRANCH_LENGTH_TOLERANCE;
+            length = next;
+            value = nextValue;
+            if( converged ) {
+                break;
+            }
+        }
+        setBranchLength(node, length);
+        return getLogLikelihood();
+    }
+
+    /**
+     * Optimise each branch length in turn by Newton-Raphson, holding the others fixed, and repeat until the log
+     * likelihood improves by less than tolerance.
+     *
+     * @param tolerance stop when a round over all branches improves the log likelihood by less than this
+     * @return the final log likelihood
+     */
+    public double optimiseBranchLengths(double tolerance) {
+        double logL = getLogLikelihood();
+        while( true ) {
+            for(int node = 1; node < getNodeCount(); ++node) {
+                optimiseBranchLength(node);
+            }
+            final double newLogL = getLogLikelihood();
+            if( newLogL - logL < tolerance ) {
+                return newLogL;
+            }
+            logL = newLogL;
+        }
+    }
+
+    /**
+     * @param node node index (not the root)
+     * @return minus the log likelihood as a function of the length of the branch above node, the other branch
+     *         lengths being fixed. Evaluating it sets the branch length.
+     */
+    public UnivariateFunction getBranchLengthFunction(final int node) {
+        if( node == 0 ) {
+            throw new IllegalArgumentException("The root has no branch");
+        }
+        return new UnivariateFunction() {
+            public double evaluate(double length) {
+                return -getLogLikelihoodWithLength(node, length);
+            }
+
+            public double getLowerBound() {
+                return 0.0;
+            }
+
+            public double getUpperBound() {
+                return MAX_BRANCH_LENGTH;
+            }
+        };
+    }
+
+    /**
+     * @return minus the log likelihood as a function of all branch lengths, argument k being the length of the
+     *         branch above node k + 1. Evaluating it sets the branch lengths.
+     */
+    public MultivariateFunction getBranchLengthsFunction() {
+        return new MultivariateFunction() {
+            public double evaluate(double[] argument) {
+                for(int k = 0; k < argument.length; ++k) {
+                    // minimisers may step slightly outside the bounds
+                    setBranchLength(k + 1, Math.max(argument[k], 0.0));
+                }
+                return -getLogLikelihood();
+            }
+
+            public int getNumArguments() {
+                return getNodeCount() - 1;
+            }
+
+            public double getLowerBound(int n) {
+                return 0.0;
+            }
+
+            public double getUpperBound(int n) {
+                return MAX_BRANCH_LENGTH;
+            }
+
+            public OrthogonalHints getOrthogonalHints() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return a copy of the tree with the current branch lengths
+     */
+    public SimpleRootedTree getTree() {
+        final Map<Node, Node> mapping = new HashMap<Node, Node>();
+        final SimpleRootedTree copy = new SimpleRootedTree(tree, mapping);
+        for(int node = 1; node < getNodeCount(); ++node) {
+            copy.setLength(mapping.get(traversal.getNode(node)), lengths[node]);
+        }
+        return copy;
+    }
+
+    private double getLogLikelihoodWithLength(int node, double length) {
+        setBranchLength(node, Math.max(length, 0.0));
+        return getLogLikelihood();
+    }
+
+    /**
+     * @return the partials of the tree without the subtree of node, for each state at the top of the branch above
+     *         node, up to a scale factor for each pattern. The partials of the tree must be up to date.
+     */
+    private double[] computeOutside(int node) {
+        int depth = 0;
+        for(int a = node; a != 0; a = parents[a]) {
+            path[depth++] = a;
+        }
+        final int steps = depth;
+
+        forEachBlock(new BlockTask() {
+            void run(int block, int start, int end) {
+                final int n = stateCount;
+                double[] out = outside;
+                for(int p = start; p < end; ++p) {
+                    System.arraycopy(frequencies, 0, out, p * n, n);
+                }
+                for(int k = steps - 1; k >= 0; --k) {
+                    final int below = path[k];
+                    final int a = parents[below];
+                    for(int c = 0; c < traversal.getChildCount(a); ++c) {
+                        final int child = traversal.getChild(a, c);
+                        if( child != below ) {
+                            accumulate(child, getCurrentMatrix(child), out, false, start, end);
+                        }
+                    }
+                    if( k > 0 ) {
+                        // down the branch to below: out'[j] = sum over i of out[i] P[i][j]
+                        final double[] matrix = getCurrentMatrix(below);
+                        final double[] next = out == outside ? outsideStore : outside;
+                        for(int p = start, v = start * n; p < end; ++p, v += n) {
+                            for(int j = 0; j < n; ++j) {
+                                double sum = 0.0;
+                                for(int i = 0; i < n; ++i) {
+                                    sum += out[v + i] * matrix[i * n + j];
+                                }
+                                next[v + j] = sum;
+                            }
+                        }
+                        out = next;
+                    }
+                    // only ratios of likelihoods of a pattern are taken, so the scale factors need not be kept
+                    rescale(out, null, start, end);
+                }
+            }
+        });
+        // one swap per step down
+        return (steps - 1) % 2 == 0 ? outside : outsideStore;
+    }
+
+    /**
+     * @param node        node index
+     * @param out         partials at the top of the branch above node from {@link #computeOutside}
+     * @param length      length of the branch
+     * @param derivatives set to the first and second derivatives of the log likelihood
+     * @return the log likelihood, less a constant depending on the rest of the tree only
+     */
+    private double getBranchLogLikelihood(int node, final double[] out, double length, double[] derivatives) {
+        // P'(t) = Q P(t) and P''(t) = Q Q P(t)
+        final double[] matrix = branchMatrices[0];
+        final double[] first = branchMatrices[1];
+        final double[] second = branchMatrices[2];
+        computeMatrix(length, matrix);
+        multiply(rates, matrix, first);
+        multiply(rates, first, second);
+
+        final int[] states = tipStates[node];
+        final double[] below = states != null ? tipPartials[node] : partials[currentPartials[node]][node];
+        final double[][] values = blockValues;
+        forEachBlock(new BlockTask() {
+            void run(int block, int start, int end) {
+                final int n = stateCount;
+                double logL = 0.0;
+                double d1 = 0.0;
+                double d2 = 0.0;
+                for(int p = start, v = start * n; p < end; ++p, v += n) {
+                    final int s = states != null ? states[p] : -1;
+                    double f = 0.0, f1 = 0.0, f2 = 0.0;
+                    for(int i = 0; i < n; ++i) {
+                        double g = 0.0, g1 = 0.0, g2 = 0.0;
+                        if( s >= 0 ) {
+                            g = matrix[i * n + s];
+                            g1 = first[i * n + s];
+                            g2 = second[i * n + s];
+                        } else {
+                            for(int j = 0; j < n; ++j) {
+                                final double x = below[v + j];
+                                g += matrix[i * n + j] * x;
+                                g1 += first[i * n + j] * x;
+                                g2 += second[i * n + j] * x;
+                            }
+                        }
+                        f += out[v + i] * g;
+                        f1 += out[v + i] * g1;
+                        f2 += out[v + i] * g2;
+                    }
+                    final double r1 = f1 / f;
+                    logL += patternWeights[p] * Math.log(f);
+                    d1 += patternWeights[p] * r1;
+                    d2 += patternWeights[p] * (f2 / f - r1 * r1);
+                }
+                values[0][block] = logL;
+                values[1][block] = d1;
+                values[2][block] = d2;
+            }
+        });
+
+        double logL = 0.0;
+        derivatives[0] = 0.0;
+        derivatives[1] = 0.0;
+        for(int b = 0; b < values[0].length; ++b) {
+            logL += values[0][b];
+            derivatives[0] += values[1][b];
+            derivatives[1] += values[2][b];
+        }
+        return logL;
+    }
+
+    /**
+     * Run task on each block of patterns, on the thread pool if there is one.
+     */
+    private void forEachBlock(final BlockTask task) {
+        final int blockCount = blockValues[0].length;
+        final int taskCount = executor == null ? 1 : Math.min(threadCount, blockCount);
+        if( taskCount <= 1 ) {
+            for(int b = 0; b < blockCount; ++b) {
+                task.run(b, b * blockSize, Math.min((b + 1) * blockSize, patternCount));
+            }
+            return;
+        }
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(taskCount);
+        for(int t = 0; t < taskCount; ++t) {
+            final int firstBlock = t;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for(int b = firstBlock; b < blockCount; b += taskCount) {
+                        task.run(b, b * blockSize, Math.min((b + 1) * blockSize, patternCount));
+                    }
+                    return null;
+                }
+            });
+        }
+        ParallelUtils.invokeAll(tasks, executor);
+    }
+
+    /**
+     * Computation on a block of patterns, which must only write values of its own patterns (or of its block).
+     */
+    private static abstract class BlockTask {
+        abstract void run(int block, int start, int end);
+    }
+
+    /**
+     * Compute the partials of an internal node for patterns start to end - 1 from those of its children.
+     */
+    private void updatePartials(int node, int start, int end) {
+        final int buffer = currentPartials[node];
+        final double[] nodePartials = partials[buffer][node];
+        final double[] nodeScale = scaleFactors[buffer][node];
+        final int childCount = traversal.getChildCount(node);
+
+        for(int k = 0; k < childCount; ++k) {
+            final int child = traversal.getChild(node, k);
+            final boolean first = k == 0;
+            accumulate(child, getCurrentMatrix(child), nodePartials, first, start, end);
+            final double[] childScale = scaleFactors[currentPartials[child]][child];
+            if( first ) {
+                if( childScale == null ) {
+                    Arrays.fill(nodeScale, start, end, 0.0);
+                } else {
+                    System.arraycopy(childScale, start, nodeScale, start, end - start);
+                }
+            } else if( childScale != null ) {
+                for(int p = start; p < end; ++p) {
+                    nodeScale[p] += childScale[p];
+                }
+            }
+        }
+        rescale(nodePartials, nodeScale, start, end);
+    }
+
+    /**
+     * Rescale patterns whose partials are all small, adding the logs of the scale factors to scale if not null.
+     */
+    private void rescale(double[] values, double[] scale, int start, int end) {
+        for(int p = start, v = start * stateCount; p < end; ++p, v += stateCount) {
+            double max = 0.0;
+            for(int i = 0; i < stateCount; ++i) {
+                max = Math.max(max, values[v + i]);
+            }
+            if( max < SCALING_THRESHOLD && max > 0.0 ) {
+                final double r = 1.0 / max;
+                for(int i = 0; i < stateCount; ++i) {
+                    values[v + i] *= r;
+                }
+                if( scale != null ) {
+                    scale[p] += Math.log(max);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set (if first) or multiply out by the probabilities of the data below child given each state at the top of
+     * its branch.
+     */
+    private void accumulate(int child, double[] matrix, double[] out, boolean first, int start, int end) {
+        if( tipStates[child] != null ) {
+            accumulateTip(tipStates[child], tipPartials[child], matrix, out, first, start, end);
+        } else {
+            accumulateInternal(partials[currentPartials[child]][child], matrix, out, first, start, end);
+        }
+    }
+
+    private void accumulateTip(int[] states, double[] statePartials, double[] matrix, double[] out, boolean first,
+                               int start, int end) {
+        final int n = stateCount;
+        for(int p = start, v = start * n; p < end; ++p, v += n) {
+            final int s = states[p];
+            if( s >= 0 ) {
+                if( first ) {
+                    for(int i = 0; i < n; ++i) {
+                        out[v + i] = matrix[i * n + s];
+                    }
+                } else {
+                    for(int i = 0; i < n; ++i) {
+                        out[v + i] *= matrix[i * n + s];
+                    }
+                }
+            } else {
+                for(int i = 0; i < n; ++i) {
+                    double sum = 0.0;
+                    for(int j = 0; j < n; ++j) {
+                        sum += matrix[i * n + j] * statePartials[v + j];
+                    }
+                    out[v + i] = first ? sum : out[v + i] * sum;
+                }
+            }
+        }
+    }
+
+    private void accumulateInternal(double[] childPartials, double[] matrix, double[] out, boolean first,
+                                    int start, int end) {
+        final int n = stateCount;
+        for(int p = start, v = start * n; p < end; ++p, v += n) {
+            for(int i = 0, m = 0; i < n; ++i) {
+                double sum = 0.0;
+                for(int j = 0; j < n; ++j, ++m) {
+                    sum += matrix[m] * childPartials[v + j];
+                }
+                out[v + i] = first ? sum : out[v + i] * sum;
+            }
+        }
+    }
+
+    /**
+     * @return transition probabilities along the branch above node, P[i * stateCount + j] being the probability
+     *         of going from state i to state j.
+     */
+    private double[] getMatrix(int node) {
+        int buffer = currentMatrices[node];
+        if( lengths[node] != matrixLengths[buffer][node] ) {
+            touch(node);
+            buffer = 1 - storedMatrices[node];
+            currentMatrices[node] = buffer;
+            computeMatrix(lengths[node], matrices[buffer][node]);
+            matrixLengths[buffer][node] = lengths[node];
+        }
+        return matrices[buffer][node];
+    }
+
+    /**
+     * @return the matrix of the branch above node, which must be up to date. Safe to call from the block tasks.
+     */
+    private double[] getCurrentMatrix(int node) {
+        return matrices[currentMatrices[node]][node];
+    }
+
+    private void computeMatrix(double length, double[] matrix) {
+        matrixExponential.getTransitionProbabilities(length, matrix, 0);
+    }
+
+    /**
+     * Record that node has changed since the last {@link #storeState()}.
+     */
+    private void touch(int node) {
+        if( !touched[node] ) {
+            touched[node] = true;
+            touchedNodes[touchedCount++] = node;
+        }
+    }
+
+    /**
+     * c = a b for square matrices of dimension stateCount held by row.
+     */
+    private void multiply(double[] a, double[] b, double[] c) {
+        final int n = stateCount;
+        for(int i = 0; i < n; ++i) {
+            for(int j = 0; j < n; ++j) {
+                double sum = 0.0;
+                for(int k = 0; k < n; ++k) {
+                    sum += a[i * n + k] * b[k * n + j];
+                }
+                c[i * n + j] = sum;
+            }
+        }
+    }
+
+    private void setTipData(int node, int row, List<Pattern> unique, int[] matrixIndices) {
+        final int[] states = new int[patternCount];
+        double[] statePartials = null;
+        for(int p = 0; p < patternCount; ++p) {
+            final State state = unique.get(p).getState(row);
+            states[p] = state.isGap() || state.isAmbiguous() ? -1 : getMatrixIndex(state, matrixIndices);
+            if( states[p] < 0 ) {
+                // ambiguous states allow any of their canonical states in the model, others (gaps, states not in
+                // the model) any state
+                if( statePartials == null ) {
+                    statePartials = new double[patternCount * stateCount];
+                }
+                final int v = p * stateCount;
+                boolean any = false;
+                if( !state.isGap() ) {
+                    for( State s : state.getCanonicalStates() ) {
+                        final int i = getMatrixIndex(s, matrixIndices);
+                        if( i >= 0 ) {
+                            statePartials[v + i] = 1.0;
+                            any = true;
+                        }
+                    }
+                }
+                if( !any ) {
+                    Arrays.fill(statePartials, v, v + stateCount, 1.0);
+                }
+            }
+        }
+        tipStates[node] = states;
+        tipPartials[node] = statePartials;
+    }
+
+    private static int getMatrixIndex(State state, int[] matrixIndices) {
+        return state.getIndex() < matrixIndices.length ? matrixIndices[state.getIndex()] : -1;
+    }
+
+    /**
+     * Map the states of a sequence type to the rows of a rate matrix. The rows of an {@link AminoAcidModel} are in
+     * the order {@link AminoAcidModel#AMINO_ACID_ORDER}, those of other matrices in state index order.
+     *
+     * @param rateMatrix   a rate matrix
+     * @param sequenceType type of the data the matrix is applied to
+     * @return index in the rate matrix of each canonical state of sequenceType (-1 if the model does not have it),
+     *         indexed by state index
+     * @throws IllegalArgumentException if the matrix is for another sequence type
+     */
+    public static int[] getMatrixIndices(RateMatrix rateMatrix, SequenceType sequenceType) {
+        if( rateMatrix.getSequenceType() != null && rateMatrix.getSequenceType() != sequenceType ) {
+            throw new IllegalArgumentException("A " + rateMatrix.getSequenceType().getName() +
+                    " rate matrix cannot be used with " + sequenceType.getName() + " data");
+        }
+        final int[] indices = new int[sequenceType.getCanonicalStateCount()];
+        for( State state : sequenceType.getCanonicalStates() ) {
+            if( rateMatrix instanceof AminoAcidModel ) {
+                // selenocysteine and pyrrolysine are not in the amino acid models
+                indices[state.getIndex()] = AminoAcidModel.AMINO_ACID_ORDER.indexOf(state.getCode());
+            } else {
+                indices[state.getIndex()] = state.getIndex() < rateMatrix.getDimension() ? state.getIndex() : -1;
+            }
+        }
+        return indices;
+    }
+
+    // partials whose largest value is below this are rescaled
+    private static final double SCALING_THRESHOLD = 1.0 / (1L << 62) / (1L << 62);
+    private static final double MAX_BRANCH_LENGTH = 10.0;
+    private static final double BRANCH_LENGTH_TOLERANCE = 1e-6;
+    private static final int MAX_NEWTON_ITERATIONS = 20;
+    private static final int MAX_STEP_HALVINGS = 10;
+    private static final int DEFAULT_BLOCK_SIZE = 256;
+
+    private final RootedTree tree;
+    private final RootedTreeTraversal traversal;
+    private final int[] parents;
+    private final int stateCount;
+    private final int patternCount;
+    private final double[] patternWeights;
+
+    private final MatrixExponential matrixExponential;
+    private final double[] frequencies;
+    // the rate matrix Q, by row
+    private final double[] rates;
+
+    // tips: matrix index of the state of each pattern, -1 where the partials in tipPartials are used instead
+    private final int[][] tipStates;
+    private final double[][] tipPartials;
+
+    // per node, indexed by node index. Matrices (P[i * stateCount + j] of the branch above a node), partials (by
+    // pattern and state, internal nodes only) and the sums of the logs of the scale factors below each pattern
+    // are indexed by [buffer][node]; current* holds the buffer of each node in use and stored* the one saved by
+    // storeState(). A buffer is never written while it holds stored values.
+    private final double[] lengths;
+    private final double[] storedLengths;
+    private final double[][][] matrices;
+    private final double[][] matrixLengths;
+    private final int[] currentMatrices;
+    private final int[] storedMatrices;
+    private final double[][][] partials;
+    private final double[][][] scaleFactors;
+    private final int[] currentPartials;
+    private final int[] storedPartials;
+
+    // internal nodes whose partials must be recomputed
+    private final boolean[] dirty;
+    private final int[] dirtyNodes;
+    private int dirtyCount = 0;
+    // nodes whose length, matrix or partials have changed since storeState()
+    private final boolean[] touched;
+    private final int[] touchedNodes;
+    private int touchedCount = 0;
+
+    private double logLikelihood = 0.0;
+    private double storedLogLikelihood;
+    private boolean hasStoredState = false;
+
+    private int threadCount = 1;
+    private ExecutorService executor = null;
+    // true if executor was started by setThreadCount, and so is shut down by close()
+    private boolean ownsExecutor = false;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    // per block sums of the log likelihood and its derivatives
+    private double[][] blockValues;
+
+    // work space for branch derivatives: P, P' and P'' of the branch, and partials outside the branch
+    private final double[][] branchMatrices;
+    private final double[] outside;
+    private final double[] outsideStore;
+    private final int[] path;
+}
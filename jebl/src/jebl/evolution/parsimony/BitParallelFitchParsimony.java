@@ -0,0 +1,381 @@
+package jebl.evolution.parsimony;
+
+import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.sequences.State;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.RootedTreeTraversal;
+import jebl.evolution.trees.Tree;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fitch parsimony with the state sets of 64 patterns packed into each long word, giving the same scores and
+ * reconstructions as {@link FitchParsimony}.
+ *
+ * The state set of a node is held as one word per (block of 64 patterns, state), bit p of the word for state s
+ * being set when s is in the set of pattern p of the block. Unions and intersections for a block are then a few
+ * word operations, and the steps of a block are counted by popcount. The tips' sets are built once from the
+ * patterns in the constructor; scoring a tree only maps its tips to taxa, and does not allocate when called again
+ * with a tree of the same size.
+ */
+public class BitParallelFitchParsimony implements ParsimonyCriterion {
+
+	public BitParallelFitchParsimony(List<Pattern> patterns, boolean gapsAreStates) {
+		if (patterns == null || patterns.size() == 0) {
+			throw new IllegalArgumentException("The patterns cannot be null or empty");
+		}
+
+		this.sequenceType = patterns.get(0).getSequenceType();
+		this.gapsAreStates = gapsAreStates;
+		this.patterns = patterns;
+
+		if (gapsAreStates) {
+			stateCount = sequenceType.getCanonicalStateCount() + 1;
+		} else {
+			stateCount = sequenceType.getCanonicalStateCount();
+		}
+
+		patternCount = patterns.size();
+		wordCount = (patternCount + 63) >> 6;
+		lastWordMask = (patternCount & 63) == 0 ? -1L : (1L << (patternCount & 63)) - 1;
+		blockSize = wordCount * stateCount;
+
+		weights = new double[patternCount];
+		boolean uniform = true;
+		for (int i = 0; i < patternCount; i++) {
+			weights[i] = patterns.get(i).getWeight();
+			uniform = uniform && weights[i] == weights[0];
+		}
+		uniformWeight = uniform ? weights[0] : Double.NaN;
+
+		// tip state sets, one per taxon
+		final List<Taxon> taxa = patterns.get(0).getTaxa();
+		taxonIndices = new HashMap<Taxon, Integer>(2 * taxa.size());
+		tipSets = new long[taxa.size()][blockSize];
+		for (int t = 0; t < taxa.size(); t++) {
+			taxonIndices.put(taxa.get(t), t);
+			fillTipSet(patterns, t, stateCount, gapsAreStates, tipSets[t]);
+		}
+
+		siteScores = new double[patternCount];
+	}
+
+	public BitParallelFitchParsimony(Patterns patterns, boolean gapsAreStates) {
+		this(patterns.getPatterns(), gapsAreStates);
+	}
+
+	/**
+	 * Calculates the minimum number of steps for each pattern. The returned array is reused by
+	 * subsequent calls.
+	 *
+	 * @param tree a tree object to reconstruct the characters on. Must be a binary RootedTree.
+	 * @return number of parsimony steps for each pattern
+	 */
+	public double[] getSiteScores(Tree tree) {
+		setTree(tree);
+
+		if (!hasCalculatedSiteScores) {
+			calculateSteps(true);
+			hasCalculatedSiteScores = true;
+			hasCalculatedScore = true;
+		}
+		return siteScores;
+	}
+
+	/**
+	 * @param tree a tree object to reconstruct the characters on. Must be a binary RootedTree.
+	 * @return the total weighted number of steps
+	 */
+	public double getScore(Tree tree) {
+		setTree(tree);
+
+		if (!hasCalculatedScore) {
+			calculateSteps(false);
+			hasCalculatedScore = true;
+		}
+		return score;
+	}
+
+	/**
+	 * Returns the reconstructed character states for a given node in the tree. If this method is repeatedly
+	 * called with the same tree and patterns then only the first call will reconstruct the states and each
+	 * subsequent call will return the stored states.
+	 *
+	 * @param tree a tree object to reconstruct the characters on. Must be a binary RootedTree.
+	 * @param node the node of the tree
+	 * @return an array containing the reconstructed states for this node
+	 */
+	public State[] getStates(Tree tree, Node node) {
+		getScore(tree);
+
+		if (!hasReconstructedStates) {
+			reconstructStates();
+			hasReconstructedStates = true;
+		}
+
+		final int n = traversal.getIndex(node);
+		if (states[n] == null) {
+			final State[] nodeStates = new State[patternCount];
+			if (traversal.isExternal(n)) {
+				final int taxon = tipTaxa[n];
+				for (int i = 0; i < patternCount; i++) {
+					nodeStates[i] = patterns.get(i).getState(taxon);
+				}
+			} else {
+				final long[] chosen = nodeSets[n];
+				for (int i = 0; i < patternCount; i++) {
+					final int offset = blockSize + (i >> 6) * stateCount;
+					final long bit = 1L << i;
+					int s = 0;
+					while ((chosen[offset + s] & bit) == 0) {
+						++s;
+					}
+					nodeStates[i] = sequenceType.getState(s);
+				}
+			}
+			states[n] = nodeStates;
+		}
+		return states[n];
+	}
+
+	/**
+	 * Fill in the packed state set of a tip: bit i % 64 of word (i / 64) * stateCount + s is set when state s is
+	 * one of the states of the taxon in pattern i.
+	 *
+	 * @param patterns      the patterns
+	 * @param taxon         index of taxon in the patterns
+	 * @param stateCount    number of states, including the gap state if gaps are states
+	 * @param gapsAreStates if true, gaps are the last state. Otherwise gaps are treated as any state.
+	 * @param set           array to set, of length stateCount * number of words, initially all zero
+	 */
+	static void fillTipSet(List<Pattern> patterns, int taxon, int stateCount, boolean gapsAreStates, long[] set) {
+		for (int i = 0; i < patterns.size(); i++) {
+			final State state = patterns.get(i).getState(taxon);
+			final int offset = (i >> 6) * stateCount;
+			final long bit = 1L << i;
+			if (gapsAreStates && state.isGap()) {
+				set[offset + stateCount - 1] |= bit;
+			} else {
+				for (State canonicalState : state.getCanonicalStates()) {
+					set[offset + canonicalState.getIndex()] |= bit;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prepare the node arrays for tree, unless it is the tree of the last call and has not changed since.
+	 */
+	private void setTree(Tree tree) {
+		if (tree == null) {
+			throw new IllegalArgumentException("The tree cannot be null");
+		}
+
+		if (!(tree instanceof RootedTree)) {
+			throw new IllegalArgumentException("The tree must be an instance of rooted tree");
+		}
+
+		final RootedTree rootedTree = (RootedTree) tree;
+		RootedTreeTraversal t = RootedTreeTraversal.getCached(rootedTree);
+		if (rootedTree == this.tree && (t == null || t == traversal)) {
+			return;
+		}
+		if (t == null) {
+			t = new RootedTreeTraversal(rootedTree);
+		}
+
+		// forget the last tree until the arrays are set up for this one
+		this.tree = null;
+
+		final int nodeCount = t.getNodeCount();
+		for (int n = 0; n < nodeCount; n++) {
+			if (!t.isExternal(n) && t.getChildCount(n) != 2) {
+				throw new IllegalArgumentException("The Fitch algorithm can only reconstruct ancestral states on binary trees");
+			}
+		}
+
+		if (nodeSets == null || nodeSets.length != nodeCount) {
+			nodeSets = new long[nodeCount][];
+			tipTaxa = new int[nodeCount];
+			states = new State[nodeCount][];
+		}
+
+		int buffer = 0;
+		for (int n = 0; n < nodeCount; n++) {
+			states[n] = null;
+			if (t.isExternal(n)) {
+				final Taxon taxon = rootedTree.getTaxon(t.getNode(n));
+				final Integer index = taxonIndices.get(taxon);
+				if (index == null) {
+					throw new IllegalArgumentException("Unknown taxon, " + taxon.getName() + " in tree");
+				}
+				tipTaxa[n] = index;
+				nodeSets[n] = tipSets[index];
+			} else {
+				// internal node buffers are reused from tree to tree
+				if (buffer == buffers.length) {
+					final long[][] b = new long[Math.max(16, 2 * buffers.length)][];
+					System.arraycopy(buffers, 0, b, 0, buffers.length);
+					buffers = b;
+				}
+				if (buffers[buffer] == null) {
+					buffers[buffer] = new long[2 * blockSize];
+				}
+				nodeSets[n] = buffers[buffer];
+				++buffer;
+			}
+		}
+
+		this.tree = rootedTree;
+		this.traversal = t;
+		hasCalculatedScore = false;
+		hasCalculatedSiteScores = false;
+		hasReconstructedStates = false;
+	}
+
+	/**
+	 * This is the first pass of the Fitch algorithm. This calculates the set of states at each node and the
+	 * total score, and the number of steps at each site if requested.
+	 *
+	 * @param countSites whether to count the steps of each site
+	 */
+	private void calculateSteps(boolean countSites) {
+		if (countSites) {
+			for (int i = 0; i < patternCount; i++) {
+				siteScores[i] = 0;
+			}
+		}
+
+		final boolean weighted = Double.isNaN(uniformWeight);
+		long steps = 0;
+		double weightedSteps = 0;
+
+		for (int n : traversal.getPostOrder()) {
+			if (traversal.isExternal(n)) {
+				continue;
+			}
+			final long[] set = nodeSets[n];
+			final long[] left = nodeSets[traversal.getChild(n, 0)];
+			final long[] right = nodeSets[traversal.getChild(n, 1)];
+
+			for (int w = 0, offset = 0; w < wordCount; w++, offset += stateCount) {
+				long nonEmpty = 0;
+				for (int s = offset; s < offset + stateCount; s++) {
+					final long intersection = left[s] & right[s];
+					set[s] = intersection;
+					nonEmpty |= intersection;
+				}
+
+				long empty = ~nonEmpty;
+				if (w == wordCount - 1) {
+					empty &= lastWordMask;
+				}
+				if (empty == 0) {
+					continue;
+				}
+
+				// the union where the intersection is empty, and one step
+				for (int s = offset; s < offset + stateCount; s++) {
+					set[s] |= (left[s] | right[s]) & empty;
+				}
+				steps += Long.bitCount(empty);
+				if (weighted || countSites) {
+					for (long bits = empty; bits != 0; bits &= bits - 1) {
+						final int i = (w << 6) | Long.numberOfTrailingZeros(bits);
+						weightedSteps += weights[i];
+						if (countSites) {
+							siteScores[i] += 1;
+						}
+					}
+				}
+			}
+		}
+
+		score = weighted ? weightedSteps : steps * uniformWeight;
+	}
+
+	/**
+	 * The second pass of the Fitch algorithm. For each internal node, the chosen state of each pattern is that of
+	 * the parent if it is in the node's set, and otherwise the first state in the node's set. The chosen states
+	 * are stored as single state sets, after the node's state set in the same array.
+	 */
+	private void reconstructStates() {
+		final int[] parents = traversal.getParentIndices();
+
+		// pre-order: a parent is reconstructed before its children
+		for (int n = 0; n < traversal.getNodeCount(); n++) {
+			if (traversal.isExternal(n)) {
+				continue;
+			}
+			final long[] set = nodeSets[n];
+			final long[] chosen = set;
+			final long[] parentChosen = parents[n] >= 0 ? nodeSets[parents[n]] : null;
+
+			for (int w = 0, offset = 0; w < wordCount; w++, offset += stateCount) {
+				long kept = 0;
+				if (parentChosen != null) {
+					for (int s = offset; s < offset + stateCount; s++) {
+						final long k = set[s] & parentChosen[blockSize + s];
+						chosen[blockSize + s] = k;
+						kept |= k;
+					}
+				} else {
+					for (int s = offset; s < offset + stateCount; s++) {
+						chosen[blockSize + s] = 0;
+					}
+				}
+
+				long rest = ~kept;
+				for (int s = offset; s < offset + stateCount && rest != 0; s++) {
+					final long first = set[s] & rest;
+					chosen[blockSize + s] |= first;
+					rest &= ~first;
+				}
+			}
+		}
+
+	}
+
+	private final SequenceType sequenceType;
+	private final boolean gapsAreStates;
+	private final List<Pattern> patterns;
+
+	private final int stateCount;
+	private final int patternCount;
+	private final int wordCount;
+	private final long lastWordMask;
+	// number of words in the state set of one node
+	private final int blockSize;
+
+	private final double[] weights;
+	// the weight of all patterns if they are equal, NaN otherwise
+	private final double uniformWeight;
+
+	private final Map<Taxon, Integer> taxonIndices;
+	// state sets of tips, indexed by taxon
+	private final long[][] tipSets;
+
+	private RootedTree tree = null;
+	private RootedTreeTraversal traversal = null;
+
+	// indexed by node index of the traversal. Tips share the sets in tipSets.
+	private long[][] nodeSets = null;
+	private int[] tipTaxa = null;
+	private State[][] states = null;
+
+	// pool of internal node arrays, each holding a state set followed by the chosen states
+	private long[][] buffers = new long[0][];
+
+	private boolean hasCalculatedScore = false;
+	private boolean hasCalculatedSiteScores = false;
+	private boolean hasReconstructedStates = false;
+
+	private double score;
+	private final double[] siteScores;
+}
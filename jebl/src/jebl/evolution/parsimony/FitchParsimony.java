@@ -25,7 +25,12 @@ import java.util.Map;
 
 /**
  * Class for reconstructing characters using Fitch parsimony. This is intended to be much faster
- * than the static methods in the utility "Parsimony" class.
+ * than the static methods in the utility "Parsimony" class. For scoring many trees see
+ * {@link BitParallelFitchParsimony}, which gives the same results.
+ *
+ * Scores are weighted by pattern, so the {@link jebl.evolution.alignments.CompressedPatterns} of an alignment
+ * give the same score as the alignment in less time (site scores and states are then those of the distinct
+ * patterns).
  *
  * @author Andrew Rambaut
  * @author Alexei Drummond
@@ -0,0 +1,1020 @@
+package jebl.evolution.parsimony;
+
+import jebl.evolution.alignments.Pattern;
+import jebl.evolution.alignments.Patterns;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.RootedTreeTraversal;
+import jebl.evolution.trees.SimpleRootedTree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fitch parsimony score of a binary tree which is rearranged by subtree prune and regraft (SPR) and nearest
+ * neighbour interchange (NNI) moves, for tree search.
+ *
+ * The tree is held as arrays of node indices (tips are 0 ... getExternalNodeCount() - 1), and for every node
+ * three packed state sets as in {@link BitParallelFitchParsimony}: the downpass set of the node's subtree, the
+ * uppass set of the rest of the tree seen from the node, and the set of the edge above the node (the Fitch set of
+ * a root placed on that edge). Since the Fitch score of a binary tree does not depend on the position of the root,
+ * regrafting a subtree with downpass set S onto an edge with set E adds one step for each pattern for which S and E
+ * have no state in common. Scoring a move therefore only needs the sets of the tree without the pruned subtree,
+ * which differ from the stored ones only on the path from the prune point up to the first unchanged downpass set,
+ * and below that path. Applying a move updates the stored sets in the same way.
+ *
+ * Moves are scored by a {@link MoveEvaluator}. Several evaluators may be used concurrently (one per thread), as
+ * long as the tree is not changed at the same time.
+ */
+public class IncrementalParsimony {
+
+    public IncrementalParsimony(List<Pattern> patterns, boolean gapsAreStates) {
+        if( patterns == null || patterns.size() == 0 ) {
+            throw new IllegalArgumentException("The patterns cannot be null or empty");
+        }
+
+        final SequenceType sequenceType = patterns.get(0).getSequenceType();
+        stateCount = sequenceType.getCanonicalStateCount() + (gapsAreStates ? 1 : 0);
+
+        final int patternCount = patterns.size();
+        wordCount = (patternCount + 63) >> 6;
+        lastWordMask = (patternCount & 63) == 0 ? -1L : (1L << (patternCount & 63)) - 1;
+        blockSize = wordCount * stateCount;
+
+        weights = new double[patternCount];
+        boolean uniform = true;
+        for(int i = 0; i < patternCount; ++i) {
+            weights[i] = patterns.get(i).getWeight();
+            uniform = uniform && weights[i] == weights[0];
+        }
+        uniformWeight = uniform ? weights[0] : Double.NaN;
+
+        final List<Taxon> taxa = patterns.get(0).getTaxa();
+        taxonIndices = new HashMap<Taxon, Integer>(2 * taxa.size());
+        this.taxa = new Taxon[taxa.size()];
+        tipSets = new long[taxa.size()][blockSize];
+        for(int t = 0; t < taxa.size(); ++t) {
+            this.taxa[t] = taxa.get(t);
+            taxonIndices.put(taxa.get(t), t);
+            BitParallelFitchParsimony.fillTipSet(patterns, t, stateCount, gapsAreStates, tipSets[t]);
+        }
+    }
+
+    public IncrementalParsimony(Patterns patterns, boolean gapsAreStates) {
+        this(patterns.getPatterns(), gapsAreStates);
+    }
+
+    /**
+     * Set the tree to score and rearrange. The tree itself is not changed by later moves.
+     *
+     * @param tree a binary tree whose tips are taxa of the patterns
+     */
+    public void setTree(RootedTree tree) {
+        RootedTreeTraversal t = RootedTreeTraversal.getCached(tree);
+        if( t == null ) {
+            t = new RootedTreeTraversal(tree);
+        }
+
+        final int count = t.getNodeCount();
+        int tips = 0;
+        for(int n = 0; n < count; ++n) {
+            if( t.isExternal(n) ) {
+                ++tips;
+            } else if( t.getChildCount(n) != 2 ) {
+                throw new IllegalArgumentException("The Fitch algorithm can only reconstruct ancestral states on binary trees");
+            }
+        }
+        if( tips < 2 ) {
+            throw new IllegalArgumentException("The tree must have at least two tips");
+        }
+
+        allocate();
+        externalNodeCount = tips;
+        nodeCount = count;
+        for(int k = 0; k < taxonNodes.length; ++k) {
+            taxonNodes[k] = -1;
+        }
+
+        // tips first, internal nodes after, both in pre-order
+        final int[] numbers = new int[count];
+        int nextTip = 0, nextInternal = tips;
+        for(int n = 0; n < count; ++n) {
+            numbers[n] = t.isExternal(n) ? nextTip++ : nextInternal++;
+        }
+        final int[] parents = t.getParentIndices();
+        for(int n = 0; n < count; ++n) {
+            final int i = numbers[n];
+            parent[i] = parents[n] < 0 ? -1 : numbers[parents[n]];
+            if( t.isExternal(n) ) {
+                final Taxon taxon = tree.getTaxon(t.getNode(n));
+                final Integer index = taxonIndices.get(taxon);
+                if( index == null ) {
+                    throw new IllegalArgumentException("Unknown taxon, " + taxon.getName() + " in tree");
+                }
+                if( taxonNodes[index] >= 0 ) {
+                    throw new IllegalArgumentException("Duplicate taxon, " + taxon.getName() + " in tree");
+                }
+                tipTaxa[i] = index;
+                taxonNodes[index] = i;
+                down[i] = tipSets[index];
+                allocateEdge(i);
+            } else {
+                allocateInternal(i);
+                children[2 * i] = numbers[t.getChild(n, 0)];
+                children[2 * i + 1] = numbers[t.getChild(n, 1)];
+            }
+        }
+        root = numbers[0];
+
+        for( int n : t.getPostOrder() ) {
+            final int i = numbers[n];
+            if( i >= externalNodeCount ) {
+                steps[i] = fitch(down[children[2 * i]], down[children[2 * i + 1]], down[i], true);
+            }
+        }
+        updateUpPass(root, -1, -1);
+        updateNumbering();
+        updateScore();
+        ++version;
+    }
+
+    /**
+     * Allocate node arrays large enough for a tree of all taxa. State sets are allocated as nodes are created.
+     */
+    private void allocate() {
+        if( parent != null ) {
+            return;
+        }
+        final int capacity = 2 * taxa.length - 1;
+        parent = new int[capacity];
+        children = new int[2 * capacity];
+        tipTaxa = new int[capacity];
+        taxonNodes = new int[taxa.length];
+        steps = new double[capacity];
+        down = new long[capacity][];
+        internalDown = new long[capacity][];
+        up = new long[capacity][];
+        edge = new long[capacity][];
+        preOrder = new int[capacity];
+        lastDescendant = new int[capacity];
+        stack = new int[capacity];
+        regionNodes = new int[capacity];
+        regionParents = new int[capacity];
+        marks = new int[capacity];
+        scratch = new long[blockSize];
+    }
+
+    private void allocateInternal(int node) {
+        if( internalDown[node] == null ) {
+            internalDown[node] = new long[blockSize];
+        }
+        down[node] = internalDown[node];
+        allocateEdge(node);
+    }
+
+    private void allocateEdge(int node) {
+        if( up[node] == null ) {
+            up[node] = new long[blockSize];
+            edge[node] = new long[blockSize];
+        }
+    }
+
+    /**
+     * @return parsimony score of the current tree
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * @return number of nodes in the tree
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return number of tips. Tips are nodes 0 to getExternalNodeCount() - 1.
+     */
+    public int getExternalNodeCount() {
+        return externalNodeCount;
+    }
+
+    /**
+     * @return the root node
+     */
+    public int getRoot() {
+        return root;
+    }
+
+    /**
+     * @param node node
+     * @return parent of node, -1 for the root
+     */
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    /**
+     * @param node internal node
+     * @param k    0 or 1
+     * @return k'th child of node
+     */
+    public int getChild(int node, int k) {
+        return children[2 * node + k];
+    }
+
+    /**
+     * @param node node
+     * @return true if node is a tip
+     */
+    public boolean isExternal(int node) {
+        return node < externalNodeCount;
+    }
+
+    /**
+     * @param node a tip
+     * @return taxon of tip
+     */
+    public Taxon getTaxon(int node) {
+        return taxa[tipTaxa[node]];
+    }
+
+    /**
+     * @param ancestor node
+     * @param node     node
+     * @return true if ancestor is node or an ancestor of node
+     */
+    public boolean isAncestor(int ancestor, int node) {
+        return preOrder[ancestor] <= preOrder[node] && preOrder[node] <= lastDescendant[ancestor];
+    }
+
+    /**
+     * @param node   root of the subtree to prune
+     * @param target node above which the subtree is regrafted
+     * @return true if the move is possible. Regrafting to the original position is possible, and leaves the tree
+     *         unchanged.
+     */
+    public boolean isValidSPR(int node, int target) {
+        return parent[node] >= 0 && target != parent[node] && !isAncestor(node, target);
+    }
+
+    /**
+     * Prune the subtree of node and regraft it on the edge above target (above the root if target is the root of
+     * the tree without the subtree).
+     *
+     * @param node   root of the subtree to prune
+     * @param target node above which the subtree is regrafted
+     */
+    public void applySPR(int node, int target) {
+        if( !isValidSPR(node, target) ) {
+            throw new IllegalArgumentException("Invalid SPR move");
+        }
+        final int p = parent[node];
+        final int q = getSibling(node);
+        final int g = parent[p];
+
+        // remove p, joining q to g
+        if( g >= 0 ) {
+            replaceChild(g, p, q);
+        } else {
+            root = q;
+        }
+        parent[q] = g;
+
+        // reuse p as the new parent of node and target
+        final int h = parent[target];
+        if( h >= 0 ) {
+            replaceChild(h, target, p);
+        } else {
+            root = p;
+        }
+        parent[p] = h;
+        replaceChild(p, q, target);
+        parent[target] = p;
+
+        // p and g have new children. Recompute the uppass below the highest changed downpass sets.
+        int region = updateDownPass(p, true);
+        region = g >= 0 ? getCommonAncestor(region, updateDownPass(g, false)) : root;
+        updateUpPass(region, -1, -1);
+
+        updateNumbering();
+        updateScore();
+        ++version;
+    }
+
+    /**
+     * Exchange node with the sibling of its parent. This is the SPR move of node to the edge above the sibling of
+     * its parent.
+     *
+     * @param node node, whose parent is not the root
+     */
+    public void applyNNI(int node) {
+        applySPR(node, getNNITarget(node));
+    }
+
+    /**
+     * @param node a node
+     * @return the sibling of the parent of node, or -1 if the parent of node is the root
+     */
+    public int getNNITarget(int node) {
+        final int p = parent[node];
+        return p < 0 || parent[p] < 0 ? -1 : getSibling(p);
+    }
+
+    /**
+     * @param node   root of the subtree to prune
+     * @param reroot node of the subtree above which the subtree is rerooted
+     * @param target node above which the subtree is regrafted
+     * @return true if the move is possible
+     */
+    public boolean isValidTBR(int node, int reroot, int target) {
+        return isValidSPR(node, target) && isAncestor(node, reroot);
+    }
+
+    /**
+     * Tree bisection and reconnection: prune the subtree of node, reroot it on the edge above reroot, and regraft
+     * it on the edge above target. If reroot is node or one of its children this is the SPR move of node to
+     * target.
+     *
+     * @param node   root of the subtree to prune
+     * @param reroot node of the subtree above which the subtree is rerooted
+     * @param target node above which the subtree is regrafted
+     */
+    public void applyTBR(int node, int reroot, int target) {
+        if( !isValidTBR(node, reroot, target) ) {
+            throw new IllegalArgumentException("Invalid TBR move");
+        }
+        if( reroot != node && parent[reroot] != node ) {
+            rerootSubtree(node, reroot);
+        }
+        applySPR(node, target);
+    }
+
+    /**
+     * Reroot the subtree of node on the edge above reroot, keeping node as its root. The downpass sets of the
+     * subtree are updated; everything else is left to the following SPR.
+     */
+    private void rerootSubtree(int node, int reroot) {
+        // path from node down to reroot
+        int k = 0;
+        for(int a = reroot; a != node; a = parent[a]) {
+            ++k;
+        }
+        final int[] path = new int[k + 1];
+        for(int a = reroot, i = k; i >= 0; a = parent[a], --i) {
+            path[i] = a;
+        }
+
+        // each node on the path takes its parent on the path as a child, in place of its child on the path
+        final int other = getSibling(path[1]);
+        for(int i = 1; i < k; ++i) {
+            replaceChild(path[i], path[i + 1], i == 1 ? other : path[i - 1]);
+            parent[path[i]] = i == k - 1 ? node : path[i + 1];
+        }
+        parent[other] = path[1];
+        children[2 * node] = reroot;
+        children[2 * node + 1] = path[k - 1];
+        parent[reroot] = node;
+
+        for(int i = 1; i < k; ++i) {
+            final int a = path[i];
+            steps[a] = fitch(down[children[2 * a]], down[children[2 * a + 1]], down[a], true);
+        }
+        steps[node] = fitch(down[children[2 * node]], down[children[2 * node + 1]], down[node], true);
+    }
+
+    /**
+     * Add a tip to the tree, on the edge above target (above the root if target is the root). Internal nodes may be
+     * renumbered so that tips stay numbered before internal nodes: the node numbered getExternalNodeCount() before
+     * the call is renumbered getNodeCount().
+     *
+     * @param taxon  a taxon of the patterns which is not in the tree
+     * @param target node above which to add the tip
+     * @return the new tip
+     */
+    public int addTip(Taxon taxon, int target) {
+        final int index = getTaxonIndex(taxon);
+        if( taxonNodes[index] >= 0 ) {
+            throw new IllegalArgumentException("Taxon " + taxon.getName() + " already in tree");
+        }
+
+        final int tip = externalNodeCount;
+        if( tip < nodeCount ) {
+            moveNode(tip, nodeCount);
+            if( target == tip ) {
+                target = nodeCount;
+            }
+        }
+        final int x = nodeCount + 1;
+        nodeCount += 2;
+        ++externalNodeCount;
+
+        tipTaxa[tip] = index;
+        taxonNodes[index] = tip;
+        down[tip] = tipSets[index];
+        allocateEdge(tip);
+        allocateInternal(x);
+
+        final int h = parent[target];
+        if( h >= 0 ) {
+            replaceChild(h, target, x);
+        } else {
+            root = x;
+        }
+        parent[x] = h;
+        children[2 * x] = target;
+        children[2 * x + 1] = tip;
+        parent[target] = x;
+        parent[tip] = x;
+
+        updateUpPass(updateDownPass(x, true), -1, -1);
+        updateNumbering();
+        updateScore();
+        ++version;
+        return tip;
+    }
+
+    /**
+     * Score of the tree with a tip added for taxon above target, without adding it.
+     * This does not change the tree, so may be called concurrently with move evaluators.
+     *
+     * @param taxon  a taxon of the patterns which is not in the tree
+     * @param target node above which to add the tip
+     * @param bound  stop counting once the score is known to be at least bound
+     * @return score of the tree with the tip, or a value not smaller than bound if that score is not smaller
+     *         than bound
+     */
+    public double getAddTipScore(Taxon taxon, int target, double bound) {
+        final long[] e = target == root ? down[root] : edge[target];
+        return score + cost(tipSets[getTaxonIndex(taxon)], e, bound - score);
+    }
+
+    /**
+     * @param taxon a taxon
+     * @return true if the tree has a tip for taxon
+     */
+    public boolean containsTaxon(Taxon taxon) {
+        final Integer index = taxonIndices.get(taxon);
+        return index != null && parent != null && taxonNodes[index] >= 0;
+    }
+
+    private int getTaxonIndex(Taxon taxon) {
+        final Integer index = taxonIndices.get(taxon);
+        if( index == null ) {
+            throw new IllegalArgumentException("Unknown taxon, " + taxon.getName());
+        }
+        return index;
+    }
+
+    /**
+     * Renumber internal node from as to, which must be unused.
+     */
+    private void moveNode(int from, int to) {
+        parent[to] = parent[from];
+        children[2 * to] = children[2 * from];
+        children[2 * to + 1] = children[2 * from + 1];
+        steps[to] = steps[from];
+
+        long[] t = internalDown[to];
+        internalDown[to] = internalDown[from];
+        internalDown[from] = t;
+        down[to] = internalDown[to];
+        t = up[to];
+        up[to] = up[from];
+        up[from] = t;
+        t = edge[to];
+        edge[to] = edge[from];
+        edge[from] = t;
+
+        if( parent[to] >= 0 ) {
+            replaceChild(parent[to], from, to);
+        } else {
+            root = to;
+        }
+        parent[children[2 * to]] = to;
+        parent[children[2 * to + 1]] = to;
+    }
+
+    /**
+     * @return the current tree (without branch lengths)
+     */
+    public SimpleRootedTree getTree() {
+        final SimpleRootedTree tree = new SimpleRootedTree();
+        final Node[] nodes = new Node[nodeCount];
+        for(int i = 0; i < externalNodeCount; ++i) {
+            nodes[i] = tree.createExternalNode(getTaxon(i));
+        }
+
+        // children before parents: reverse pre-order
+        final int[] byPreOrder = new int[nodeCount];
+        for(int i = 0; i < nodeCount; ++i) {
+            byPreOrder[preOrder[i]] = i;
+        }
+        for(int k = nodeCount - 1; k >= 0; --k) {
+            final int i = byPreOrder[k];
+            if( i >= externalNodeCount ) {
+                final List<Node> c = new ArrayList<Node>(2);
+                c.add(nodes[children[2 * i]]);
+                c.add(nodes[children[2 * i + 1]]);
+                nodes[i] = tree.createInternalNode(c);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * @return a new evaluator of moves on the tree. The tree must have been set.
+     */
+    public MoveEvaluator createEvaluator() {
+        return new MoveEvaluator();
+    }
+
+    /**
+     * Scores SPR and NNI moves of the current tree without changing it. An evaluator first prunes a subtree and
+     * then scores regrafting it at any number of places. It holds its own work space, so each thread scoring moves
+     * needs its own evaluator.
+     */
+    public class MoveEvaluator {
+
+        private MoveEvaluator() {
+            final int count = parent.length;
+            evalDown = new long[count][];
+            evalUp = new long[count][];
+            evalEdge = new long[count][];
+            ownDown = new long[count][];
+            ownUp = new long[count][];
+            ownEdge = new long[count][];
+            // path nodes may be overridden a second time as part of the region below the path, and subtree
+            // nodes when the subtree sets are computed
+            overridden = new int[3 * count];
+            evalStack = new int[count];
+            evalRegionNodes = new int[count];
+            evalRegionParents = new int[count];
+            resetViews();
+        }
+
+        private void resetViews() {
+            System.arraycopy(down, 0, evalDown, 0, down.length);
+            System.arraycopy(up, 0, evalUp, 0, up.length);
+            System.arraycopy(edge, 0, evalEdge, 0, edge.length);
+            overriddenCount = 0;
+            evalVersion = version;
+        }
+
+        /**
+         * Prune a subtree, computing the state sets of the rest of the tree.
+         *
+         * @param node root of the subtree, not the root of the tree
+         */
+        public void prune(int node) {
+            if( evalVersion != version ) {
+                resetViews();
+            }
+            for(int k = 0; k < overriddenCount; ++k) {
+                final int n = overridden[k];
+                evalDown[n] = down[n];
+                evalUp[n] = up[n];
+                evalEdge[n] = edge[n];
+            }
+            overriddenCount = 0;
+
+            if( parent[node] < 0 ) {
+                throw new IllegalArgumentException("Can not prune the root");
+            }
+            pruned = node;
+            prunedParent = parent[node];
+            hasSubtreeSets = false;
+            final int q = getSibling(node);
+            final int g = parent[prunedParent];
+            prunedRoot = g >= 0 ? root : q;
+            base = score - steps[prunedParent];
+
+            int region;
+            if( g >= 0 ) {
+                // downpass sets from g up, with q in place of p, until one does not change
+                region = root;
+                for(int a = g; a >= 0; a = parent[a]) {
+                    if( ownDown[a] == null ) {
+                        ownDown[a] = new long[blockSize];
+                    }
+                    final long[] d = ownDown[a];
+                    final double s = fitch(evalDown[getChild(a, 0, prunedParent, q)],
+                            evalDown[getChild(a, 1, prunedParent, q)], d, true);
+                    base += s - steps[a];
+                    override(a);
+                    if( equal(d, down[a]) ) {
+                        evalDown[a] = down[a];
+                        region = a;
+                        break;
+                    }
+                    evalDown[a] = d;
+                }
+            } else {
+                region = q;
+            }
+
+            final int n = collectRegion(region, prunedParent, q, evalStack, evalRegionNodes, evalRegionParents);
+            for(int k = 0; k < n; ++k) {
+                final int c = evalRegionNodes[k];
+                if( ownUp[c] == null ) {
+                    ownUp[c] = new long[blockSize];
+                    ownEdge[c] = new long[blockSize];
+                }
+                override(c);
+                evalUp[c] = ownUp[c];
+                evalEdge[c] = ownEdge[c];
+            }
+            computeUpPass(n, prunedRoot, prunedParent, q, evalRegionNodes, evalRegionParents, evalDown, evalUp, evalEdge);
+        }
+
+        private void override(int n) {
+            overridden[overriddenCount++] = n;
+        }
+
+        /**
+         * @return root of the last pruned subtree
+         */
+        public int getPrunedNode() {
+            return pruned;
+        }
+
+        /**
+         * @return score of the tree without the pruned subtree plus the score of the pruned subtree.
+         */
+        public double getPrunedScore() {
+            return base;
+        }
+
+        /**
+         * @param target node above which to regraft the pruned subtree
+         * @return score of the tree after the move
+         */
+        public double getRegraftScore(int target) {
+            return getRegraftScore(target, Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * @param target node above which to regraft the pruned subtree
+         * @param bound  stop counting once the score is known to be at least bound
+         * @return score of the tree after the move, or a value not smaller than bound if that score is not smaller
+         *         than bound
+         */
+        public double getRegraftScore(int target, double bound) {
+            if( evalVersion != version ) {
+                throw new IllegalStateException("The tree has changed since the subtree was pruned");
+            }
+            if( !isValidSPR(pruned, target) ) {
+                throw new IllegalArgumentException("Invalid SPR move");
+            }
+            final long[] e = target == prunedRoot ? evalDown[target] : evalEdge[target];
+            return base + cost(down[pruned], e, bound - base);
+        }
+
+        /**
+         * Score a TBR move of the pruned subtree.
+         *
+         * @param reroot node of the pruned subtree above which it is rerooted
+         * @param target node above which to regraft the pruned subtree
+         * @param bound  stop counting once the score is known to be at least bound
+         * @return score of the tree after the move, or a value not smaller than bound if that score is not smaller
+         *         than bound
+         */
+        public double getRegraftScore(int reroot, int target, double bound) {
+            if( evalVersion != version ) {
+                throw new IllegalStateException("The tree has changed since the subtree was pruned");
+            }
+            if( !isValidTBR(pruned, reroot, target) ) {
+                throw new IllegalArgumentException("Invalid TBR move");
+            }
+            final long[] s;
+            if( reroot == pruned || parent[reroot] == pruned ) {
+                s = down[pruned];
+            } else {
+                if( !hasSubtreeSets ) {
+                    computeSubtreeSets();
+                }
+                s = evalEdge[reroot];
+            }
+            final long[] e = target == prunedRoot ? evalDown[target] : evalEdge[target];
+            return base + cost(s, e, bound - base);
+        }
+
+        /**
+         * Edge sets within the pruned subtree, as a tree by itself.
+         */
+        private void computeSubtreeSets() {
+            final int n = collectRegion(pruned, -1, -1, evalStack, evalRegionNodes, evalRegionParents);
+            for(int k = 0; k < n; ++k) {
+                final int c = evalRegionNodes[k];
+                if( ownUp[c] == null ) {
+                    ownUp[c] = new long[blockSize];
+                    ownEdge[c] = new long[blockSize];
+                }
+                override(c);
+                evalUp[c] = ownUp[c];
+                evalEdge[c] = ownEdge[c];
+            }
+            computeUpPass(n, pruned, -1, -1, evalRegionNodes, evalRegionParents, evalDown, evalUp, evalEdge);
+            hasSubtreeSets = true;
+        }
+
+        /**
+         * Score the NNI move exchanging node with the sibling of its parent. This prunes node.
+         *
+         * @param node node, whose parent is not the root
+         * @return score of the tree after the move
+         */
+        public double getNNIScore(int node) {
+            final int target = getNNITarget(node);
+            if( target < 0 ) {
+                throw new IllegalArgumentException("Invalid NNI move");
+            }
+            prune(node);
+            return getRegraftScore(target);
+        }
+
+        private long[][] evalDown;
+        private long[][] evalUp;
+        private long[][] evalEdge;
+        private final long[][] ownDown;
+        private final long[][] ownUp;
+        private final long[][] ownEdge;
+        private final int[] overridden;
+        private int overriddenCount = 0;
+        private final int[] evalStack;
+        private final int[] evalRegionNodes;
+        private final int[] evalRegionParents;
+        private int evalVersion;
+
+        private int pruned = -1;
+        private boolean hasSubtreeSets = false;
+        private int prunedParent = -1;
+        private int prunedRoot = -1;
+        private double base;
+    }
+
+    private int getSibling(int node) {
+        final int p = parent[node];
+        return children[2 * p] == node ? children[2 * p + 1] : children[2 * p];
+    }
+
+    private void replaceChild(int node, int child, int newChild) {
+        if( children[2 * node] == child ) {
+            children[2 * node] = newChild;
+        } else {
+            children[2 * node + 1] = newChild;
+        }
+    }
+
+    /**
+     * Recompute downpass sets and steps from node up to the first node whose set does not change.
+     *
+     * @param moved true if node has moved, so that its parent has to be recomputed even if its set is unchanged
+     * @return that node, or the root if all sets up to the root have changed
+     */
+    private int updateDownPass(int node, boolean moved) {
+        for(int a = node; ; a = parent[a]) {
+            steps[a] = fitch(down[children[2 * a]], down[children[2 * a + 1]], scratch, true);
+            if( equal(scratch, down[a]) && !(moved && a == node) ) {
+                return a;
+            }
+            System.arraycopy(scratch, 0, down[a], 0, blockSize);
+            if( parent[a] < 0 ) {
+                return a;
+            }
+        }
+    }
+
+    /**
+     * @return the most recent common ancestor of the two nodes (the numbering need not be current)
+     */
+    private int getCommonAncestor(int node1, int node2) {
+        ++mark;
+        for(int a = node1; a >= 0; a = parent[a]) {
+            marks[a] = mark;
+        }
+        int a = node2;
+        while( marks[a] != mark ) {
+            a = parent[a];
+        }
+        return a;
+    }
+
+    private void updateUpPass(int region, int skipped, int replacement) {
+        final int n = collectRegion(region, skipped, replacement, stack, regionNodes, regionParents);
+        computeUpPass(n, root, skipped, replacement, regionNodes, regionParents, down, up, edge);
+    }
+
+    /**
+     * List the strict descendants of region in pre-order, with their parents, in the tree where node skipped is
+     * replaced by node replacement.
+     *
+     * @return number of nodes listed
+     */
+    private int collectRegion(int region, int skipped, int replacement, int[] stack, int[] nodes, int[] parents) {
+        int count = 0;
+        int top = 0;
+        stack[top++] = region;
+        while( top > 0 ) {
+            final int a = stack[--top];
+            if( a >= externalNodeCount ) {
+                for(int k = 1; k >= 0; --k) {
+                    final int c = getChild(a, k, skipped, replacement);
+                    nodes[count] = c;
+                    parents[count] = a;
+                    ++count;
+                    stack[top++] = c;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int getChild(int node, int k, int skipped, int replacement) {
+        final int c = children[2 * node + k];
+        return c == skipped ? replacement : c;
+    }
+
+    /**
+     * Compute uppass and edge sets of the listed nodes, parents before children.
+     */
+    private void computeUpPass(int count, int treeRoot, int skipped, int replacement, int[] nodes, int[] parents,
+                               long[][] down, long[][] up, long[][] edge) {
+        for(int k = 0; k < count; ++k) {
+            final int c = nodes[k];
+            final int a = parents[k];
+            final int c0 = getChild(a, 0, skipped, replacement);
+            final int sibling = c0 == c ? getChild(a, 1, skipped, replacement) : c0;
+            if( a == treeRoot ) {
+                System.arraycopy(down[sibling], 0, up[c], 0, blockSize);
+            } else {
+                fitch(up[a], down[sibling], up[c], false);
+            }
+            fitch(down[c], up[c], edge[c], false);
+        }
+    }
+
+    private void updateNumbering() {
+        int number = 0;
+        int top = 0;
+        stack[top++] = root;
+        while( top > 0 ) {
+            final int a = stack[--top];
+            preOrder[a] = number++;
+            if( a >= externalNodeCount ) {
+                stack[top++] = children[2 * a + 1];
+                stack[top++] = children[2 * a];
+            }
+        }
+        // last descendant: in reverse pre-order, children are done before parents
+        final int[] byPreOrder = stack;
+        for(int i = 0; i < nodeCount; ++i) {
+            byPreOrder[preOrder[i]] = i;
+        }
+        for(int k = nodeCount - 1; k >= 0; --k) {
+            final int a = byPreOrder[k];
+            lastDescendant[a] = a < externalNodeCount ? preOrder[a] : lastDescendant[children[2 * a + 1]];
+        }
+    }
+
+    private void updateScore() {
+        double s = 0;
+        for(int i = externalNodeCount; i < nodeCount; ++i) {
+            s += steps[i];
+        }
+        score = s;
+    }
+
+    /**
+     * Fitch set of a node with children sets a and b.
+     *
+     * @param count if true, return the number of steps at the node
+     * @return weighted number of steps at the node, if count
+     */
+    private double fitch(long[] a, long[] b, long[] out, boolean count) {
+        final boolean weighted = Double.isNaN(uniformWeight);
+        long steps = 0;
+        double weightedSteps = 0;
+        for(int w = 0, offset = 0; w < wordCount; ++w, offset += stateCount) {
+            long nonEmpty = 0;
+            for(int s = offset; s < offset + stateCount; ++s) {
+                final long intersection = a[s] & b[s];
+                out[s] = intersection;
+                nonEmpty |= intersection;
+            }
+            long empty = ~nonEmpty;
+            if( w == wordCount - 1 ) {
+                empty &= lastWordMask;
+            }
+            if( empty == 0 ) {
+                continue;
+            }
+            for(int s = offset; s < offset + stateCount; ++s) {
+                out[s] |= (a[s] | b[s]) & empty;
+            }
+            if( count ) {
+                if( weighted ) {
+                    weightedSteps += weightOf(empty, w);
+                } else {
+                    steps += Long.bitCount(empty);
+                }
+            }
+        }
+        return Double.isNaN(uniformWeight) ? weightedSteps : steps * uniformWeight;
+    }
+
+    /**
+     * @return weighted number of patterns where a and b have no common state, or a value not smaller than limit
+     *         once that number reaches limit
+     */
+    private double cost(long[] a, long[] b, double limit) {
+        final boolean weighted = Double.isNaN(uniformWeight);
+        double total = 0;
+        for(int w = 0, offset = 0; w < wordCount; ++w, offset += stateCount) {
+            long nonEmpty = 0;
+            for(int s = offset; s < offset + stateCount; ++s) {
+                nonEmpty |= a[s] & b[s];
+            }
+            long empty = ~nonEmpty;
+            if( w == wordCount - 1 ) {
+                empty &= lastWordMask;
+            }
+            if( empty != 0 ) {
+                total += weighted ? weightOf(empty, w) : Long.bitCount(empty) * uniformWeight;
+                if( total >= limit ) {
+                    return total;
+                }
+            }
+        }
+        return total;
+    }
+
+    private double weightOf(long bits, int word) {
+        double total = 0;
+        for(; bits != 0; bits &= bits - 1) {
+            total += weights[(word << 6) | Long.numberOfTrailingZeros(bits)];
+        }
+        return total;
+    }
+
+    private boolean equal(long[] a, long[] b) {
+        for(int s = 0; s < blockSize; ++s) {
+            if( a[s] != b[s] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final int stateCount;
+    private final int wordCount;
+    private final long lastWordMask;
+    // number of words in one state set
+    private final int blockSize;
+
+    private final double[] weights;
+    // the weight of all patterns if they are equal, NaN otherwise
+    private final double uniformWeight;
+
+    private final Taxon[] taxa;
+    private final Map<Taxon, Integer> taxonIndices;
+    // state sets of tips, indexed by taxon
+    private final long[][] tipSets;
+
+    // topology
+    private int externalNodeCount;
+    private int nodeCount;
+    private int root;
+    private int[] parent = null;
+    private int[] children;
+    private int[] tipTaxa;
+    // node of each taxon, -1 if not in the tree
+    private int[] taxonNodes;
+    private int[] preOrder;
+    private int[] lastDescendant;
+
+    // per node state sets and steps. Tips share the sets in tipSets.
+    private long[][] down;
+    // the downpass arrays of internal nodes, which move with the node if it is renumbered
+    private long[][] internalDown;
+    private long[][] up;
+    private long[][] edge;
+    private double[] steps;
+    private double score;
+
+    // incremented by every change of the tree, making earlier prunes of evaluators invalid
+    private int version = 0;
+
+    // work space
+    private long[] scratch;
+    private int[] stack;
+    private int[] regionNodes;
+    private int[] regionParents;
+    private int[] marks;
+    private int mark = 0;
+}
@@ -0,0 +1,362 @@
+package jebl.evolution.parsimony;
+
+import jebl.evolution.alignments.CompressedPatterns;
+import jebl.evolution.alignments.Patterns;
+import jebl.evolution.distances.CannotBuildDistanceMatrixException;
+import jebl.evolution.distances.DistanceMatrix;
+import jebl.evolution.distances.JukesCantorDistanceMatrix;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.*;
+import jebl.util.ParallelUtils;
+import jebl.util.ProgressListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Builds a maximum parsimony tree by hill climbing: starting from a neighbor-joining or stepwise addition tree,
+ * repeatedly apply the best improving rearrangement (NNI, SPR or TBR) found until no rearrangement improves the
+ * Fitch score.
+ *
+ * Rearrangements are scored with {@link IncrementalParsimony}. The subtrees to prune are taken in fixed size
+ * batches, split into tasks which are scored in parallel. Each task counts the steps of a move only until it can no
+ * longer beat the best move found so far by the task, and the best move of the batch (the first in node order if
+ * tied) is applied. The result does not depend on the number of threads.
+ *
+ * The tree returned is conceptually unrooted and has no branch lengths. build() returns null if cancelled by a
+ * progress listener.
+ */
+public class ParsimonyTreeBuilder implements TreeBuilder<RootedTree> {
+
+    /**
+     * Ways of building the tree to start the search from.
+     */
+    public static enum StartingTree { NEIGHBOR_JOINING, STEPWISE_ADDITION }
+
+    /**
+     * Rearrangements tried by the search, from the fastest to the most thorough.
+     */
+    public static enum Rearrangement { NNI, SPR, TBR }
+
+    /**
+     * @param patterns      the aligned sequences, or their site patterns (for example a bootstrap replicate, see
+     *                      {@link jebl.evolution.alignments.ResampledPatterns})
+     * @param gapsAreStates if true gaps are treated as an extra state, otherwise as missing data
+     */
+    public ParsimonyTreeBuilder(Patterns patterns, boolean gapsAreStates) {
+        this.patterns = patterns;
+        this.gapsAreStates = gapsAreStates;
+    }
+
+    /**
+     * @param method how to build the starting tree. The default is neighbor-joining on Jukes-Cantor distances.
+     */
+    public void setStartingTree(StartingTree method) {
+        this.startingMethod = method;
+        this.startingTree = null;
+    }
+
+    /**
+     * @param tree tree to start the search from. Its taxa must be those of the alignment, and it must be binary once
+     *             rooted (as a neighbor-joining tree is).
+     */
+    public void setStartingTree(Tree tree) {
+        this.startingTree = tree;
+    }
+
+    /**
+     * @param rearrangement rearrangements to try. The default is SPR.
+     */
+    public void setRearrangement(Rearrangement rearrangement) {
+        this.rearrangement = rearrangement;
+    }
+
+    /**
+     * @param threadCount number of threads scoring moves. Values less than 1 mean one per processor.
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount < 1 ? ParallelUtils.getDefaultThreadCount() : threadCount;
+    }
+
+    /**
+     * @return parsimony score of the tree found by the last call of build()
+     */
+    public double getScore() {
+        return score;
+    }
+
+    public RootedTree build() {
+        final IncrementalParsimony parsimony = new IncrementalParsimony(new CompressedPatterns(patterns), gapsAreStates);
+
+        if( fireSetMessage("Building starting tree") ) {
+            return null;
+        }
+        if( startingTree != null ) {
+            parsimony.setTree(asRootedTree(startingTree));
+        } else if( startingMethod == StartingTree.NEIGHBOR_JOINING && patterns.getTaxa().size() >= 3 ) {
+            try {
+                final DistanceMatrix distances = new JukesCantorDistanceMatrix(patterns, ProgressListener.EMPTY, true);
+                parsimony.setTree(asRootedTree(new NeighborJoiningTreeBuilder(distances).build()));
+            } catch( CannotBuildDistanceMatrixException e ) {
+                if( !stepwiseAddition(parsimony) ) {
+                    return null;
+                }
+            }
+        } else {
+            if( !stepwiseAddition(parsimony) ) {
+                return null;
+            }
+        }
+
+        if( !search(parsimony) ) {
+            return null;
+        }
+
+        score = parsimony.getScore();
+        final SimpleRootedTree tree = parsimony.getTree();
+        tree.setConceptuallyUnrooted(true);
+        return tree;
+    }
+
+    private static RootedTree asRootedTree(Tree tree) {
+        return tree instanceof RootedTree ? (RootedTree) tree : Utils.rootTreeAtCenter(tree);
+    }
+
+    /**
+     * Build a tree by adding the taxa in order, each at the position giving the lowest score.
+     *
+     * @return false if cancelled
+     */
+    private boolean stepwiseAddition(IncrementalParsimony parsimony) {
+        final List<Taxon> taxa = patterns.getTaxa();
+        if( taxa.size() < 2 ) {
+            throw new IllegalArgumentException("At least two taxa are required");
+        }
+
+        final SimpleRootedTree tree = new SimpleRootedTree();
+        final List<Node> tips = new ArrayList<Node>(2);
+        tips.add(tree.createExternalNode(taxa.get(0)));
+        tips.add(tree.createExternalNode(taxa.get(1)));
+        tree.createInternalNode(tips);
+        parsimony.setTree(tree);
+
+        for(int k = 2; k < taxa.size(); ++k) {
+            final Taxon taxon = taxa.get(k);
+            int best = -1;
+            double bestScore = Double.POSITIVE_INFINITY;
+            for(int target = 0; target < parsimony.getNodeCount(); ++target) {
+                final double s = parsimony.getAddTipScore(taxon, target, bestScore);
+                if( s < bestScore ) {
+                    bestScore = s;
+                    best = target;
+                }
+            }
+            parsimony.addTip(taxon, best);
+            if( fireSetProgress(k, taxa.size()) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hill climb until no move improves the score.
+     *
+     * @return false if cancelled
+     */
+    private boolean search(final IncrementalParsimony parsimony) {
+        final int nodeCount = parsimony.getNodeCount();
+        final int batchSize = TASKS_PER_BATCH * NODES_PER_TASK;
+
+        // one evaluator per thread, taken by each task while it runs
+        final List<IncrementalParsimony.MoveEvaluator> evaluators = new ArrayList<IncrementalParsimony.MoveEvaluator>();
+        for(int k = 0; k < Math.min(threadCount, TASKS_PER_BATCH); ++k) {
+            evaluators.add(parsimony.createEvaluator());
+        }
+
+        // one pool for the whole search rather than one per batch of moves
+        final ExecutorService executor = threadCount > 1 ? ParallelUtils.newThreadPool(threadCount) : null;
+        try {
+            int round = 0;
+            boolean improved = true;
+            while( improved ) {
+                improved = false;
+                ++round;
+                if( fireSetMessage("Searching (" + rearrangement + " round " + round + ", score " + parsimony.getScore() + ")") ) {
+                    return false;
+                }
+
+                for(int start = 0; start < nodeCount; start += batchSize) {
+                    final int end = Math.min(start + batchSize, nodeCount);
+                    final List<Callable<Move>> tasks = new ArrayList<Callable<Move>>(TASKS_PER_BATCH);
+                    for(int k = 0; k < TASKS_PER_BATCH && start + k < end; ++k) {
+                        final int first = start + k;
+                        tasks.add(new Callable<Move>() {
+                            public Move call() {
+                                final IncrementalParsimony.MoveEvaluator evaluator;
+                                synchronized( evaluators ) {
+                                    evaluator = evaluators.remove(evaluators.size() - 1);
+                                }
+                                try {
+                                    Move best = null;
+                                    for(int node = first; node < end; node += TASKS_PER_BATCH) {
+                                        best = findBestMove(parsimony, evaluator, node, best);
+                                    }
+                                    return best;
+                                } finally {
+                                    synchronized( evaluators ) {
+                                        evaluators.add(evaluator);
+                                    }
+                                }
+                            }
+                        });
+                    }
+
+                    final List<Move> moves = executor != null ? ParallelUtils.invokeAll(tasks, executor) : ParallelUtils.invokeAll(tasks, 1);
+                    Move best = null;
+                    for( Move move : moves ) {
+                        if( move != null && (best == null || move.score < best.score ||
+                                (move.score == best.score && move.node < best.node)) ) {
+                            best = move;
+                        }
+                    }
+                    if( best != null && best.score < parsimony.getScore() - TOLERANCE ) {
+                        parsimony.applyTBR(best.node, best.reroot, best.target);
+                        improved = true;
+                    }
+
+                    if( fireSetIndeterminateProgress() ) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            if( executor != null ) {
+                executor.shutdownNow();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param best best move found so far, or null
+     * @return the best of best and the moves of the subtree of node improving on the current score
+     */
+    private Move findBestMove(IncrementalParsimony parsimony, IncrementalParsimony.MoveEvaluator evaluator,
+                              int node, Move best) {
+        if( parsimony.getParent(node) < 0 ) {
+            return best;
+        }
+        final int nodeCount = parsimony.getNodeCount();
+        double bound = best != null ? best.score : parsimony.getScore() - TOLERANCE;
+
+        if( rearrangement == Rearrangement.NNI ) {
+            final int target = parsimony.getNNITarget(node);
+            if( target >= 0 ) {
+                evaluator.prune(node);
+                final double s = evaluator.getRegraftScore(target, bound);
+                if( s < bound ) {
+                    best = new Move(node, node, target, s);
+                }
+            }
+            return best;
+        }
+
+        evaluator.prune(node);
+        final int p = parsimony.getParent(node);
+        final int sibling = parsimony.getChild(p, 0) == node ? parsimony.getChild(p, 1) : parsimony.getChild(p, 0);
+        for(int reroot = 0; reroot < nodeCount; ++reroot) {
+            // rerooting above node or either of its children gives the same subtree
+            if( reroot != node && (rearrangement == Rearrangement.SPR || !parsimony.isAncestor(node, reroot) ||
+                    parsimony.getParent(reroot) == node) ) {
+                continue;
+            }
+            for(int target = 0; target < nodeCount; ++target) {
+                if( (reroot == node && target == sibling) || !parsimony.isValidSPR(node, target) ) {
+                    continue;
+                }
+                final double s = evaluator.getRegraftScore(reroot, target, bound);
+                if( s < bound ) {
+                    best = new Move(node, reroot, target, s);
+                    bound = s;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A TBR move (an SPR move if reroot is node) and its score.
+     */
+    private static class Move {
+        Move(int node, int reroot, int target, double score) {
+            this.node = node;
+            this.reroot = reroot;
+            this.target = target;
+            this.score = score;
+        }
+
+        final int node;
+        final int reroot;
+        final int target;
+        final double score;
+    }
+
+    public void addProgressListener(ProgressListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        listeners.remove(listener);
+    }
+
+    private boolean fireSetProgress(int step, int steps) {
+        for( ProgressListener listener : listeners ) {
+            if( listener.setProgress(step, steps) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean fireSetIndeterminateProgress() {
+        for( ProgressListener listener : listeners ) {
+            if( listener.setIndeterminateProgress() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean fireSetMessage(String message) {
+        for( ProgressListener listener : listeners ) {
+            if( listener.setMessage(message) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a move must improve the score by more than this to be applied
+    private static final double TOLERANCE = 1e-9;
+    // a batch of pruned subtrees is split into this many tasks
+    private static final int TASKS_PER_BATCH = 32;
+    // subtrees pruned by each task of a batch
+    private static final int NODES_PER_TASK = 2;
+
+    private final Patterns patterns;
+    private final boolean gapsAreStates;
+
+    private StartingTree startingMethod = StartingTree.NEIGHBOR_JOINING;
+    private Tree startingTree = null;
+    private Rearrangement rearrangement = Rearrangement.SPR;
+    private int threadCount = ParallelUtils.getDefaultThreadCount();
+
+    private double score = Double.NaN;
+
+    // must be a type of list that supports the remove() operation
+    private final List<ProgressListener> listeners = new ArrayList<ProgressListener>();
+}
@@ -0,0 +1,240 @@
+package jebl.evolution.sequences;
+
+import jebl.util.ParallelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Translates nucleotide sequences using tables of the translations of a genetic code.
+ *
+ * Every triplet of nucleotide states, ambiguous or not, has its amino acid state index looked up in a table of
+ * 18 * 18 * 18 bytes, computed once from {@link GeneticCode#getTranslation(NucleotideState, NucleotideState,
+ * NucleotideState, boolean)}, so the translations are the same as those of the genetic code but no State objects
+ * or strings are created per codon. Nucleotides and amino acids are passed as arrays of state indices (see
+ * {@link Sequence#getStateIndices()}).
+ *
+ * Get the translator of a genetic code from {@link GeneticCode#getTranslator()}. Translators are immutable and
+ * may be shared between threads.
+ */
+public class CodonTranslator {
+
+    CodonTranslator(GeneticCode geneticCode) {
+        this.geneticCode = geneticCode;
+        translations = new byte[TRIPLET_COUNT];
+        firstCodonTranslations = new byte[TRIPLET_COUNT];
+        reverseComplementTranslations = new byte[TRIPLET_COUNT];
+
+        for (int i = 0; i < STATE_COUNT; i++) {
+            for (int j = 0; j < STATE_COUNT; j++) {
+                for (int k = 0; k < STATE_COUNT; k++) {
+                    final NucleotideState n1 = Nucleotides.getState(i);
+                    final NucleotideState n2 = Nucleotides.getState(j);
+                    final NucleotideState n3 = Nucleotides.getState(k);
+                    final int triplet = (i * STATE_COUNT + j) * STATE_COUNT + k;
+                    translations[triplet] = (byte) geneticCode.getTranslation(n1, n2, n3, false).getIndex();
+                    firstCodonTranslations[triplet] = (byte) geneticCode.getTranslation(n1, n2, n3, true).getIndex();
+                    reverseComplementTranslations[triplet] = (byte) geneticCode.getTranslation(
+                            Nucleotides.getComplementaryState(n3), Nucleotides.getComplementaryState(n2),
+                            Nucleotides.getComplementaryState(n1), false).getIndex();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the genetic code of the translations
+     */
+    public GeneticCode getGeneticCode() {
+        return geneticCode;
+    }
+
+    /**
+     * @param nucleotide1  index of the first nucleotide state
+     * @param nucleotide2  index of the second nucleotide state
+     * @param nucleotide3  index of the third nucleotide state
+     * @param isFirstCodon true to use the translations of the first codon of a coding region
+     * @return index of the amino acid state the nucleotides translate to
+     */
+    public int getTranslationIndex(int nucleotide1, int nucleotide2, int nucleotide3, boolean isFirstCodon) {
+        final int triplet = (nucleotide1 * STATE_COUNT + nucleotide2) * STATE_COUNT + nucleotide3;
+        return isFirstCodon ? firstCodonTranslations[triplet] : translations[triplet];
+    }
+
+    /**
+     * Translate the triplets starting at from, from + 3 etc. Excess nucleotides at the end are dropped, and stop
+     * codons are translated to {@link AminoAcids#STOP_STATE} like any other codon.
+     *
+     * @param nucleotides nucleotide state indices
+     * @param from        index of the first nucleotide of the first codon
+     * @param to          index after the last nucleotide to translate
+     * @param translateFirstCodonUsingFirstCodonTable
+     *                    if true, the first codon is translated with the table of the first codon of a coding region
+     *                    (in which some codons translate to M)
+     * @return amino acid state indices, (to - from) / 3 of them
+     */
+    public byte[] translate(byte[] nucleotides, int from, int to, boolean translateFirstCodonUsingFirstCodonTable) {
+        if (from < 0 || to > nucleotides.length || from > to) {
+            throw new IndexOutOfBoundsException("range " + from + ".." + to + " of " + nucleotides.length + " nucleotides");
+        }
+        final byte[] aminoAcids = new byte[(to - from) / 3];
+        for (int i = 0, n = from; i < aminoAcids.length; i++, n += 3) {
+            aminoAcids[i] = translations[(nucleotides[n] * STATE_COUNT + nucleotides[n + 1]) * STATE_COUNT + nucleotides[n + 2]];
+        }
+        if (translateFirstCodonUsingFirstCodonTable && aminoAcids.length > 0) {
+            aminoAcids[0] = firstCodonTranslations[(nucleotides[from] * STATE_COUNT + nucleotides[from + 1]) * STATE_COUNT + nucleotides[from + 2]];
+        }
+        return aminoAcids;
+    }
+
+    /**
+     * Equivalent to {@link #translate(byte[], int, int, boolean) translate(nucleotides, 0, nucleotides.length,
+     * translateFirstCodonUsingFirstCodonTable)}
+     */
+    public byte[] translate(byte[] nucleotides, boolean translateFirstCodonUsingFirstCodonTable) {
+        return translate(nucleotides, 0, nucleotides.length, translateFirstCodonUsingFirstCodonTable);
+    }
+
+    /**
+     * @param sequence nucleotide sequence
+     * @param translateFirstCodonUsingFirstCodonTable
+     *                 if true, the first codon is translated with the table of the first codon of a coding region
+     * @return amino acid sequence of the same taxon (gaps are translated like any other state, and attributes are
+     *         not copied)
+     */
+    public Sequence translate(Sequence sequence, boolean translateFirstCodonUsingFirstCodonTable) {
+        if (sequence.getSequenceType() != SequenceType.NUCLEOTIDE) {
+            throw new IllegalArgumentException("Expected a nucleotide sequence, got " + sequence.getSequenceType().getName());
+        }
+        return new CompactSequence(SequenceType.AMINO_ACID, sequence.getTaxon(),
+                translate(sequence.getStateIndices(), translateFirstCodonUsingFirstCodonTable), 0, -1);
+    }
+
+    /**
+     * Translate many nucleotide sequences in parallel.
+     *
+     * @param sequences   nucleotide sequences
+     * @param translateFirstCodonUsingFirstCodonTable
+     *                    if true, the first codon of each sequence is translated with the table of the first codon
+     *                    of a coding region
+     * @param threadCount number of threads. Values less than 1 mean one per processor.
+     * @return the translations, in the order of the sequences
+     */
+    public List<Sequence> translate(final List<? extends Sequence> sequences,
+                                    final boolean translateFirstCodonUsingFirstCodonTable, int threadCount) {
+        if (threadCount < 1) {
+            threadCount = ParallelUtils.getDefaultThreadCount();
+        }
+        // a few batches per thread, so that threads finishing early take more work
+        final int batchCount = Math.max(1, Math.min(sequences.size(), BATCHES_PER_THREAD * threadCount));
+        final List<Callable<List<Sequence>>> tasks = new ArrayList<Callable<List<Sequence>>>(batchCount);
+        for (int b = 0; b < batchCount; b++) {
+            final int from = (int) (((long) b * sequences.size()) / batchCount);
+            final int to = (int) (((long) (b + 1) * sequences.size()) / batchCount);
+            tasks.add(new Callable<List<Sequence>>() {
+                public List<Sequence> call() {
+                    final List<Sequence> translations = new ArrayList<Sequence>(to - from);
+                    for (Sequence sequence : sequences.subList(from, to)) {
+                        translations.add(translate(sequence, translateFirstCodonUsingFirstCodonTable));
+                    }
+                    return translations;
+                }
+            });
+        }
+
+        final List<Sequence> translations = new ArrayList<Sequence>(sequences.size());
+        for (List<Sequence> batch : ParallelUtils.invokeAll(tasks, threadCount)) {
+            translations.addAll(batch);
+        }
+        return translations;
+    }
+
+    /**
+     * Translate the six reading frames of a nucleotide sequence in a single pass over it. Frames 0 to 2 start at
+     * nucleotides 0 to 2 of the sequence; frames 3 to 5 start at nucleotides 0 to 2 of its reverse complement (that
+     * is, at the last, second last and third last nucleotides of the sequence). Excess nucleotides at the end of a
+     * frame are dropped, and the first codon is translated like any other.
+     *
+     * @param nucleotides nucleotide state indices
+     * @return amino acid state indices of each frame
+     */
+    public byte[][] translateSixFrames(byte[] nucleotides) {
+        final int length = nucleotides.length;
+        final byte[][] frames = new byte[6][];
+        for (int f = 0; f < 3; f++) {
+            frames[f] = new byte[Math.max(0, length - f) / 3];
+            frames[f + 3] = new byte[Math.max(0, length - f) / 3];
+        }
+
+        int triplet = 0;
+        for (int n = 0; n < length; n++) {
+            // the triplet ending at n, less the nucleotide dropped from the start
+            triplet = (triplet % (STATE_COUNT * STATE_COUNT)) * STATE_COUNT + nucleotides[n];
+            final int start = n - 2;
+            if (start >= 0) {
+                frames[start % 3][start / 3] = translations[triplet];
+                // the triplet read backwards on the complementary strand
+                final int reverseStart = length - 1 - n;
+                frames[3 + reverseStart % 3][reverseStart / 3] = reverseComplementTranslations[triplet];
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Translate a string of nucleotides, skipping gaps as {@link Utils#translateCharSequence(CharSequence,
+     * GeneticCode, boolean)} does.
+     *
+     * @param nucleotideSequence nucleotide codes, in any case. Codes which are not nucleotides are translated as
+     *                           unknown nucleotides.
+     * @param translateFirstCodonUsingFirstCodonTable
+     *                           if true, the first codon is translated with the table of the first codon of a
+     *                           coding region
+     * @return amino acid codes, one per triplet of nucleotides which are not gaps
+     */
+    public String translate(CharSequence nucleotideSequence, boolean translateFirstCodonUsingFirstCodonTable) {
+        final byte gap = (byte) Nucleotides.GAP_STATE.getIndex();
+        final byte[] nucleotides = new byte[nucleotideSequence.length()];
+        int length = 0;
+        for (int i = 0; i < nucleotides.length; i++) {
+            final char c = nucleotideSequence.charAt(i);
+            final byte index = c < CHARACTER_INDICES.length ? CHARACTER_INDICES[c] : UNKNOWN_INDEX;
+            if (index != gap) {
+                nucleotides[length++] = index;
+            }
+        }
+
+        final byte[] aminoAcids = translate(nucleotides, 0, length - length % 3, translateFirstCodonUsingFirstCodonTable);
+        final char[] codes = new char[aminoAcids.length];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = AMINO_ACID_CODES[aminoAcids[i]];
+        }
+        return new String(codes);
+    }
+
+    private static final int STATE_COUNT = Nucleotides.getStateCount();
+    private static final int TRIPLET_COUNT = STATE_COUNT * STATE_COUNT * STATE_COUNT;
+    private static final int BATCHES_PER_THREAD = 4;
+
+    private static final byte UNKNOWN_INDEX = (byte) Nucleotides.UNKNOWN_STATE.getIndex();
+    // nucleotide state index of each ASCII character
+    private static final byte[] CHARACTER_INDICES = new byte[128];
+    private static final char[] AMINO_ACID_CODES = new char[AminoAcids.getStateCount()];
+    static {
+        for (char c = 0; c < CHARACTER_INDICES.length; c++) {
+            final NucleotideState state = Nucleotides.getState(c);
+            CHARACTER_INDICES[c] = state == null ? UNKNOWN_INDEX : (byte) state.getIndex();
+        }
+        for (int i = 0; i < AMINO_ACID_CODES.length; i++) {
+            AMINO_ACID_CODES[i] = AminoAcids.getState(i).getCode().charAt(0);
+        }
+    }
+
+    private final GeneticCode geneticCode;
+    // amino acid state index of each triplet of nucleotide state indices n1, n2, n3, at (n1 * 18 + n2) * 18 + n3
+    private final byte[] translations;
+    private final byte[] firstCodonTranslations;
+    // translation of the reverse complement of each triplet
+    private final byte[] reverseComplementTranslations;
+}
@@ -0,0 +1,330 @@
+package jebl.evolution.sequences;
+
+import jebl.evolution.taxa.Taxon;
+import jebl.util.AttributableHelper;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable sequence stored as an array of state indices, one byte per site.
+ *
+ * Unlike {@link BasicSequence}, which stores characters and looks up the state of each one on access, the states
+ * are read directly from the indices, and the indices and characters of the sequence can be read through views
+ * ({@link #getStateIndexBuffer()}, {@link #getCharSequence()}) without copying. Subsequences and the gapless
+ * sequence share the array of the sequence they are taken from (the gapless sequence only when there are no
+ * gaps to remove). Only the methods of {@link Sequence} returning arrays copy them, since the caller may change
+ * the arrays they get.
+ */
+public class CompactSequence implements Sequence {
+
+    /**
+     * @param sequenceType   type of the sequence
+     * @param taxon          taxon of the sequence
+     * @param sequenceString state codes (codon sequences use three characters per state). Unknown codes are
+     *                       stored as the unknown state, as in BasicSequence.
+     */
+    public CompactSequence(SequenceType sequenceType, Taxon taxon, CharSequence sequenceString) {
+        this(sequenceType, taxon, parse(sequenceType, sequenceString), 0, -1);
+    }
+
+    /**
+     * @param sequenceType type of the sequence
+     * @param taxon        taxon of the sequence
+     * @param stateIndices state indices of the sequence. The array is copied.
+     */
+    public CompactSequence(SequenceType sequenceType, Taxon taxon, byte[] stateIndices) {
+        this(sequenceType, taxon, stateIndices.clone(), 0, stateIndices.length);
+    }
+
+    /**
+     * Creates a compact copy of a sequence. The array of another CompactSequence is shared, not copied.
+     * Attributes are not copied.
+     *
+     * @param source sequence to copy
+     */
+    public CompactSequence(Sequence source) {
+        this(source.getSequenceType(), source.getTaxon(),
+                source instanceof CompactSequence ? ((CompactSequence) source).stateIndices : source.getStateIndices(),
+                source instanceof CompactSequence ? ((CompactSequence) source).offset : 0,
+                source.getLength());
+    }
+
+    /**
+     * A sequence using (not copying) sites offset to offset + length - 1 of stateIndices, which must not change
+     * afterwards.
+     *
+     * @param length number of sites, or -1 for all sites from offset on
+     */
+    CompactSequence(SequenceType sequenceType, Taxon taxon, byte[] stateIndices, int offset, int length) {
+        if (sequenceType == null) {
+            throw new IllegalArgumentException("sequenceType is not allowed to be null");
+        }
+        if (taxon == null) {
+            throw new IllegalArgumentException("taxon is not allowed to be null");
+        }
+        this.sequenceType = sequenceType;
+        this.taxon = taxon;
+        this.stateIndices = stateIndices;
+        this.offset = offset;
+        this.length = length < 0 ? stateIndices.length - offset : length;
+    }
+
+    private static byte[] parse(SequenceType sequenceType, CharSequence sequenceString) {
+        final int codeLength = sequenceType.getCodeLength();
+        final byte unknown = (byte) sequenceType.getUnknownState().getIndex();
+        final byte[] indices = new byte[sequenceString.length() / codeLength];
+        for (int i = 0; i < indices.length; i++) {
+            final State state = codeLength == 1 ? sequenceType.getState(sequenceString.charAt(i)) :
+                    sequenceType.getState(sequenceString.subSequence(i * codeLength, (i + 1) * codeLength).toString());
+            indices[i] = state == null ? unknown : (byte) state.getIndex();
+        }
+        return indices;
+    }
+
+    /**
+     * @return the type of symbols that this sequence is made up of.
+     */
+    public SequenceType getSequenceType() {
+        return sequenceType;
+    }
+
+    /**
+     * @return that taxon that this sequence represents (primarily used to match sequences with tree nodes)
+     */
+    public Taxon getTaxon() {
+        return taxon;
+    }
+
+    /**
+     * @return a string representing the sequence of symbols.
+     */
+    public String getString() {
+        return getCharSequence().toString();
+    }
+
+    /**
+     * @return a view of the state codes of the sequence
+     */
+    public CharSequence getCharSequence() {
+        return new StateCodes(0, length);
+    }
+
+    /**
+     * @return an array of state objects. Use {@link #getState(int)} to avoid creating the array.
+     */
+    public State[] getStates() {
+        final State[] states = new State[length];
+        for (int i = 0; i < length; i++) {
+            states[i] = getState(i);
+        }
+        return states;
+    }
+
+    /**
+     * @return a copy of the state indices. Use {@link #getStateIndex(int)} or {@link #getStateIndexBuffer()} to
+     *         avoid copying.
+     */
+    public byte[] getStateIndices() {
+        final byte[] indices = new byte[length];
+        System.arraycopy(stateIndices, offset, indices, 0, length);
+        return indices;
+    }
+
+    /**
+     * @return a read only view of the state indices
+     */
+    public ByteBuffer getStateIndexBuffer() {
+        return ByteBuffer.wrap(stateIndices, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @param site site number
+     * @return index of the state at site
+     */
+    public int getStateIndex(int site) {
+        return stateIndices[offset + checkSite(site)];
+    }
+
+    /**
+     * @return the state at site.
+     */
+    public State getState(int site) {
+        return sequenceType.getState(stateIndices[offset + checkSite(site)]);
+    }
+
+    private int checkSite(int site) {
+        if (site < 0 || site >= length) {
+            throw new IndexOutOfBoundsException("site " + site + " of sequence of length " + length);
+        }
+        return site;
+    }
+
+    /**
+     * @return the length of the sequence
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @param from first site
+     * @param to   site after the last
+     * @return sites from to to - 1, sharing the array of this sequence
+     */
+    public CompactSequence subSequence(int from, int to) {
+        if (from < 0 || to > length || from > to) {
+            throw new IndexOutOfBoundsException("subsequence " + from + ".." + to + " of sequence of length " + length);
+        }
+        return new CompactSequence(sequenceType, taxon, stateIndices, offset + from, to - from);
+    }
+
+    /**
+     * @return this sequence without its gaps. This sequence itself if it has no gaps.
+     */
+    public CompactSequence getGaplessSequence() {
+        final int gap = sequenceType.getGapState().getIndex();
+        final byte[] gapless = new byte[length];
+        int n = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (stateIndices[i] != gap) {
+                gapless[n++] = stateIndices[i];
+            }
+        }
+        if (n == length) {
+            return this;
+        }
+        return new CompactSequence(sequenceType, taxon, gapless, 0, n);
+    }
+
+    /**
+     * Sequences are compared by their taxa
+     *
+     * @param o another sequence
+     * @return an integer
+     */
+    public int compareTo(Object o) {
+        return taxon.compareTo(((Sequence) o).getTaxon());
+    }
+
+    public String toString() {
+        return getString();
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final CompactSequence that = (CompactSequence) o;
+        if (length != that.length || sequenceType != that.sequenceType || !taxon.equals(that.taxon)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (stateIndices[offset + i] != that.stateIndices[that.offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int hashCode() {
+        int result = taxon.hashCode();
+        result = 31 * result + sequenceType.hashCode();
+        for (int i = offset; i < offset + length; i++) {
+            result = 31 * result + stateIndices[i];
+        }
+        return result;
+    }
+
+    // Attributable IMPLEMENTATION
+
+    public void setAttribute(String name, Object value) {
+        if (helper == null) {
+            helper = new AttributableHelper();
+        }
+        helper.setAttribute(name, value);
+    }
+
+    public Object getAttribute(String name) {
+        if (helper == null) {
+            return null;
+        }
+        return helper.getAttribute(name);
+    }
+
+    public void removeAttribute(String name) {
+        if (helper != null) {
+            helper.removeAttribute(name);
+        }
+    }
+
+    public Set<String> getAttributeNames() {
+        if (helper == null) {
+            return Collections.emptySet();
+        }
+        return helper.getAttributeNames();
+    }
+
+    public Map<String, Object> getAttributeMap() {
+        if (helper == null) {
+            return Collections.emptyMap();
+        }
+        return helper.getAttributeMap();
+    }
+
+    /**
+     * The state codes of sites from to to - 1, as characters.
+     */
+    private class StateCodes implements CharSequence {
+        StateCodes(int from, int to) {
+            this.from = from;
+            this.to = to;
+            codeLength = sequenceType.getCodeLength();
+        }
+
+        public int length() {
+            return (to - from) * codeLength;
+        }
+
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("index " + index + " of " + length());
+            }
+            final int site = from + index / codeLength;
+            return sequenceType.getState(stateIndices[offset + site]).getCode().charAt(index % codeLength);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length() || start > end) {
+                throw new IndexOutOfBoundsException("subsequence " + start + ".." + end + " of " + length());
+            }
+            if (start % codeLength == 0 && end % codeLength == 0) {
+                return new StateCodes(from + start / codeLength, from + end / codeLength);
+            }
+            return toString().substring(start, end);
+        }
+
+        public String toString() {
+            final StringBuilder buffer = new StringBuilder(length());
+            for (int site = from; site < to; site++) {
+                buffer.append(sequenceType.getState(stateIndices[offset + site]).getCode());
+            }
+            return buffer.toString();
+        }
+
+        private final int from;
+        private final int to;
+        private final int codeLength;
+    }
+
+    private AttributableHelper helper = null;
+
+    private final Taxon taxon;
+    private final SequenceType sequenceType;
+    // shared with subsequences; never changed
+    private final byte[] stateIndices;
+    private final int offset;
+    private final int length;
+}
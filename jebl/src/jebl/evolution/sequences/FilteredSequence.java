@@ -31,48 +31,25 @@ public abstract class FilteredSequence implements Sequence {
      * @return a string representing the sequence of symbols.
      */
     public String getString() {
-        if (sequence == null) {
-            sequence = filterSequence(source);
-        }
-
-        StringBuilder buffer = new StringBuilder();
-        for (State aSequence : sequence) {
-            buffer.append(aSequence.getCode());
-        }
-        return buffer.toString();
+        return getFilteredSequence().getString();
     }
 
     /**
      * @return an array of state objects.
      */
     public State[] getStates() {
-        if (sequence == null) {
-            sequence = filterSequence(source);
-        }
-        return sequence;
+        return getFilteredSequence().getStates();
     }
 
     public byte[] getStateIndices() {
-        if (sequence == null) {
-            sequence = filterSequence(source);
-        }
-        byte[] stateIndices = new byte[sequence.length];
-        int i = 0;
-        for (State state : sequence) {
-            stateIndices[i] = (byte)state.getIndex();
-            i++;
-        }
-        return stateIndices;
+        return getFilteredSequence().getStateIndices();
     }
 
     /**
      * @return the state at site.
      */
     public State getState(int site) {
-        if (sequence == null) {
-            sequence = filterSequence(source);
-        }
-        return sequence[site];
+        return getFilteredSequence().getState(site);
     }
 
     /**
@@ -81,14 +58,32 @@ public abstract class FilteredSequence implements Sequence {
      * @return the length
      */
     public int getLength() {
+        return getFilteredSequence().getLength();
+    }
+
+    /**
+     * @return the filtered sequence, computed on first use. Its subsequences share its storage.
+     */
+    public CompactSequence getFilteredSequence() {
         if (sequence == null) {
-            sequence = filterSequence(source);
+            sequence = new CompactSequence(getSequenceType(), getTaxon(), filterStateIndices(source), 0, -1);
         }
-        return sequence.length;
+        return sequence;
     }
 
     protected abstract State[] filterSequence(Sequence source);
 
+    /**
+     * Filter the source as state indices. This implementation converts the states of filterSequence; subclasses
+     * may override it to avoid creating arrays of states.
+     *
+     * @param source the source sequence
+     * @return state indices of the filtered sequence. The array is kept, and must not be changed by the caller.
+     */
+    protected byte[] filterStateIndices(Sequence source) {
+        return jebl.evolution.sequences.Utils.getStateIndices(filterSequence(source));
+    }
+
     /**
      * @return that taxon that this sequence represents
      */
@@ -129,5 +124,5 @@ public abstract class FilteredSequence implements Sequence {
     // private members
 
     private final Sequence source;
-    private State[] sequence = null;
+    private CompactSequence sequence = null;
 }
@@ -0,0 +1,122 @@
+package jebl.evolution.sequences;
+
+/**
+ * Maps between the sites of a sequence with and without its gaps in constant time.
+ *
+ * The sites which are not gaps are held as a bit vector with the count of those before each 64 sites (rank), and
+ * the word holding every 64th of them (select), about 1.5 bits per site in all. Build one index per sequence and
+ * use it for all locations to be mapped; {@link Utils#getGaplessLocation(Sequence, int)} and
+ * {@link Utils#getGappedLocation(Sequence, int)} scan the whole sequence on each call.
+ */
+public class GapIndex {
+
+    /**
+     * @param sequence sequence to index. Later changes to it are not seen.
+     */
+    public GapIndex(Sequence sequence) {
+        this(sequence.getStateIndices(), sequence.getSequenceType());
+    }
+
+    /**
+     * @param stateIndices state indices of a sequence
+     * @param sequenceType type of the sequence
+     */
+    public GapIndex(byte[] stateIndices, SequenceType sequenceType) {
+        final int gap = sequenceType.getGapState().getIndex();
+        length = stateIndices.length;
+        residues = new long[(length + 63) >>> 6];
+        for (int i = 0; i < length; i++) {
+            if (stateIndices[i] != gap) {
+                residues[i >>> 6] |= 1L << (i & 63);
+            }
+        }
+
+        ranks = new int[residues.length + 1];
+        for (int w = 0; w < residues.length; w++) {
+            ranks[w + 1] = ranks[w] + Long.bitCount(residues[w]);
+        }
+        residueCount = ranks[residues.length];
+
+        selectSamples = new int[(residueCount + 63) >>> 6];
+        for (int w = 0, k = 0; w < residues.length; w++) {
+            while (k < selectSamples.length && (k << 6) < ranks[w + 1]) {
+                selectSamples[k++] = w;
+            }
+        }
+    }
+
+    /**
+     * @return number of sites, including gaps
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return number of sites which are not gaps
+     */
+    public int getGaplessLength() {
+        return residueCount;
+    }
+
+    /**
+     * @param gappedLocation site, indexed from 0
+     * @return true if the site is a gap
+     */
+    public boolean isGap(int gappedLocation) {
+        checkLocation(gappedLocation, length);
+        return (residues[gappedLocation >>> 6] & (1L << (gappedLocation & 63))) == 0;
+    }
+
+    /**
+     * @param gappedLocation site including gaps, from 0 to getLength()
+     * @return number of sites before gappedLocation which are not gaps; the site without gaps of gappedLocation if
+     *         it is not a gap
+     */
+    public int getGaplessLocation(int gappedLocation) {
+        checkLocation(gappedLocation, length + 1);
+        final int w = gappedLocation >>> 6;
+        final int bit = gappedLocation & 63;
+        return bit == 0 ? ranks[w] : ranks[w] + Long.bitCount(residues[w] & (-1L >>> (64 - bit)));
+    }
+
+    /**
+     * @param gaplessLocation site without gaps, from 0 to getGaplessLength() - 1
+     * @return the site including gaps of the gaplessLocation'th site which is not a gap
+     */
+    public int getGappedLocation(int gaplessLocation) {
+        checkLocation(gaplessLocation, residueCount);
+        // the last word with at most gaplessLocation residues before it, between the words of the samples either side
+        int low = selectSamples[gaplessLocation >>> 6];
+        int high = (gaplessLocation >>> 6) + 1 < selectSamples.length ? selectSamples[(gaplessLocation >>> 6) + 1] : residues.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (ranks[mid] <= gaplessLocation) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        long word = residues[low];
+        for (int n = gaplessLocation - ranks[low]; n > 0; n--) {
+            word &= word - 1;
+        }
+        return (low << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private static void checkLocation(int location, int end) {
+        if (location < 0 || location >= end) {
+            throw new IndexOutOfBoundsException("location " + location + " not in 0.." + (end - 1));
+        }
+    }
+
+    private final int length;
+    private final int residueCount;
+    // bit i % 64 of word i / 64 is set if site i is not a gap
+    private final long[] residues;
+    // ranks[w] is the number of sites which are not gaps in words before w
+    private final int[] ranks;
+    // selectSamples[k] is the word holding the (64 k)'th site which is not a gap
+    private final int[] selectSamples;
+}
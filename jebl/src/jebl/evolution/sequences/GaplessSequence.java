@@ -15,4 +15,11 @@ public class GaplessSequence extends FilteredSequence {
 		return jebl.evolution.sequences.Utils.stripGaps(source.getStates());
 	}
 
+	protected byte[] filterStateIndices(Sequence source) {
+		if (source instanceof CompactSequence) {
+			return ((CompactSequence) source).getGaplessSequence().getStateIndices();
+		}
+		return jebl.evolution.sequences.Utils.stripGaps(source.getStateIndices(), source.getSequenceType());
+	}
+
 }
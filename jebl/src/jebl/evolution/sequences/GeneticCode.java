@@ -137,6 +137,7 @@ public final class GeneticCode {
     private int ncbiTranslationTableNumber;
     private final Set<CodonState> startCodons;
     private final String name, description, codeTable, firstCodonTranslationTable;
+    private CodonTranslator translator = null;
 
     /**
      * @param name the name of the genetic code
@@ -353,6 +354,17 @@ public final class GeneticCode {
         }
     }
 
+    /**
+     * @return a translator using tables of the translations of this genetic code, which is much faster than
+     *         getTranslation() when translating whole sequences. It is created on first use.
+     */
+    public synchronized CodonTranslator getTranslator() {
+        if (translator == null) {
+            translator = new CodonTranslator(this);
+        }
+        return translator;
+    }
+
     /**
      * Equivalent to {@link #getTranslation(String, boolean) getTranslation(nucleotides, false)}
 	 */
@@ -0,0 +1,301 @@
+package jebl.evolution.sequences;
+
+import jebl.evolution.taxa.Taxon;
+import jebl.util.AttributableHelper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A nucleotide sequence stored in two bits per site.
+ *
+ * Sites with one of the bases A, C, G and T take two bits. Ambiguity codes, unknown bases and gaps are kept in a
+ * separate list of runs of sites having the same state, so the long runs of N or gaps common in assembled genomes
+ * take a few bytes each. A typical genome thus takes about a quarter of the memory of a {@link BasicSequence},
+ * whose characters take a byte each.
+ *
+ * The sequence stores states rather than characters: getString() returns the state codes, so lower case letters
+ * become upper case and U becomes T. Characters which are not nucleotide codes are stored as the unknown state, as
+ * in BasicSequence.
+ */
+public class PackedNucleotideSequence implements Sequence {
+
+    /**
+     * @param taxon          taxon of the sequence
+     * @param sequenceString nucleotide codes
+     */
+    public PackedNucleotideSequence(Taxon taxon, CharSequence sequenceString) {
+        if (taxon == null) {
+            throw new IllegalArgumentException("taxon is not allowed to be null");
+        }
+        this.taxon = taxon;
+        length = sequenceString.length();
+        bases = new long[(length + SITES_PER_WORD - 1) / SITES_PER_WORD];
+
+        final RunBuilder runs = new RunBuilder();
+        for (int i = 0; i < length; i++) {
+            final State state = Nucleotides.getState(sequenceString.charAt(i));
+            setSite(i, state == null ? Nucleotides.UNKNOWN_STATE.getIndex() : state.getIndex(), runs);
+        }
+        runStarts = runs.getStarts();
+        runEnds = runs.getEnds();
+        runStates = runs.getStates();
+    }
+
+    /**
+     * Creates a packed copy of a nucleotide sequence. Attributes are not copied.
+     *
+     * @param source nucleotide sequence
+     */
+    public PackedNucleotideSequence(Sequence source) {
+        if (source.getSequenceType() != SequenceType.NUCLEOTIDE) {
+            throw new IllegalArgumentException("Expected a nucleotide sequence, got " + source.getSequenceType().getName());
+        }
+        this.taxon = source.getTaxon();
+        final byte[] indices = source.getStateIndices();
+        length = indices.length;
+        bases = new long[(length + SITES_PER_WORD - 1) / SITES_PER_WORD];
+
+        final RunBuilder runs = new RunBuilder();
+        for (int i = 0; i < length; i++) {
+            setSite(i, indices[i], runs);
+        }
+        runStarts = runs.getStarts();
+        runEnds = runs.getEnds();
+        runStates = runs.getStates();
+    }
+
+    private void setSite(int site, int stateIndex, RunBuilder runs) {
+        if (stateIndex < CANONICAL_STATE_COUNT) {
+            bases[site / SITES_PER_WORD] |= ((long) stateIndex) << (2 * (site % SITES_PER_WORD));
+        } else {
+            runs.add(site, (byte) stateIndex);
+        }
+    }
+
+    /**
+     * @return the type of symbols that this sequence is made up of.
+     */
+    public SequenceType getSequenceType() {
+        return SequenceType.NUCLEOTIDE;
+    }
+
+    /**
+     * @return that taxon that this sequence represents (primarily used to match sequences with tree nodes)
+     */
+    public Taxon getTaxon() {
+        return taxon;
+    }
+
+    /**
+     * @return a string representing the sequence of symbols.
+     */
+    public String getString() {
+        final StringBuilder buffer = new StringBuilder(length);
+        for (byte index : getStateIndices()) {
+            buffer.append(Nucleotides.getState(index).getCode());
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * @return an array of state objects.
+     */
+    public State[] getStates() {
+        return Nucleotides.toStateArray(getStateIndices());
+    }
+
+    public byte[] getStateIndices() {
+        final byte[] indices = new byte[length];
+        for (int i = 0; i < length; i++) {
+            indices[i] = (byte) getBase(i);
+        }
+        for (int r = 0; r < runStarts.length; r++) {
+            Arrays.fill(indices, runStarts[r], runEnds[r], runStates[r]);
+        }
+        return indices;
+    }
+
+    /**
+     * @param site site number
+     * @return index of the state at site
+     */
+    public int getStateIndex(int site) {
+        if (site < 0 || site >= length) {
+            throw new IndexOutOfBoundsException("site " + site + " of sequence of length " + length);
+        }
+        if (runStarts.length > 0) {
+            // last run starting at or before the site
+            int r = Arrays.binarySearch(runStarts, site);
+            if (r < 0) {
+                r = -r - 2;
+            }
+            if (r >= 0 && site < runEnds[r]) {
+                return runStates[r];
+            }
+        }
+        return getBase(site);
+    }
+
+    private int getBase(int site) {
+        return (int) (bases[site / SITES_PER_WORD] >>> (2 * (site % SITES_PER_WORD))) & 3;
+    }
+
+    /**
+     * @return the state at site.
+     */
+    public State getState(int site) {
+        return Nucleotides.getState(getStateIndex(site));
+    }
+
+    /**
+     * Returns the length of the sequence
+     *
+     * @return the length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return number of runs of sites which are not one of the four bases
+     */
+    public int getAmbiguousRunCount() {
+        return runStarts.length;
+    }
+
+    /**
+     * Sequences are compared by their taxa
+     *
+     * @param o another sequence
+     * @return an integer
+     */
+    public int compareTo(Object o) {
+        return taxon.compareTo(((Sequence) o).getTaxon());
+    }
+
+    public String toString() {
+        return getString();
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final PackedNucleotideSequence that = (PackedNucleotideSequence) o;
+        return length == that.length && taxon.equals(that.taxon) && Arrays.equals(bases, that.bases) &&
+                Arrays.equals(runStarts, that.runStarts) && Arrays.equals(runEnds, that.runEnds) &&
+                Arrays.equals(runStates, that.runStates);
+    }
+
+    public int hashCode() {
+        int result = taxon.hashCode();
+        result = 31 * result + Arrays.hashCode(bases);
+        result = 31 * result + Arrays.hashCode(runStarts);
+        return result;
+    }
+
+    // Attributable IMPLEMENTATION
+
+    public void setAttribute(String name, Object value) {
+        if (helper == null) {
+            helper = new AttributableHelper();
+        }
+        helper.setAttribute(name, value);
+    }
+
+    public Object getAttribute(String name) {
+        if (helper == null) {
+            return null;
+        }
+        return helper.getAttribute(name);
+    }
+
+    public void removeAttribute(String name) {
+        if (helper != null) {
+            helper.removeAttribute(name);
+        }
+    }
+
+    public Set<String> getAttributeNames() {
+        if (helper == null) {
+            return Collections.emptySet();
+        }
+        return helper.getAttributeNames();
+    }
+
+    public Map<String, Object> getAttributeMap() {
+        if (helper == null) {
+            return Collections.emptyMap();
+        }
+        return helper.getAttributeMap();
+    }
+
+    /**
+     * Collects runs of sites with the same state, added in increasing order of site.
+     */
+    private static class RunBuilder {
+        void add(int site, byte state) {
+            if (count > 0 && ends[count - 1] == site && states[count - 1] == state) {
+                ends[count - 1] = site + 1;
+                return;
+            }
+            if (count == starts.length) {
+                starts = grow(starts);
+                ends = grow(ends);
+                final byte[] s = new byte[2 * states.length];
+                System.arraycopy(states, 0, s, 0, count);
+                states = s;
+            }
+            starts[count] = site;
+            ends[count] = site + 1;
+            states[count] = state;
+            ++count;
+        }
+
+        private int[] grow(int[] a) {
+            final int[] g = new int[2 * a.length];
+            System.arraycopy(a, 0, g, 0, count);
+            return g;
+        }
+
+        int[] getStarts() {
+            final int[] s = new int[count];
+            System.arraycopy(starts, 0, s, 0, count);
+            return s;
+        }
+
+        int[] getEnds() {
+            final int[] e = new int[count];
+            System.arraycopy(ends, 0, e, 0, count);
+            return e;
+        }
+
+        byte[] getStates() {
+            final byte[] s = new byte[count];
+            System.arraycopy(states, 0, s, 0, count);
+            return s;
+        }
+
+        private int count = 0;
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private byte[] states = new byte[8];
+    }
+
+    private static final int SITES_PER_WORD = 32;
+    private static final int CANONICAL_STATE_COUNT = Nucleotides.getCanonicalStateCount();
+
+    private AttributableHelper helper = null;
+
+    private final Taxon taxon;
+    private final int length;
+    // two bits per site, site i at bits 2 (i % 32) of word i / 32. Zero (A) at sites in runs.
+    private final long[] bases;
+    // runs of sites which are not A, C, G or T: sites runStarts[r] to runEnds[r] - 1 have state runStates[r]
+    private final int[] runStarts;
+    private final int[] runEnds;
+    private final byte[] runStates;
+}
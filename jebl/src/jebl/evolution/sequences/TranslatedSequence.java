@@ -17,6 +17,13 @@ public class TranslatedSequence extends FilteredSequence {
 		return jebl.evolution.sequences.Utils.translate(source.getStates(), geneticCode);
 	}
 
+	protected byte[] filterStateIndices(Sequence source) {
+		if (source.getSequenceType() == SequenceType.NUCLEOTIDE) {
+			return geneticCode.getTranslator().translate(source.getStateIndices(), false);
+		}
+		return super.filterStateIndices(source);
+	}
+
     /**
      * @return the type of symbols that this sequence is made up of.
      */
@@ -8,7 +8,11 @@
  */
 package jebl.evolution.sequences;
 
-import jebl.evolution.taxa.Taxon;
+import jebl.util.ParallelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * @author Andrew Rambaut
@@ -27,6 +31,9 @@ public class Utils {
 	 * @return
 	 */
 	public static Sequence translate(final Sequence sequence, GeneticCode geneticCode) {
+		if (sequence.getSequenceType() == SequenceType.NUCLEOTIDE) {
+			return geneticCode.getTranslator().translate(sequence, false);
+		}
 		return new BasicSequence(SequenceType.AMINO_ACID, sequence.getTaxon(), translate(sequence.getStates(), geneticCode));
 	}
 
@@ -56,13 +63,13 @@ public class Utils {
         if (states.length == 0) return new AminoAcidState[0];
 
         if (states[0] instanceof NucleotideState) {
-            AminoAcidState[] translation = new AminoAcidState[states.length / 3];
-            for (int i = 0; i < translation.length; i++) {
-                translation[i] = geneticCode.getTranslation((NucleotideState)states[i * 3],
-                                                            (NucleotideState)states[(i * 3) + 1],
-                                                            (NucleotideState)states[(i * 3) + 2], i==0 && translateFirstCodonUsingFirstCodonTable);
+            for (State state : states) {
+                if (!(state instanceof NucleotideState)) {
+                    throw new ClassCastException("Expected only nucleotide states, got " + state.getClass().getName());
+                }
             }
-            return translation;
+            return AminoAcids.toStateArray(geneticCode.getTranslator().translate(getStateIndices(states),
+                    0, states.length - states.length % 3, translateFirstCodonUsingFirstCodonTable));
         } else if (states[0] instanceof CodonState) {
             AminoAcidState[] translation = new AminoAcidState[states.length];
             for (int i = 0; i < translation.length; i++) {
@@ -104,33 +111,18 @@ public class Utils {
     }
 
     private static String reverseComplement(final String nucleotideSequence, boolean removeGaps) {
-        boolean predominantlyRNA = isPredominantlyRNA(nucleotideSequence, -1);
-        Sequence seq = new BasicSequence(SequenceType.NUCLEOTIDE, Taxon.getTaxon("x"), nucleotideSequence);
-        if( removeGaps ) {
-            seq = new GaplessSequence(seq);
-        }
-        int length=seq.getLength();
-        StringBuilder results =new StringBuilder();
-        for (int i =  length-1; i >=0; i--) {
-            State state= seq.getState(i);
-            NucleotideState complementaryState = Nucleotides.COMPLEMENTARY_STATES[state.getIndex()];
-            if (predominantlyRNA && complementaryState.equals(Nucleotides.T_STATE)) {
-                results.append('U');
-            }
-            else {
-                results.append (complementaryState.getCode());
+        final char[] complements = isPredominantlyRNA(nucleotideSequence, -1) ? RNA_COMPLEMENT_CODES : COMPLEMENT_CODES;
+        final char[] results = new char[nucleotideSequence.length()];
+        int n = 0;
+        for (int i = nucleotideSequence.length() - 1; i >= 0; i--) {
+            final char c = nucleotideSequence.charAt(i);
+            // characters which are not nucleotide codes are unknown, whose complement is unknown
+            final char complement = c < complements.length ? complements[c] : '?';
+            if (!removeGaps || complement != GAP_CODE) {
+                results[n++] = complement;
             }
         }
-        return results.toString();
-/*
-        State[] states = seq.getStates();
-        NucleotideState[] nucleotideStates = new NucleotideState[states.length];
-        for (int i = 0; i < states.length; i++) {
-            nucleotideStates[i] = (NucleotideState) states[i];
-        }
-        nucleotideStates = reverseComplement(nucleotideStates);
-        seq = new BasicSequence(SequenceType.NUCLEOTIDE, Taxon.getTaxon("x"), nucleotideStates);
-        return seq.getString();*/
+        return new String(results, 0, n);
     }
 
     /* kills gaps */
@@ -149,8 +141,9 @@ public class Utils {
      * nucleotideSequence, then the one at index 3..5 etc. until there are
      * less than 3 nucleotides left.
      * <p/>
-     * This method uses {@link #translate(State[],GeneticCode)} to do the
-     * translation, hence it shares some properties with that method:
+     * Gaps are skipped. This method uses {@link CodonTranslator} to do the
+     * translation, hence it shares some properties with
+     * {@link #translate(State[],GeneticCode,boolean)}:
      * 1.) Any excess nucleotides at the end will be silently discarded,
      * 2.) Translation doesn't stop at stop codons; instead, they are
      * translated to "*", which is
@@ -164,13 +157,7 @@ public class Utils {
      *         the given genetic code
      */
     public static String translateCharSequence(final CharSequence nucleotideSequence, GeneticCode geneticCode, boolean translateFirstCodonUsingFirstCodonTable) {
-        Sequence seq = new BasicSequence(SequenceType.NUCLEOTIDE, Taxon.getTaxon("x"), nucleotideSequence);
-        seq = new GaplessSequence(seq);
-        State[] states = seq.getStates();
-
-        states = translate(states, geneticCode, translateFirstCodonUsingFirstCodonTable);
-        seq = new BasicSequence(SequenceType.AMINO_ACID, Taxon.getTaxon("x"), states);
-        return seq.getString();
+        return geneticCode.getTranslator().translate(nucleotideSequence, translateFirstCodonUsingFirstCodonTable);
     }
 
     /**
@@ -207,6 +194,33 @@ public class Utils {
         return stripped;
     }
 
+    /**
+     * @param stateIndices state indices of a sequence
+     * @param sequenceType type of the sequence
+     * @return the state indices without gaps; stateIndices itself if there are none
+     */
+    public static byte[] stripGaps(final byte[] stateIndices, SequenceType sequenceType) {
+        final int gap = sequenceType.getGapState().getIndex();
+        int count = 0;
+        for (byte index : stateIndices) {
+            if (index != gap) {
+                count++;
+            }
+        }
+        if (count == stateIndices.length) {
+            return stateIndices;
+        }
+
+        final byte[] stripped = new byte[count];
+        int n = 0;
+        for (byte index : stateIndices) {
+            if (index != gap) {
+                stripped[n++] = index;
+            }
+        }
+        return stripped;
+    }
+
     public static State[] reverse(final State[] sequence) {
         State[] reversed = new State[sequence.length];
         for (int i = 0; i < sequence.length; i++) {
@@ -231,11 +245,24 @@ public class Utils {
         return reverseComplemented;
     }
 
+    /**
+     * @param stateIndices nucleotide state indices
+     * @return state indices of the reverse complement
+     */
+    public static byte[] reverseComplement(final byte[] stateIndices) {
+        final byte[] reverseComplemented = new byte[stateIndices.length];
+        for (int i = 0; i < stateIndices.length; i++) {
+            reverseComplemented[i] = COMPLEMENT_INDICES[stateIndices[stateIndices.length - i - 1]];
+        }
+        return reverseComplemented;
+    }
+
     public static byte[] getStateIndices(final State[] sequence) {
         byte[] indices = new byte[sequence.length];
         int i = 0;
         for (State state : sequence) {
             indices[i] = (byte)state.getIndex();
+            i++;
         }
 
         return indices;
@@ -247,18 +274,14 @@ public class Utils {
      * @param sequence the sequence
      * @param gappedLocation the location including gaps
      * @return the location without gaps.
+     * @see GapIndex
      */
     public static int getGaplessLocation(Sequence sequence, int gappedLocation) {
-        int gapless = 0;
-        int gapped = 0;
-        for (State state : sequence.getStates()) {
-            if (gapped == gappedLocation) return gapless;
-            if (!state.isGap()) {
-                gapless ++;
-            }
-            gapped ++;
+        final GapIndex index = new GapIndex(sequence);
+        if (gappedLocation < 0 || gappedLocation > index.getLength()) {
+            return index.getGaplessLength();
         }
-        return gapless;
+        return index.getGaplessLocation(gappedLocation);
     }
 
     /**
@@ -267,19 +290,19 @@ public class Utils {
      * in the sequence has a gaplessLocation of 0.
      * @param sequence the sequence
      * @param gaplessLocation
-     * @return the site location including gaps
+     * @return the site location including gaps: the site after the previous non-gapped site, so any gaps
+     *         before the gaplessLocation'th site are not skipped
+     * @see GapIndex
      */
     public static int getGappedLocation(Sequence sequence, int gaplessLocation) {
-        int gapless = 0;
-        int gapped = 0;
-        for (State state : sequence.getStates()) {
-            if (gapless == gaplessLocation) return gapped;
-            if (!state.isGap()) {
-                gapless ++;
-            }
-            gapped ++;
+        final GapIndex index = new GapIndex(sequence);
+        if (gaplessLocation == 0) {
+            return 0;
         }
-        return gapped;
+        if (gaplessLocation < 0 || gaplessLocation > index.getGaplessLength()) {
+            return index.getLength();
+        }
+        return index.getGappedLocation(gaplessLocation - 1) + 1;
     }
 
     /**
@@ -290,49 +313,99 @@ public class Utils {
      *         types, then this method returns null.
      */
     public static SequenceType guessSequenceType(final CharSequence seq) {
-
-        int canonicalNucStates = 0;
-        int undeterminedStates = 0;
-        // true length, excluding any gaps
-        int sequenceLength = seq.length();
-        final int seqLen = sequenceLength;
-
-        final int canonicalStateCount = Nucleotides.getCanonicalStateCount();
-
-        boolean onlyValidNucleotides = true;
-        boolean onlyValidAminoAcids = true;
-
+        final SequenceTypeCounter counter = new SequenceTypeCounter();
         // do not use toCharArray: it allocates an array size of sequence
-        for(int k = 0; (k < seqLen) && (onlyValidNucleotides || onlyValidAminoAcids); ++k) {
-            final char c = seq.charAt(k);
+        for (int k = 0; k < seq.length(); ++k) {
+            if (!counter.add(seq.charAt(k))) {
+                break;
+            }
+        }
+        return counter.getSequenceType();
+    }
 
-            final NucleotideState nucState = Nucleotides.getState(c);
-            final boolean isNucState = nucState != null;
-            final boolean isAminoState = AminoAcids.getState(c) != null;
+    /**
+     * Guess type of sequence from its characters, one byte each (as read from a file, for example), as
+     * {@link #guessSequenceType(CharSequence)} does.
+     * @param bytes holds the sequence
+     * @param offset index of the first character of the sequence in bytes
+     * @param length number of characters of the sequence
+     * @return SequenceType.NUCLEOTIDE, SequenceType.AMINO_ACID or null
+     */
+    public static SequenceType guessSequenceType(final byte[] bytes, int offset, int length) {
+        final SequenceTypeCounter counter = new SequenceTypeCounter();
+        for (int k = offset; k < offset + length; ++k) {
+            if (!counter.add((char) (bytes[k] & 0xff))) {
+                break;
+            }
+        }
+        return counter.getSequenceType();
+    }
+
+    /**
+     * Guess the types of many sequences in parallel, as {@link #guessSequenceType(CharSequence)} does.
+     * @param sequences the sequences
+     * @param threadCount number of threads. Values less than 1 mean one per processor.
+     * @return the type of each sequence, in order (null for sequences which are of neither type)
+     */
+    public static List<SequenceType> guessSequenceTypes(final List<? extends CharSequence> sequences, int threadCount) {
+        if (threadCount < 1) {
+            threadCount = ParallelUtils.getDefaultThreadCount();
+        }
+        final int batchCount = Math.max(1, Math.min(sequences.size(), 4 * threadCount));
+        final List<Callable<List<SequenceType>>> tasks = new ArrayList<Callable<List<SequenceType>>>(batchCount);
+        for (int b = 0; b < batchCount; b++) {
+            final int from = (int) (((long) b * sequences.size()) / batchCount);
+            final int to = (int) (((long) (b + 1) * sequences.size()) / batchCount);
+            tasks.add(new Callable<List<SequenceType>>() {
+                public List<SequenceType> call() {
+                    final List<SequenceType> types = new ArrayList<SequenceType>(to - from);
+                    for (CharSequence sequence : sequences.subList(from, to)) {
+                        types.add(guessSequenceType(sequence));
+                    }
+                    return types;
+                }
+            });
+        }
 
-            onlyValidNucleotides &= isNucState;
-            onlyValidAminoAcids &= isAminoState;
+        final List<SequenceType> types = new ArrayList<SequenceType>(sequences.size());
+        for (List<SequenceType> batch : ParallelUtils.invokeAll(tasks, threadCount)) {
+            types.addAll(batch);
+        }
+        return types;
+    }
 
+    /**
+     * Counts the characters of a sequence for guessSequenceType(), looking up what each is in a table.
+     */
+    private static class SequenceTypeCounter {
+        /**
+         * @return false once the sequence is known to be neither nucleotides nor amino acids
+         */
+        boolean add(char c) {
+            final int flags = c < CHARACTER_FLAGS.length ? CHARACTER_FLAGS[c] : 0;
+            onlyValidNucleotides &= (flags & VALID_NUCLEOTIDE) != 0;
+            onlyValidAminoAcids &= (flags & VALID_AMINO_ACID) != 0;
             if (onlyValidNucleotides) {
-                assert(isNucState);
-                if (nucState.getIndex() < canonicalStateCount) {
+                if ((flags & CANONICAL_NUCLEOTIDE) != 0) {
                     ++canonicalNucStates;
-                } else {
-                    if (nucState == Nucleotides.GAP_STATE) {
-                        --sequenceLength;
-                    } else if( nucState == Nucleotides.N_STATE ) {
-                        ++undeterminedStates;
-                    }
+                } else if ((flags & GAP) != 0) {
+                    ++gaps;
+                } else if ((flags & UNDETERMINED_NUCLEOTIDE) != 0) {
+                    ++undeterminedStates;
                 }
             }
+            ++length;
+            return onlyValidNucleotides || onlyValidAminoAcids;
         }
 
-        SequenceType result;
-        if (onlyValidNucleotides) {  // only nucleotide states
-            // All sites are nucleotides (actual or ambigoues). If longer than 100 sites, declare it a nuc
-            if( sequenceLength >= 100 ) {
-                result = SequenceType.NUCLEOTIDE;
-            } else {
+        SequenceType getSequenceType() {
+            if (onlyValidNucleotides) {  // only nucleotide states
+                // true length, excluding any gaps
+                final int sequenceLength = length - gaps;
+                // All sites are nucleotides (actual or ambigoues). If longer than 100 sites, declare it a nuc
+                if (sequenceLength >= 100) {
+                    return SequenceType.NUCLEOTIDE;
+                }
                 // if short, ask for 70% of ACGT or N
                 final double threshold = 0.7;
                 final int nucStates = canonicalNucStates + undeterminedStates;
@@ -340,14 +413,19 @@ public class Utils {
                 // symbol is also a valid amino acid. This is true since we
                 // added support for the 21st amino acid, U (Selenocysteine)
                 // in AminoAcids.java.
-                result = nucStates >= sequenceLength * threshold ? SequenceType.NUCLEOTIDE : SequenceType.AMINO_ACID;
+                return nucStates >= sequenceLength * threshold ? SequenceType.NUCLEOTIDE : SequenceType.AMINO_ACID;
+            } else if (onlyValidAminoAcids) {
+                return SequenceType.AMINO_ACID;
             }
-        } else if (onlyValidAminoAcids) {
-            result = SequenceType.AMINO_ACID;
-        } else {
-            result = null;
+            return null;
         }
-        return result;
+
+        private boolean onlyValidNucleotides = true;
+        private boolean onlyValidAminoAcids = true;
+        private int length = 0;
+        private int canonicalNucStates = 0;
+        private int undeterminedStates = 0;
+        private int gaps = 0;
     }
 
 	/**
@@ -357,25 +435,21 @@ public class Utils {
 	 * @return An array of valid states of SequenceType (may be shorter than the original sequence)
 	 */
 	public static State[] cleanSequence(final CharSequence seq, final SequenceType type) {
+		State[] cleaned = new State[seq.length()];
 		int count = 0;
 		for (int i = 0; i < seq.length(); i++) {
-			final char c = seq.charAt(i);
-		    if (type.getState(c) != null) {
-		        count++;
-		    }
-		}
-
-		State[] cleaned = new State[count];
-		int index = 0;
-		for (int i = 0; i < seq.length(); i++) {
-			final char c = seq.charAt(i);
-			State state = type.getState(c);
+			State state = type.getState(seq.charAt(i));
 		    if (state != null) {
-			    cleaned[index] = state;
-			    index += 1;
+			    cleaned[count] = state;
+			    count += 1;
 		    }
 		}
 
+		if (count < cleaned.length) {
+			State[] trimmed = new State[count];
+			System.arraycopy(cleaned, 0, trimmed, 0, count);
+			cleaned = trimmed;
+		}
 		return cleaned;
 	}
 
@@ -387,4 +461,46 @@ public class Utils {
 		return builder.toString();
 	}
 
+
+    // what each ASCII character is, for guessSequenceType()
+    private static final int VALID_NUCLEOTIDE = 1, VALID_AMINO_ACID = 2, CANONICAL_NUCLEOTIDE = 4,
+            UNDETERMINED_NUCLEOTIDE = 8, GAP = 16;
+    private static final byte[] CHARACTER_FLAGS = new byte[128];
+    static {
+        for (char c = 0; c < CHARACTER_FLAGS.length; c++) {
+            final NucleotideState nucState = Nucleotides.getState(c);
+            int flags = AminoAcids.getState(c) != null ? VALID_AMINO_ACID : 0;
+            if (nucState != null) {
+                flags |= VALID_NUCLEOTIDE;
+                if (nucState.getIndex() < Nucleotides.getCanonicalStateCount()) {
+                    flags |= CANONICAL_NUCLEOTIDE;
+                } else if (nucState == Nucleotides.GAP_STATE) {
+                    flags |= GAP;
+                } else if (nucState == Nucleotides.N_STATE) {
+                    flags |= UNDETERMINED_NUCLEOTIDE;
+                }
+            }
+            CHARACTER_FLAGS[c] = (byte) flags;
+        }
+    }
+
+    private static final char GAP_CODE = Nucleotides.GAP_STATE.getCode().charAt(0);
+    // code of the complement of each ASCII nucleotide code, in DNA and RNA
+    private static final char[] COMPLEMENT_CODES = new char[128];
+    private static final char[] RNA_COMPLEMENT_CODES = new char[128];
+    private static final byte[] COMPLEMENT_INDICES = new byte[Nucleotides.getStateCount()];
+    static {
+        for (char c = 0; c < COMPLEMENT_CODES.length; c++) {
+            NucleotideState state = Nucleotides.getState(c);
+            if (state == null) {
+                state = Nucleotides.UNKNOWN_STATE;
+            }
+            final NucleotideState complement = Nucleotides.getComplementaryState(state);
+            COMPLEMENT_CODES[c] = complement.getCode().charAt(0);
+            RNA_COMPLEMENT_CODES[c] = complement == Nucleotides.T_STATE ? 'U' : COMPLEMENT_CODES[c];
+        }
+        for (int i = 0; i < COMPLEMENT_INDICES.length; i++) {
+            COMPLEMENT_INDICES[i] = (byte) Nucleotides.getComplementaryState(Nucleotides.getState(i)).getIndex();
+        }
+    }
 }
@@ -18,6 +18,12 @@ import jebl.evolution.sequences.SequenceType;
  */
 public abstract class AminoAcidModel extends AbstractRateMatrix
 {
+    /**
+     * One letter codes of the amino acids in the order of the rows and columns of the rate matrix and of the
+     * frequencies (the order used by PAML), which is not the order of their state indices in
+     * {@link jebl.evolution.sequences.AminoAcids}.
+     */
+    public static final String AMINO_ACID_ORDER = "ARNDCQEGHILKMFPSTWYV";
 
     //
     // Protected stuff
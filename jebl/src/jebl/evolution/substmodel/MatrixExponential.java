@@ -49,6 +49,14 @@ public class MatrixExponential implements Cloneable, java.io.Serializable
 	/** transition probability matrix */
 	private final double[][] transProb;
 
+	/** decomposition used by the thread safe getTransitionProbabilities methods, replaced when the rate matrix is */
+	private transient volatile Decomposition decomposition;
+
+	private boolean hasMatrix = false;
+	private int cacheSize = DEFAULT_CACHE_SIZE;
+
+	private static final int DEFAULT_CACHE_SIZE = 1024;
+
 
 
 	/**
@@ -105,6 +113,162 @@ public class MatrixExponential implements Cloneable, java.io.Serializable
 		eltran(amat, Evec, ordr, dimension_);
 		hqr2(dimension_, 1, dimension_, amat, Evec, Eval, evali);
 		luinverse(Evec, Ievc, dimension_);
+
+		decomposition = new Decomposition(Eval, Evec, Ievc, dimension_, cacheSize);
+		hasMatrix = true;
+	}
+
+	/**
+	 * Compute transition probabilities for many distances at once, using the current rate matrix.
+	 * Unlike setDistance() this does not use or change any state shared between calls (other than a cache), so
+	 * it may be called from several threads at once, and by several users of one decomposition.
+	 * Matrices for recently used distances are cached (see setCacheSize()).
+	 *
+	 * @param distances expected distances
+	 * @param store receives one matrix per distance, each stored by row: the probability of going from
+	 * state i to state j in distance distances[k] is store[(k * dimension + i) * dimension + j]
+	 */
+	public void getTransitionProbabilities(double[] distances, double[] store) {
+		final Decomposition d = getDecomposition();
+		final int size = dimension_ * dimension_;
+		for (int k = 0; k < distances.length; k++) {
+			d.getTransitionProbabilities(distances[k], store, k * size);
+		}
+	}
+
+	/**
+	 * Compute transition probabilities for one distance, as getTransitionProbabilities(double[], double[]).
+	 *
+	 * @param distance expected distance
+	 * @param store receives the matrix by row, starting at offset
+	 * @param offset position of the first value in store
+	 */
+	public void getTransitionProbabilities(double distance, double[] store, int offset) {
+		getDecomposition().getTransitionProbabilities(distance, store, offset);
+	}
+
+	/**
+	 * Compute selected transition probabilities for one distance, which is much faster than computing the whole
+	 * matrix when only a few entries are needed. The cache is not used. May be called from several threads at once.
+	 *
+	 * @param distance expected distance
+	 * @param entries positions i * dimension + j of the probabilities of going from state i to state j
+	 * @param count number of entries to compute
+	 * @param store receives the probability of entries[k] in store[k]
+	 */
+	public void getTransitionProbabilities(double distance, int[] entries, int count, double[] store) {
+		getDecomposition().getTransitionProbabilities(distance, entries, count, store);
+	}
+
+	/**
+	 * @param cacheSize maximum number of distances for which matrices are kept (the least recently used are
+	 * dropped first). 0 disables the cache.
+	 */
+	public void setCacheSize(int cacheSize) {
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException("Negative cache size");
+		}
+		this.cacheSize = cacheSize;
+		final Decomposition d = decomposition;
+		if (d != null) {
+			d.setCacheSize(cacheSize);
+		}
+	}
+
+	private Decomposition getDecomposition() {
+		Decomposition d = decomposition;
+		if (d == null) {
+			// not serialized, so rebuilt after deserialization
+			synchronized (this) {
+				if (!hasMatrix) {
+					throw new IllegalStateException("No rate matrix has been set");
+				}
+				if (decomposition == null) {
+					decomposition = new Decomposition(Eval, Evec, Ievc, dimension_, cacheSize);
+				}
+				d = decomposition;
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * An immutable snapshot of the eigen decomposition, with the products of the eigenvectors and inverse
+	 * eigenvectors precomputed so that P(t)[i][j] = sum over k of products[(i * n + j) * n + k] exp(t Eval[k]),
+	 * and a cache of the matrices computed from it.
+	 */
+	private static final class Decomposition {
+		Decomposition(double[] eval, double[][] evec, double[][] ievc, int n, int cacheSize) {
+			this.n = n;
+			this.eval = eval.clone();
+			products = new double[n * n * n];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					for (int k = 0; k < n; k++) {
+						products[(i * n + j) * n + k] = evec[i][k] * ievc[k][j];
+					}
+				}
+			}
+			setCacheSize(cacheSize);
+		}
+
+		void getTransitionProbabilities(double distance, double[] store, int offset) {
+			final int size = n * n;
+			double[] matrix;
+			synchronized (this) {
+				matrix = cache.get(distance);
+			}
+			if (matrix == null) {
+				matrix = new double[size];
+				final double[] exps = new double[n];
+				for (int k = 0; k < n; k++) {
+					exps[k] = Math.exp(distance * eval[k]);
+				}
+				for (int ij = 0, m = 0; ij < size; ij++) {
+					double sum = 0.0;
+					for (int k = 0; k < n; k++, m++) {
+						sum += products[m] * exps[k];
+					}
+					matrix[ij] = Math.abs(sum);
+				}
+				synchronized (this) {
+					if (maxCacheSize > 0) {
+						cache.put(distance, matrix);
+					}
+				}
+			}
+			System.arraycopy(matrix, 0, store, offset, size);
+		}
+
+		void getTransitionProbabilities(double distance, int[] entries, int count, double[] store) {
+			final double[] exps = new double[n];
+			for (int k = 0; k < n; k++) {
+				exps[k] = Math.exp(distance * eval[k]);
+			}
+			for (int e = 0; e < count; e++) {
+				double sum = 0.0;
+				for (int k = 0, m = entries[e] * n; k < n; k++, m++) {
+					sum += products[m] * exps[k];
+				}
+				store[e] = Math.abs(sum);
+			}
+		}
+
+		synchronized void setCacheSize(final int cacheSize) {
+			maxCacheSize = cacheSize;
+			// most recently used last
+			cache = new java.util.LinkedHashMap<Double, double[]>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(java.util.Map.Entry<Double, double[]> eldest) {
+					return size() > cacheSize;
+				}
+			};
+		}
+
+		private final int n;
+		private final double[] eval;
+		private final double[] products;
+		private int maxCacheSize;
+		private java.util.Map<Double, double[]> cache;
 	}
 
     /**
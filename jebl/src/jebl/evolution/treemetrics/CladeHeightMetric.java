@@ -64,9 +64,11 @@ import java.util.*;
  *
  * So the score is sqrt(8^2 + 10^2) = sqrt(164)
  *
+ * For all pairs distances over a large set of trees use CladeHeightTreeSet.
+ *
  * @author Andrew Rambaut
  */
-public class CladeHeightMetric implements RootedTreeMetric {
+public class CladeHeightMetric implements SplitIndexTreeMetric {
 
 	public CladeHeightMetric() {
 		taxonMap = null;
@@ -90,8 +92,7 @@ public class CladeHeightMetric implements RootedTreeMetric {
 		if (tm == null) {
 			List<Taxon> taxa = new ArrayList<Taxon>(tree1.getTaxa());
 
-			if (!new ArrayList<Taxon>(tree2.getTaxa()).equals(taxa))
-			    tm = new HashMap<Taxon, Integer>();
+			tm = new HashMap<Taxon, Integer>();
 			for (int i = 0; i < taxa.size(); i++) {
 				tm.put(taxa.get(i), i);
 			}
@@ -108,6 +109,10 @@ public class CladeHeightMetric implements RootedTreeMetric {
 		return getDistance(clades1, clades2);
 	}
 
+	public double getMetric(TreeSplitIndex index1, TreeSplitIndex index2) {
+		return TreeSplitIndex.cladeHeightDistance(index1, index2);
+	}
+
 	private void getClades(Map<Taxon, Integer> taxonMap, RootedTree tree, Node node,
 	                       List<Clade> clades, BitSet bits) {
 
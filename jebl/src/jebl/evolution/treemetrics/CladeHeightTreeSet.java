@@ -0,0 +1,203 @@
+package jebl.evolution.treemetrics;
+
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.util.ParallelUtils;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * {@link CladeHeightMetric} distances for a whole set of trees.
+ *
+ * Each tree is indexed by a {@link TreeSplitIndex}, and each distinct clade in the set is interned once to an
+ * integer id. A tree is then also stored as the sorted ids of the clades of its internal nodes with a parallel array
+ * of node heights, so the distance between two trees is a linear merge of two int arrays; only clades missing from
+ * the other tree require a search for their MRCA, which is done by the index of that tree. Computing a distance
+ * does not allocate.
+ *
+ * @see TreeSetDistances
+ */
+public class CladeHeightTreeSet {
+
+    /**
+     * @param trees the trees
+     * @param taxa  common taxa order. All trees must have taxa from this list.
+     */
+    public CladeHeightTreeSet(List<? extends RootedTree> trees, List<Taxon> taxa) {
+        final Map<Taxon, Integer> taxonIndices = TreeSplitIndex.getTaxonIndices(taxa);
+        final Map<Clade, Integer> cladeIds = new HashMap<Clade, Integer>();
+        final List<Clade> distinctClades = new ArrayList<Clade>();
+
+        final int treeCount = trees.size();
+        indices = new TreeSplitIndex[treeCount];
+        treeCladeIds = new int[treeCount][];
+        treeHeights = new double[treeCount][];
+
+        for(int t = 0; t < treeCount; ++t) {
+            final TreeSplitIndex index = new TreeSplitIndex(trees.get(t), taxonIndices);
+            final int n = index.getCladeCount();
+            final int[] ids = new int[n];
+            for(int c = 0; c < n; ++c) {
+                final Clade clade = new Clade(index, c);
+                Integer id = cladeIds.get(clade);
+                if( id == null ) {
+                    id = distinctClades.size();
+                    distinctClades.add(clade);
+                    cladeIds.put(clade, id);
+                }
+                ids[c] = id;
+            }
+            indices[t] = index;
+            store(t, index, ids);
+        }
+        clades = distinctClades.toArray(new Clade[distinctClades.size()]);
+    }
+
+    /**
+     * @return number of trees in the set
+     */
+    public int getTreeCount() {
+        return treeCladeIds.length;
+    }
+
+    /**
+     * @return number of distinct clades over all trees in the set
+     */
+    public int getCladeCount() {
+        return clades.length;
+    }
+
+    /**
+     * @param tree1 index of first tree
+     * @param tree2 index of second tree
+     * @return the clade height distance between the two trees
+     */
+    public double getDistance(int tree1, int tree2) {
+        final int[] ids1 = treeCladeIds[tree1];
+        final int[] ids2 = treeCladeIds[tree2];
+        final double[] heights1 = treeHeights[tree1];
+        final double[] heights2 = treeHeights[tree2];
+        final int n1 = ids1.length;
+        final int n2 = ids2.length;
+
+        double distance = 0.0;
+        int i = 0, j = 0;
+        while( i < n1 || j < n2 ) {
+            final int id1 = i < n1 ? ids1[i] : Integer.MAX_VALUE;
+            final int id2 = j < n2 ? ids2[j] : Integer.MAX_VALUE;
+
+            if( id1 < id2 ) {
+                final double dif = heights1[i] - findMRCAHeight(id1, tree2);
+                distance += dif * dif;
+                ++i;
+            } else if( id1 > id2 ) {
+                final double dif = heights2[j] - findMRCAHeight(id2, tree1);
+                distance += dif * dif;
+                ++j;
+            } else {
+                // a run of equal clades (unary nodes) is matched to the first of the run in the other tree
+                final int i0 = i, j0 = j;
+                for(; i < n1 && ids1[i] == id1; ++i) {
+                    final double dif = heights1[i] - heights2[j0];
+                    distance += dif * dif;
+                }
+                for(; j < n2 && ids2[j] == id2; ++j) {
+                    final double dif = heights2[j] - heights1[i0];
+                    distance += dif * dif;
+                }
+            }
+        }
+        return Math.sqrt(distance);
+    }
+
+    /**
+     * @param threadCount number of threads to use
+     * @return symmetric matrix of distances between all pairs of trees
+     */
+    public double[][] getDistances(int threadCount) {
+        final int n = getTreeCount();
+        final double[][] d = new double[n][n];
+
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(n);
+        for(int r = 0; r < n; ++r) {
+            final int i = r;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for(int j = i + 1; j < n; ++j) {
+                        d[i][j] = d[j][i] = getDistance(i, j);
+                    }
+                    return null;
+                }
+            });
+        }
+        ParallelUtils.invokeAll(tasks, threadCount);
+        return d;
+    }
+
+    /**
+     * @return height of the smallest clade of tree strictly containing the clade id.
+     */
+    private double findMRCAHeight(int id, int tree) {
+        final TreeSplitIndex index = indices[tree];
+        return index.getCladeHeight(index.findMRCA(clades[id].index, clades[id].position));
+    }
+
+    private void store(int t, TreeSplitIndex index, final int[] ids) {
+        final int n = ids.length;
+
+        // ids in increasing order. Stable, so that repeated ids keep their post-order position in the index.
+        final Integer[] order = new Integer[n];
+        for(int k = 0; k < n; ++k) {
+            order[k] = k;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final int c = ids[a] - ids[b];
+                return c != 0 ? c : a - b;
+            }
+        });
+        treeCladeIds[t] = new int[n];
+        treeHeights[t] = new double[n];
+        for(int k = 0; k < n; ++k) {
+            treeCladeIds[t][k] = ids[order[k]];
+            treeHeights[t][k] = index.getCladeHeight(order[k]);
+        }
+    }
+
+    /**
+     * A clade of a tree index as a hash key, equal to the same clade of any other index.
+     */
+    private static class Clade {
+        Clade(TreeSplitIndex index, int position) {
+            this.index = index;
+            this.position = position;
+            hash = index.getCladeHashCode(position);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object x) {
+            if( !(x instanceof Clade) ) {
+                return false;
+            }
+            final Clade other = (Clade) x;
+            return hash == other.hash && index.isSameClade(position, other.index, other.position);
+        }
+
+        final TreeSplitIndex index;
+        final int position;
+        private final int hash;
+    }
+
+    private final TreeSplitIndex[] indices;
+
+    // interned clades, by id: the first index found having each clade
+    private final Clade[] clades;
+
+    // per tree: clade ids in increasing order and their heights
+    private final int[][] treeCladeIds;
+    private final double[][] treeHeights;
+}
@@ -10,7 +10,7 @@ import java.util.*;
 /**
  * @author Andrew Rambaut
  */
-public class RobinsonsFouldMetric implements RootedTreeMetric {
+public class RobinsonsFouldMetric implements SplitIndexTreeMetric {
 
 	public RobinsonsFouldMetric() {
 		taxonMap = null;
@@ -44,6 +44,10 @@ public class RobinsonsFouldMetric implements RootedTreeMetric {
 		return clades1.size();
 	}
 
+	public double getMetric(TreeSplitIndex index1, TreeSplitIndex index2) {
+		return TreeSplitIndex.robinsonsFouldDistance(index1, index2);
+	}
+
 	private Set<String> getClades(Map<Taxon, Integer> taxa, RootedTree tree) {
 
 		Set<String> clades = new HashSet<String>();
@@ -0,0 +1,17 @@
+package jebl.evolution.treemetrics;
+
+/**
+ * A rooted tree metric which can also be calculated from pre-computed {@link TreeSplitIndex}es, avoiding
+ * repeated traversal of the trees when many pairs are compared.
+ *
+ * @see TreeSetDistances
+ */
+public interface SplitIndexTreeMetric extends RootedTreeMetric {
+	/**
+	 * calculates the metric between two indexed trees
+	 * @param index1 first tree
+	 * @param index2 second tree, indexed with the same taxa order as the first
+	 * @return the tree metric value
+	 */
+	double getMetric(TreeSplitIndex index1, TreeSplitIndex index2);
+}
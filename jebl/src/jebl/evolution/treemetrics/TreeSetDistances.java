@@ -0,0 +1,136 @@
+package jebl.evolution.treemetrics;
+
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.util.ParallelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * All pairs distances between the trees of a set. The clades/bipartitions of each tree are extracted once
+ * (see {@link TreeSplitIndex}), after which any number of distance matrices may be computed with any
+ * {@link SplitIndexTreeMetric}.
+ *
+ * The distance matrix is computed in square tiles which are evaluated in parallel. Only the upper triangle is
+ * computed, so the metric is assumed to be symmetric. For large sets, {@link #getFloatDistances} halves the
+ * memory required for the result.
+ */
+public class TreeSetDistances {
+
+    /**
+     * Index all trees using as many threads as available processors.
+     *
+     * @param trees the trees
+     * @param taxa  common taxa order. All trees must have taxa from this list.
+     */
+    public TreeSetDistances(List<? extends RootedTree> trees, List<Taxon> taxa) {
+        this(trees, taxa, ParallelUtils.getDefaultThreadCount());
+    }
+
+    /**
+     * @param trees       the trees
+     * @param taxa        common taxa order. All trees must have taxa from this list.
+     * @param threadCount number of threads used for indexing and distance calculations
+     */
+    public TreeSetDistances(List<? extends RootedTree> trees, List<Taxon> taxa, int threadCount) {
+        this.threadCount = threadCount;
+        final Map<Taxon, Integer> taxonIndices = TreeSplitIndex.getTaxonIndices(taxa);
+
+        final List<Callable<TreeSplitIndex>> tasks = new ArrayList<Callable<TreeSplitIndex>>(trees.size());
+        for( final RootedTree tree : trees ) {
+            tasks.add(new Callable<TreeSplitIndex>() {
+                public TreeSplitIndex call() {
+                    return new TreeSplitIndex(tree, taxonIndices);
+                }
+            });
+        }
+        indices = ParallelUtils.invokeAll(tasks, threadCount).toArray(new TreeSplitIndex[trees.size()]);
+    }
+
+    /**
+     * @return number of trees
+     */
+    public int getTreeCount() {
+        return indices.length;
+    }
+
+    /**
+     * @param i tree number
+     * @return the split index of tree i
+     */
+    public TreeSplitIndex getIndex(int i) {
+        return indices[i];
+    }
+
+    /**
+     * @param tileSize number of rows (and columns) in each tile of the matrix evaluated as one task.
+     */
+    public void setTileSize(int tileSize) {
+        if( tileSize < 1 ) {
+            throw new IllegalArgumentException("tile size must be positive");
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @param metric the metric
+     * @return symmetric matrix of distances between all pairs of trees
+     */
+    public double[][] getDistances(SplitIndexTreeMetric metric) {
+        final int n = indices.length;
+        final double[][] d = new double[n][n];
+        compute(metric, d, null);
+        return d;
+    }
+
+    /**
+     * Single precision version of {@link #getDistances}.
+     *
+     * @param metric the metric
+     * @return symmetric matrix of distances between all pairs of trees
+     */
+    public float[][] getFloatDistances(SplitIndexTreeMetric metric) {
+        final int n = indices.length;
+        final float[][] d = new float[n][n];
+        compute(metric, null, d);
+        return d;
+    }
+
+    private void compute(final SplitIndexTreeMetric metric, final double[][] d, final float[][] f) {
+        final int n = indices.length;
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+        for(int r = 0; r < n; r += tileSize) {
+            for(int c = r; c < n; c += tileSize) {
+                final int row0 = r;
+                final int row1 = Math.min(r + tileSize, n);
+                final int col0 = c;
+                final int col1 = Math.min(c + tileSize, n);
+
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        for(int i = row0; i < row1; ++i) {
+                            for(int j = Math.max(col0, i + 1); j < col1; ++j) {
+                                final double x = metric.getMetric(indices[i], indices[j]);
+                                if( d != null ) {
+                                    d[i][j] = d[j][i] = x;
+                                } else {
+                                    f[i][j] = f[j][i] = (float) x;
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        ParallelUtils.invokeAll(tasks, threadCount);
+    }
+
+    private final TreeSplitIndex[] indices;
+    private final int threadCount;
+    private int tileSize = 64;
+}
@@ -0,0 +1,443 @@
+package jebl.evolution.treemetrics;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+
+import java.util.*;
+
+/**
+ * The clades and bipartitions of one tree, extracted once and stored in flat arrays so that the
+ * tree can be compared against many others without re-traversing it.
+ *
+ * Clades are stored as bit vectors (one bit per taxon, packed into longs) in a fixed taxon order
+ * which must be shared by all indices that are compared against each other. The vectors are kept
+ * sorted so that two indices are compared with a linear merge.
+ *
+ * Instances are immutable and the distance functions do not allocate, so indices can be shared
+ * between threads (see {@link TreeSetDistances}).
+ *
+ * @see BilleraMetric
+ * @see CladeHeightMetric
+ * @see RobinsonsFouldMetric
+ */
+public final class TreeSplitIndex {
+
+    /**
+     * @param tree the tree
+     * @param taxa taxa order. Must contain all taxa of tree.
+     */
+    public TreeSplitIndex(RootedTree tree, List<Taxon> taxa) {
+        this(tree, getTaxonIndices(taxa));
+    }
+
+    /**
+     * @param tree          the tree
+     * @param taxonIndices  taxon position in the shared taxa order. Must contain all taxa of tree.
+     */
+    public TreeSplitIndex(RootedTree tree, Map<Taxon, Integer> taxonIndices) {
+        taxonCount = taxonIndices.size();
+        wordCount = (taxonCount + 63) >> 6;
+
+        final int nodeCount = tree.getNodes().size();
+        final long[] nodeBits = new long[nodeCount * wordCount];
+        final double[] lengths = new double[nodeCount];
+        final double[] heights = new double[nodeCount];
+        final boolean[] internal = new boolean[nodeCount];
+        final boolean[] rootChild = new boolean[nodeCount];
+
+        final int[] count = {0};
+        collect(tree, tree.getRootNode(), taxonIndices, nodeBits, lengths, heights, internal, rootChild, count);
+        final int n = count[0];
+
+        // rooted clades of internal nodes, sorted by content, ties broken by post-order position
+
+        int internalCount = 0;
+        for(int k = 0; k < n; ++k) {
+            if( internal[k] ) ++internalCount;
+        }
+        Integer[] order = new Integer[internalCount];
+        for(int k = 0, i = 0; k < n; ++k) {
+            if( internal[k] ) order[i++] = k;
+        }
+        Arrays.sort(order, new BitsComparator(nodeBits, wordCount));
+
+        cladeCount = internalCount;
+        clades = new long[cladeCount * wordCount];
+        cladeHeights = new double[cladeCount];
+        cladeSizes = new int[cladeCount];
+        for(int i = 0; i < cladeCount; ++i) {
+            final int k = order[i];
+            System.arraycopy(nodeBits, k * wordCount, clades, i * wordCount, wordCount);
+            cladeHeights[i] = heights[k];
+            cladeSizes[i] = cardinality(clades, i * wordCount, wordCount);
+        }
+
+        // clades by size. Stable, so equal size clades keep their post-order position.
+        Integer[] bySize = new Integer[cladeCount];
+        final int[] postOrder = new int[cladeCount];
+        for(int i = 0; i < cladeCount; ++i) {
+            bySize[i] = i;
+            postOrder[i] = order[i];
+        }
+        Arrays.sort(bySize, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final int s = cladeSizes[a] - cladeSizes[b];
+                return s != 0 ? s : postOrder[a] - postOrder[b];
+            }
+        });
+        cladesBySize = new int[cladeCount];
+        sortedCladeSizes = new int[cladeCount];
+        for(int i = 0; i < cladeCount; ++i) {
+            cladesBySize[i] = bySize[i];
+            sortedCladeSizes[i] = cladeSizes[bySize[i]];
+        }
+
+        // bipartitions of all nodes. Following TreeBiPartitionInfo, a partition is represented by the side
+        // containing the first taxon, except for the two sides of the root which are kept as is.
+
+        for(int k = 0; k < n; ++k) {
+            if( !rootChild[k] && (nodeBits[k * wordCount] & 1L) == 0 ) {
+                complement(nodeBits, k * wordCount);
+            }
+        }
+        order = new Integer[n];
+        for(int k = 0; k < n; ++k) {
+            order[k] = k;
+        }
+        Arrays.sort(order, new BitsComparator(nodeBits, wordCount));
+
+        // a repeated partition is kept once, with the branch of the last node (in post-order) having it
+        int m = 0;
+        for(int i = 0; i < n; ++i) {
+            if( i + 1 < n && compare(nodeBits, order[i] * wordCount, nodeBits, order[i + 1] * wordCount, wordCount) == 0 ) {
+                continue;
+            }
+            order[m++] = order[i];
+        }
+        splitCount = m;
+        splits = new long[splitCount * wordCount];
+        splitLengths = new double[splitCount];
+        for(int i = 0; i < splitCount; ++i) {
+            System.arraycopy(nodeBits, order[i] * wordCount, splits, i * wordCount, wordCount);
+            splitLengths[i] = lengths[order[i]];
+        }
+    }
+
+    /**
+     * @param taxa taxa order
+     * @return map from taxon to its position in taxa, suitable for sharing between many indices.
+     */
+    public static Map<Taxon, Integer> getTaxonIndices(List<Taxon> taxa) {
+        final Map<Taxon, Integer> taxonIndices = new HashMap<Taxon, Integer>();
+        for(int i = 0; i < taxa.size(); ++i) {
+            taxonIndices.put(taxa.get(i), i);
+        }
+        return taxonIndices;
+    }
+
+    /**
+     * @return number of taxa in the taxa order the index was built with.
+     */
+    public int getTaxonCount() {
+        return taxonCount;
+    }
+
+    /**
+     * @return number of distinct clades of internal nodes.
+     */
+    public int getCladeCount() {
+        return cladeCount;
+    }
+
+    /**
+     * Billera (BHV) distance, the sum (NORM1) or root of sum of squares (NORM2) of changes in branch lengths
+     * required to transform one tree to the other. Gives the same result as
+     * {@link jebl.evolution.trees.TreeBiPartitionInfo#distance}.
+     *
+     * @param s1 first tree
+     * @param s2 second tree
+     * @param squared false for NORM1, true for NORM2
+     * @return distance
+     */
+    public static double billeraDistance(TreeSplitIndex s1, TreeSplitIndex s2, boolean squared) {
+        checkCompatible(s1, s2);
+        final int w = s1.wordCount;
+        double d = 0;
+        int i = 0, j = 0;
+        while( i < s1.splitCount || j < s2.splitCount ) {
+            final int c;
+            if( i == s1.splitCount ) {
+                c = 1;
+            } else if( j == s2.splitCount ) {
+                c = -1;
+            } else {
+                c = compare(s1.splits, i * w, s2.splits, j * w, w);
+            }
+
+            final double dif;
+            if( c == 0 ) {
+                dif = Math.abs(s1.splitLengths[i] - s2.splitLengths[j]);
+                ++i; ++j;
+            } else if( c < 0 ) {
+                dif = s1.splitLengths[i];
+                ++i;
+            } else {
+                dif = s2.splitLengths[j];
+                ++j;
+            }
+            d += squared ? dif * dif : dif;
+        }
+        return squared ? Math.sqrt(d) : d;
+    }
+
+    /**
+     * Number of clades in the first tree which are not in the second. Same as {@link RobinsonsFouldMetric}.
+     *
+     * @param s1 first tree
+     * @param s2 second tree
+     * @return count
+     */
+    public static int robinsonsFouldDistance(TreeSplitIndex s1, TreeSplitIndex s2) {
+        checkCompatible(s1, s2);
+        final int w = s1.wordCount;
+        int missing = 0;
+        int i = 0, j = 0;
+        while( i < s1.cladeCount ) {
+            final int c = (j == s2.cladeCount) ? -1 : compare(s1.clades, i * w, s2.clades, j * w, w);
+            if( c > 0 ) {
+                ++j;
+                continue;
+            }
+            if( c < 0 ) {
+                ++missing;
+            }
+            // skip repeats of the same clade
+            ++i;
+            while( i < s1.cladeCount && compare(s1.clades, i * w, s1.clades, (i - 1) * w, w) == 0 ) {
+                ++i;
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * The clade height distance of {@link CladeHeightMetric}. Clades present in both trees are paired by a merge;
+     * only for clades missing from the other tree is the MRCA searched for.
+     *
+     * @param s1 first tree
+     * @param s2 second tree
+     * @return distance
+     */
+    public static double cladeHeightDistance(TreeSplitIndex s1, TreeSplitIndex s2) {
+        checkCompatible(s1, s2);
+        final int w = s1.wordCount;
+        double distance = 0.0;
+        int i = 0, j = 0;
+        while( i < s1.cladeCount || j < s2.cladeCount ) {
+            final int c;
+            if( i == s1.cladeCount ) {
+                c = 1;
+            } else if( j == s2.cladeCount ) {
+                c = -1;
+            } else {
+                c = compare(s1.clades, i * w, s2.clades, j * w, w);
+            }
+
+            if( c < 0 ) {
+                final double dif = s1.cladeHeights[i] - s2.cladeHeights[s2.findMRCA(s1, i)];
+                distance += dif * dif;
+                ++i;
+            } else if( c > 0 ) {
+                final double dif = s2.cladeHeights[j] - s1.cladeHeights[s1.findMRCA(s2, j)];
+                distance += dif * dif;
+                ++j;
+            } else {
+                // a run of equal clades (unary nodes) is matched to the first of the run in the other tree
+                final int i0 = i, j0 = j;
+                while( i < s1.cladeCount && compare(s1.clades, i * w, s1.clades, i0 * w, w) == 0 ) {
+                    final double dif = s1.cladeHeights[i] - s2.cladeHeights[j0];
+                    distance += dif * dif;
+                    ++i;
+                }
+                while( j < s2.cladeCount && compare(s2.clades, j * w, s2.clades, j0 * w, w) == 0 ) {
+                    final double dif = s2.cladeHeights[j] - s1.cladeHeights[i0];
+                    distance += dif * dif;
+                    ++j;
+                }
+            }
+        }
+        return Math.sqrt(distance);
+    }
+
+    /**
+     * @param clade position of a clade in this index, in 0..getCladeCount()-1
+     * @return height of the node of the clade
+     */
+    double getCladeHeight(int clade) {
+        return cladeHeights[clade];
+    }
+
+    /**
+     * @return hash code of the taxa of a clade, the same for equal clades of any index with the same taxa order.
+     */
+    int getCladeHashCode(int clade) {
+        int hash = 1;
+        for(int k = clade * wordCount; k < (clade + 1) * wordCount; ++k) {
+            hash = 31 * hash + (int) (clades[k] ^ (clades[k] >>> 32));
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if a clade of this index has the same taxa as a clade of other
+     */
+    boolean isSameClade(int clade, TreeSplitIndex other, int otherClade) {
+        return wordCount == other.wordCount &&
+                compare(clades, clade * wordCount, other.clades, otherClade * wordCount, wordCount) == 0;
+    }
+
+    /**
+     * @return position of the smallest clade of this tree strictly containing a clade of other.
+     */
+    int findMRCA(TreeSplitIndex other, int otherClade) {
+        final long[] bits = other.clades;
+        final int offset = otherClade * wordCount;
+        final int size = other.cladeSizes[otherClade];
+
+        // first clade larger than size
+        int lo = 0, hi = cladeCount;
+        while( lo < hi ) {
+            final int mid = (lo + hi) >>> 1;
+            if( sortedCladeSizes[mid] <= size ) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for(int k = lo; k < cladeCount; ++k) {
+            final int c = cladesBySize[k];
+            if( isSubset(bits, offset, clades, c * wordCount, wordCount) ) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("Trees contain different taxa");
+    }
+
+    private static void checkCompatible(TreeSplitIndex s1, TreeSplitIndex s2) {
+        if( s1.taxonCount != s2.taxonCount ) {
+            throw new IllegalArgumentException("Split indices built with different taxa");
+        }
+    }
+
+    private int collect(RootedTree tree, Node node, Map<Taxon, Integer> taxonIndices, long[] nodeBits,
+                        double[] lengths, double[] heights, boolean[] internal, boolean[] rootChild, int[] count) {
+        final int[] children;
+        if( tree.isExternal(node) ) {
+            children = null;
+        } else {
+            final List<Node> nodeChildren = tree.getChildren(node);
+            children = new int[nodeChildren.size()];
+            for(int k = 0; k < children.length; ++k) {
+                children[k] = collect(tree, nodeChildren.get(k), taxonIndices, nodeBits, lengths, heights,
+                        internal, rootChild, count);
+            }
+        }
+
+        final int index = count[0]++;
+        final int offset = index * wordCount;
+        if( children == null ) {
+            final Integer pos = taxonIndices.get(tree.getTaxon(node));
+            if( pos == null ) {
+                throw new IllegalArgumentException("Taxon " + tree.getTaxon(node) + " not in taxa list");
+            }
+            nodeBits[offset + (pos >> 6)] |= 1L << pos;
+        } else {
+            for( int child : children ) {
+                for(int k = 0; k < wordCount; ++k) {
+                    nodeBits[offset + k] |= nodeBits[child * wordCount + k];
+                }
+            }
+        }
+        internal[index] = children != null;
+        lengths[index] = tree.getLength(node);
+        heights[index] = tree.hasHeights() ? tree.getHeight(node) : 0.0;
+        final Node parent = tree.getParent(node);
+        rootChild[index] = parent == null || parent == tree.getRootNode();
+        return index;
+    }
+
+    private void complement(long[] bits, int offset) {
+        for(int k = 0; k < wordCount; ++k) {
+            bits[offset + k] = ~bits[offset + k];
+        }
+        final int extra = taxonCount & 63;
+        if( extra != 0 ) {
+            bits[offset + wordCount - 1] &= (1L << extra) - 1;
+        }
+    }
+
+    private static int compare(long[] a, int aOffset, long[] b, int bOffset, int wordCount) {
+        for(int k = 0; k < wordCount; ++k) {
+            final long x = a[aOffset + k];
+            final long y = b[bOffset + k];
+            if( x != y ) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isSubset(long[] a, int aOffset, long[] b, int bOffset, int wordCount) {
+        for(int k = 0; k < wordCount; ++k) {
+            if( (a[aOffset + k] & ~b[bOffset + k]) != 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int cardinality(long[] bits, int offset, int wordCount) {
+        int c = 0;
+        for(int k = 0; k < wordCount; ++k) {
+            c += Long.bitCount(bits[offset + k]);
+        }
+        return c;
+    }
+
+    /**
+     * Orders node positions by their bit vectors, ties by position.
+     */
+    private static class BitsComparator implements Comparator<Integer> {
+        BitsComparator(long[] bits, int wordCount) {
+            this.bits = bits;
+            this.wordCount = wordCount;
+        }
+
+        public int compare(Integer a, Integer b) {
+            final int c = TreeSplitIndex.compare(bits, a * wordCount, bits, b * wordCount, wordCount);
+            return c != 0 ? c : a - b;
+        }
+
+        private final long[] bits;
+        private final int wordCount;
+    }
+
+    private final int taxonCount;
+    private final int wordCount;
+
+    // bipartitions (all nodes), sorted
+    private final int splitCount;
+    private final long[] splits;
+    private final double[] splitLengths;
+
+    // rooted clades (internal nodes), sorted
+    private final int cladeCount;
+    private final long[] clades;
+    private final double[] cladeHeights;
+    private final int[] cladeSizes;
+
+    // positions of clades in order of clade size
+    private final int[] cladesBySize;
+    private final int[] sortedCladeSizes;
+}
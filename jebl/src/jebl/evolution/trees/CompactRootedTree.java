@@ -4,6 +4,7 @@ import jebl.evolution.graphs.Edge;
 import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.util.Attributable;
+import jebl.util.AttributeColumns;
 
 import java.util.*;
 
@@ -14,6 +15,8 @@ import java.util.*;
  *     and objects
  *   - Minimize penalty for unused features. Trees not using attributes or edges do not require additional
  *     per node/edge memory.
+ *   - Node attributes are stored by column (see AttributeColumns), so numeric annotations cost a primitive
+ *     array slot per node.
  *
  * Limitations:
  *    - Some of the accessors are slower, typically the ones getting all nodes, all edges, all internal
@@ -94,9 +97,16 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     private boolean conceptuallyUnrooted = false;
 
     /**
-     * Attributes for tree, nodes and edges.
+     * Attributes for nodes, one typed column per attribute name. Row x holds the attributes of node x.
+     * Created on first use. Not synchronized: as with the tree and edge attributes, setting an attribute of one
+     * node must not happen at the same time as reading those of another.
+     */
+    AttributeColumns nodeAttributes = null;
+
+    /**
+     * Attributes for tree and edges.
      *
-     * attributs for node x are in all.get(x), for tree in all.get(#nodes), and for edges
+     * attributs for tree are in all.get(#nodes), and for edges
      * in all.get(#nodes + edge index) (note that edge index always > 0)
      */
     Map<Integer, Map<String, Object> > all = null;
@@ -132,7 +142,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     /**
      * A minimal rooted node.
      */
-    private class SimpleRootedNode extends AttributableImp implements Node {
+    private class SimpleRootedNode implements Node {
         // Index of node in tree nodes array.
         private int index;
 
@@ -144,15 +154,35 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
             return nSons(index) + (this==getRootNode()?0:1);
         }
 
-        Map<String, Object> getExistingMap() {
-            if( hasAttributeMap(index) ) {
-                return aMap(index);
+        public void setAttribute(String name, Object value) {
+            if( nodeAttributes == null ) {
+                nodeAttributes = new AttributeColumns();
             }
-            return null;
+            nodeAttributes.set(index, name, value);
         }
 
-        Map<String, Object> getMap() {
-            return aMap(index);
+        public Object getAttribute(String name) {
+            return nodeAttributes == null ? null : nodeAttributes.get(index, name);
+        }
+
+        public void removeAttribute(String name) {
+            if( nodeAttributes != null ) {
+                nodeAttributes.remove(index, name);
+            }
+        }
+
+        public Set<String> getAttributeNames() {
+            if( nodeAttributes == null ) {
+                return Collections.emptySet();
+            }
+            return nodeAttributes.getNames(index);
+        }
+
+        public Map<String, Object> getAttributeMap() {
+            if( nodeAttributes == null ) {
+                return Collections.emptyMap();
+            }
+            return nodeAttributes.getMap(index);
         }
     }
 
@@ -275,9 +305,8 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
                 noSons[iNode] = ns;
 
                 // set node attributes
-                final Map<String, Object> map = n.getAttributeMap();
-                if( map.size() > 0 ) {
-                   nodes[iNode].getMap().putAll(map);
+                for( Map.Entry<String, Object> e : n.getAttributeMap().entrySet() ) {
+                    nodes[iNode].setAttribute(e.getKey(), e.getValue());
                 }
 
                 // add decendents for next round
@@ -299,6 +328,58 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
         }
     }
 
+    /**
+     * Build a binary tree directly from arrays, without an intermediate tree (as used by simulations).
+     *
+     * Nodes are numbered 0 to n-1 for the tips and n to 2n-2 for the internal nodes, the last being the root.
+     *
+     * @param taxa     taxa of the tips
+     * @param children the two children of internal node n+k are children[2k] and children[2k+1]
+     * @param heights  height of each node
+     */
+    public CompactRootedTree(Taxon[] taxa, int[] children, double[] heights) {
+        final int nTips = taxa.length;
+        final int nNodes = 2 * nTips - 1;
+        if( children.length != 2 * (nTips - 1) || heights.length < nNodes ) {
+            throw new IllegalArgumentException("Arrays do not describe a binary tree of " + nTips + " tips");
+        }
+
+        nodes = new SimpleRootedNode[nNodes];
+        parent = new int[nNodes];
+        sons = new int[nNodes];
+        noSons = new int[nNodes];
+        this.heights = new double[nNodes];
+        hasHeights = true;
+        hasLengths = true;
+        this.taxa = new Taxon[nTips];
+        edges = null;
+
+        // order[i] is the input number of the node stored at i, in level order as in the other constructor
+        final int[] order = new int[nNodes];
+        order[0] = nNodes - 1;
+        int nextFree = 1;
+        int nTax = 0;
+        for(int iNode = 0; iNode < nNodes; ++iNode) {
+            final int n = order[iNode];
+            nodes[iNode] = new SimpleRootedNode(iNode);
+            this.heights[iNode] = heights[n];
+            if( n < nTips ) {
+                this.taxa[nTax] = taxa[n];
+                noSons[iNode] = MASK | nTax;
+                ++nTax;
+            } else {
+                final int k = 2 * (n - nTips);
+                sons[iNode] = nextFree;
+                noSons[iNode] = 2;
+                for(int l = 0; l < 2; ++l) {
+                    order[nextFree] = children[k + l];
+                    parent[nextFree] = iNode;
+                    ++nextFree;
+                }
+            }
+        }
+    }
+
     public List<Node> getChildren(Node node) {
         final int index = ((SimpleRootedNode) node).index;
         final int nSon = nSons(index);
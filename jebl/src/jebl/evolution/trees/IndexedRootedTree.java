@@ -0,0 +1,21 @@
+package jebl.evolution.trees;
+
+/**
+ * A RootedTree wrapper carrying a {@link RootedTreeIndex} of its source. {@link RootedTreeUtils} recognises
+ * these and answers MRCA, monophyly and descendant tip queries from the index instead of walking the tree.
+ *
+ * The source tree must not be changed while wrapped.
+ */
+public class IndexedRootedTree extends FilteredRootedTree {
+
+    public IndexedRootedTree(final RootedTree source) {
+        super(source);
+        index = new RootedTreeIndex(source);
+    }
+
+    public RootedTreeIndex getIndex() {
+        return index;
+    }
+
+    private final RootedTreeIndex index;
+}
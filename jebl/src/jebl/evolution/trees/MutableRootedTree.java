@@ -236,6 +236,7 @@ public class MutableRootedTree implements RootedTree {
         internalNodes.add(node);
 
         rootNode = node;
+        traversal = null;
         return node;
     }
 
@@ -342,6 +343,21 @@ public class MutableRootedTree implements RootedTree {
         return rootNode;
     }
 
+    /**
+     * The traversal orders of this tree as dense arrays. The snapshot is cached and shared between calls
+     * until the topology of the tree changes.
+     *
+     * @return traversal of the current tree
+     */
+    public RootedTreeTraversal getTraversal() {
+        RootedTreeTraversal t = traversal;
+        if (t == null || (rootNode != null && (t.getNodeCount() == 0 || t.getNode(0) != rootNode))) {
+            t = new RootedTreeTraversal(this);
+            traversal = t;
+        }
+        return t;
+    }
+
 	public boolean isRoot(Node node) {
 		return node == rootNode;
 	}
@@ -684,6 +700,9 @@ public class MutableRootedTree implements RootedTree {
 
     private boolean conceptuallyUnrooted = false;
 
+    // cached traversal, dropped whenever the topology changes
+    private RootedTreeTraversal traversal = null;
+
     private class MutableRootedNode extends BaseNode {
         public MutableRootedNode(Taxon taxon) {
             this.children = Collections.unmodifiableList(new ArrayList<Node>());
@@ -697,12 +716,14 @@ public class MutableRootedTree implements RootedTree {
 
 
         public void removeChild(Node node) {
+            traversal = null;
             List<Node> c = new ArrayList<Node>(children);
             c.remove(node);
             children = Collections.unmodifiableList(c);
         }
 
         public void addChild(MutableRootedNode node) {
+            traversal = null;
             List<Node> c = new ArrayList<Node>(children);
             c.add(node);
             node.setParent(this);
@@ -710,6 +731,7 @@ public class MutableRootedTree implements RootedTree {
         }
 
         public void replaceChildren(List<MutableRootedNode> nodes) {
+            traversal = null;
             for( MutableRootedNode n : nodes ) {
                 n.setParent(this);
             }
@@ -722,6 +744,7 @@ public class MutableRootedTree implements RootedTree {
         }
 
         public void setParent(Node parent) {
+            traversal = null;
             this.parent = parent;
         }
 
@@ -0,0 +1,273 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Node;
+
+import java.util.*;
+
+/**
+ * An immutable index of the topology of a rooted tree, answering most recent common ancestor (MRCA),
+ * ancestry and descendant tip queries in constant time.
+ *
+ * Nodes are numbered in pre-order, so the descendants of a node occupy a contiguous range of numbers, as do its
+ * descendant tips in the tip order. MRCA queries are answered with a sparse table range minimum query over the
+ * Euler tour of the tree: the MRCA of two nodes is the node with the smallest pre-order number visited by the tour
+ * between their first visits.
+ *
+ * The index reflects the tree at the time it was built, and must be rebuilt if the tree is changed.
+ * See {@link IndexedRootedTree} for making {@link RootedTreeUtils} use an index.
+ */
+public final class RootedTreeIndex {
+
+    public RootedTreeIndex(RootedTree tree) {
+        this.tree = tree;
+
+        final int nodeCount = tree.getNodes().size();
+        nodes = new Node[nodeCount];
+        parents = new int[nodeCount];
+        lastDescendant = new int[nodeCount];
+        postOrder = new int[nodeCount];
+        firstTip = new int[nodeCount];
+        tipCounts = new int[nodeCount];
+        eulerFirst = new int[nodeCount];
+        nodeNumbers = new HashMap<Node, Integer>(2 * nodeCount);
+
+        final int tourLength = 2 * nodeCount - 1;
+        final int[] tour = new int[tourLength];
+        final List<Node> tips = new ArrayList<Node>();
+
+        // iterative depth first traversal, avoiding deep recursion on unbalanced trees
+        final int[] stack = new int[nodeCount];
+        final int[] nextChild = new int[nodeCount];
+        int preCount = 0, postCount = 0, tourCount = 0;
+
+        int top = 0;
+        stack[0] = visit(tree.getRootNode(), -1, preCount++, tips);
+        eulerFirst[0] = tourCount;
+        tour[tourCount++] = 0;
+
+        while( top >= 0 ) {
+            final int n = stack[top];
+            final List<Node> children = tree.getChildren(nodes[n]);
+            if( nextChild[n] < children.size() ) {
+                final int c = visit(children.get(nextChild[n]++), n, preCount++, tips);
+                eulerFirst[c] = tourCount;
+                tour[tourCount++] = c;
+                stack[++top] = c;
+            } else {
+                lastDescendant[n] = preCount - 1;
+                tipCounts[n] = tips.size() - firstTip[n];
+                postOrder[n] = postCount++;
+                --top;
+                if( top >= 0 ) {
+                    tour[tourCount++] = stack[top];
+                }
+            }
+        }
+
+        this.tips = tips.toArray(new Node[tips.size()]);
+
+        // sparse table: level k holds the minimum over tour ranges of length 2^k
+        int levels = 1;
+        while( (1 << levels) <= tourLength ) {
+            ++levels;
+        }
+        sparseTable = new int[levels][];
+        sparseTable[0] = tour;
+        for(int k = 1; k < levels; ++k) {
+            final int[] prev = sparseTable[k - 1];
+            final int half = 1 << (k - 1);
+            final int[] level = new int[tourLength - (1 << k) + 1];
+            for(int i = 0; i < level.length; ++i) {
+                level[i] = Math.min(prev[i], prev[i + half]);
+            }
+            sparseTable[k] = level;
+        }
+    }
+
+    private int visit(Node node, int parent, int number, List<Node> tips) {
+        nodes[number] = node;
+        parents[number] = parent;
+        nodeNumbers.put(node, number);
+        firstTip[number] = tips.size();
+        if( tree.isExternal(node) ) {
+            tips.add(node);
+        }
+        return number;
+    }
+
+    /**
+     * @return the indexed tree
+     */
+    public RootedTree getTree() {
+        return tree;
+    }
+
+    /**
+     * @return number of nodes in the tree
+     */
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return the pre-order number of the node. The root is 0.
+     */
+    public int getPreOrderNumber(Node node) {
+        final Integer n = nodeNumbers.get(node);
+        if( n == null ) {
+            throw new IllegalArgumentException("Node is not in the indexed tree");
+        }
+        return n;
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return the post-order number of the node. The root is the last.
+     */
+    public int getPostOrderNumber(Node node) {
+        return postOrder[getPreOrderNumber(node)];
+    }
+
+    /**
+     * @param number pre-order number
+     * @return the node with this number
+     */
+    public Node getNode(int number) {
+        return nodes[number];
+    }
+
+    /**
+     * @param node1 a node of the tree
+     * @param node2 a node of the tree
+     * @return the MRCA of the two nodes
+     */
+    public Node getMRCA(Node node1, Node node2) {
+        return nodes[getMRCA(getPreOrderNumber(node1), getPreOrderNumber(node2))];
+    }
+
+    /**
+     * @param nodes nodes of the tree
+     * @return the MRCA of the nodes (time linear in the number of nodes given)
+     */
+    public Node getMRCA(Collection<Node> nodes) {
+        if( nodes.size() == 0 ) {
+            throw new IllegalArgumentException("No nodes given");
+        }
+
+        // the MRCA of the nodes is the MRCA of the two visited first and last by the Euler tour
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for( Node node : nodes ) {
+            final int n = getPreOrderNumber(node);
+            first = Math.min(first, eulerFirst[n]);
+            last = Math.max(last, eulerFirst[n]);
+        }
+        return this.nodes[rangeMinimum(first, last)];
+    }
+
+    /**
+     * @param n1 pre-order number of first node
+     * @param n2 pre-order number of second node
+     * @return pre-order number of the MRCA
+     */
+    public int getMRCA(int n1, int n2) {
+        final int i = eulerFirst[n1];
+        final int j = eulerFirst[n2];
+        return i <= j ? rangeMinimum(i, j) : rangeMinimum(j, i);
+    }
+
+    private int rangeMinimum(int i, int j) {
+        final int k = 31 - Integer.numberOfLeadingZeros(j - i + 1);
+        final int[] level = sparseTable[k];
+        return Math.min(level[i], level[j - (1 << k) + 1]);
+    }
+
+    /**
+     * @param ancestor  a node of the tree
+     * @param node      a node of the tree
+     * @return true if ancestor is node or one of its ancestors
+     */
+    public boolean isAncestor(Node ancestor, Node node) {
+        return isAncestor(getPreOrderNumber(ancestor), getPreOrderNumber(node));
+    }
+
+    /**
+     * @param ancestor  pre-order number of candidate ancestor
+     * @param node      pre-order number of node
+     * @return true if ancestor is node or one of its ancestors
+     */
+    public boolean isAncestor(int ancestor, int node) {
+        return ancestor <= node && node <= lastDescendant[ancestor];
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return the parent of the node, or null for the root
+     */
+    public Node getParent(Node node) {
+        final int p = parents[getPreOrderNumber(node)];
+        return p < 0 ? null : nodes[p];
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return the number of tips descended from node (1 for a tip)
+     */
+    public int getTipCount(Node node) {
+        return tipCounts[getPreOrderNumber(node)];
+    }
+
+    /**
+     * Tips are numbered in the order they are visited by a pre-order traversal. The tips descended from a node
+     * are the tips numbered getFirstTip(node) to getFirstTip(node) + getTipCount(node) - 1.
+     *
+     * @param node a node of the tree
+     * @return the number of the first tip descended from node
+     */
+    public int getFirstTip(Node node) {
+        return firstTip[getPreOrderNumber(node)];
+    }
+
+    /**
+     * @param number tip number
+     * @return the tip
+     */
+    public Node getTip(int number) {
+        return tips[number];
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return unmodifiable view of the tips descended from node, in tip order
+     */
+    public List<Node> getDescendantTips(Node node) {
+        final int n = getPreOrderNumber(node);
+        return Collections.unmodifiableList(Arrays.asList(tips).subList(firstTip[n], firstTip[n] + tipCounts[n]));
+    }
+
+    /**
+     * @param tipNodes a set of tips of the tree
+     * @return true if there is a node in the tree which subtends all the tips in the set (and only those tips).
+     */
+    public boolean isMonophyletic(Collection<Node> tipNodes) {
+        return getTipCount(getMRCA(tipNodes)) == tipNodes.size();
+    }
+
+    private final RootedTree tree;
+
+    // all per node arrays are indexed by pre-order number
+    private final Node[] nodes;
+    private final Map<Node, Integer> nodeNumbers;
+    private final int[] parents;
+    private final int[] lastDescendant;
+    private final int[] postOrder;
+    private final int[] firstTip;
+    private final int[] tipCounts;
+
+    private final Node[] tips;
+
+    // position of first visit of each node in the Euler tour
+    private final int[] eulerFirst;
+    private final int[][] sparseTable;
+}
@@ -0,0 +1,230 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the topology of a rooted tree as dense arrays, for algorithms which would otherwise keep
+ * per-node values in a Map&lt;Node, ...&gt;.
+ *
+ * Each node gets an index, its position in a pre-order traversal (so the root is 0 and a parent always has a
+ * smaller index than its children). Per node values can then be kept in primitive arrays indexed by node index,
+ * and filled by iterating over {@link #getPostOrder()} (children before parents) or the pre-order (parents before
+ * children).
+ *
+ * The arrays returned are shared and must not be modified. A snapshot does not change when its tree does;
+ * SimpleRootedTree and MutableRootedTree cache one (see their getTraversal()) and drop it on any change
+ * of topology.
+ */
+public final class RootedTreeTraversal {
+
+    public RootedTreeTraversal(RootedTree tree) {
+        // pre-order numbering with an explicit stack, pushing children in reverse so that they are
+        // numbered in their natural order. Only nodes reachable from the root are counted.
+        final List<Node> preOrder = new ArrayList<Node>();
+        final List<Integer> preOrderParents = new ArrayList<Integer>();
+        final List<Node> stack = new ArrayList<Node>();
+        final List<Integer> stackParents = new ArrayList<Integer>();
+        if( tree.getRootNode() != null ) {
+            stack.add(tree.getRootNode());
+            stackParents.add(-1);
+        }
+        while( !stack.isEmpty() ) {
+            final Node node = stack.remove(stack.size() - 1);
+            final int parent = stackParents.remove(stackParents.size() - 1);
+
+            final int index = preOrder.size();
+            preOrder.add(node);
+            preOrderParents.add(parent);
+
+            final List<Node> children = tree.getChildren(node);
+            for(int k = children.size() - 1; k >= 0; --k) {
+                stack.add(children.get(k));
+                stackParents.add(index);
+            }
+        }
+
+        final int nodeCount = preOrder.size();
+        nodes = preOrder.toArray(new Node[nodeCount]);
+        parents = new int[nodeCount];
+        childOffsets = new int[nodeCount + 1];
+        childIndices = new int[Math.max(nodeCount - 1, 0)];
+        postOrder = new int[nodeCount];
+        levelOrder = new int[nodeCount];
+        externalNodeCounts = new int[nodeCount];
+        indices = new HashMap<Node, Integer>(2 * nodeCount);
+        for(int i = 0; i < nodeCount; ++i) {
+            parents[i] = preOrderParents.get(i);
+            indices.put(nodes[i], i);
+        }
+
+        // children of each node, in order
+        for(int i = 1; i < nodeCount; ++i) {
+            ++childOffsets[parents[i] + 1];
+        }
+        for(int i = 0; i < nodeCount; ++i) {
+            childOffsets[i + 1] += childOffsets[i];
+        }
+        final int[] fill = new int[nodeCount];
+        for(int i = 1; i < nodeCount; ++i) {
+            final int p = parents[i];
+            childIndices[childOffsets[p] + fill[p]++] = i;
+        }
+
+        // level order: a breadth first queue over the child lists
+        if( nodeCount > 0 ) {
+            int head = 0, tail = 0;
+            levelOrder[tail++] = 0;
+            while( head < tail ) {
+                final int n = levelOrder[head++];
+                for(int k = childOffsets[n]; k < childOffsets[n + 1]; ++k) {
+                    levelOrder[tail++] = childIndices[k];
+                }
+            }
+        }
+
+        // post-order: visit node after all its children
+        int post = 0;
+        if( nodeCount > 0 ) {
+            final int[] nodeStack = new int[nodeCount];
+            final int[] next = new int[nodeCount];
+            int t = 0;
+            nodeStack[0] = 0;
+            while( t >= 0 ) {
+                final int n = nodeStack[t];
+                if( childOffsets[n] + next[n] < childOffsets[n + 1] ) {
+                    nodeStack[++t] = childIndices[childOffsets[n] + next[n]++];
+                } else {
+                    postOrder[post++] = n;
+                    --t;
+                }
+            }
+        }
+
+        for( int n : postOrder ) {
+            if( isExternal(n) ) {
+                externalNodeCounts[n] = 1;
+            }
+            if( parents[n] >= 0 ) {
+                externalNodeCounts[parents[n]] += externalNodeCounts[n];
+            }
+        }
+    }
+
+    /**
+     * @param tree a tree
+     * @return the traversal cached by tree if it is a SimpleRootedTree or MutableRootedTree, null otherwise.
+     */
+    public static RootedTreeTraversal getCached(RootedTree tree) {
+        if( tree instanceof SimpleRootedTree ) {
+            return ((SimpleRootedTree) tree).getTraversal();
+        }
+        if( tree instanceof MutableRootedTree ) {
+            return ((MutableRootedTree) tree).getTraversal();
+        }
+        return null;
+    }
+
+    /**
+     * @return number of nodes in the tree
+     */
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return index (pre-order position) of node
+     */
+    public int getIndex(Node node) {
+        final Integer index = indices.get(node);
+        if( index == null ) {
+            throw new IllegalArgumentException("Node is not in the tree");
+        }
+        return index;
+    }
+
+    /**
+     * @param index node index
+     * @return the node with this index
+     */
+    public Node getNode(int index) {
+        return nodes[index];
+    }
+
+    /**
+     * @return all nodes in pre-order, i.e. indexed by node index.
+     */
+    public Node[] getPreOrderNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return node indices in post-order (children before parents, root last).
+     */
+    public int[] getPostOrder() {
+        return postOrder;
+    }
+
+    /**
+     * @return node indices in level order (root first, then by increasing depth).
+     */
+    public int[] getLevelOrder() {
+        return levelOrder;
+    }
+
+    /**
+     * @return index of the parent of each node (-1 for the root), indexed by node index.
+     */
+    public int[] getParentIndices() {
+        return parents;
+    }
+
+    /**
+     * @param index node index
+     * @return number of children of node
+     */
+    public int getChildCount(int index) {
+        return childOffsets[index + 1] - childOffsets[index];
+    }
+
+    /**
+     * @param index node index
+     * @param k     child number
+     * @return index of the k'th child of node
+     */
+    public int getChild(int index, int k) {
+        return childIndices[childOffsets[index] + k];
+    }
+
+    /**
+     * @param index node index
+     * @return true if node has no children
+     */
+    public boolean isExternal(int index) {
+        return childOffsets[index] == childOffsets[index + 1];
+    }
+
+    /**
+     * @return number of external nodes under each node (1 for an external node), indexed by node index.
+     */
+    public int[] getExternalNodeCounts() {
+        return externalNodeCounts;
+    }
+
+    private final Node[] nodes;
+    private final Map<Node, Integer> indices;
+    private final int[] parents;
+
+    // children of node i are childIndices[childOffsets[i]] ... childIndices[childOffsets[i+1] - 1]
+    private final int[] childOffsets;
+    private final int[] childIndices;
+
+    private final int[] postOrder;
+    private final int[] levelOrder;
+    private final int[] externalNodeCounts;
+}
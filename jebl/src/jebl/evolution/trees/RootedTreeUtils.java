@@ -9,6 +9,8 @@ import java.util.*;
 /**
  * Static utility functions for rooted trees.
  *
+ * Trees wrapped in an {@link IndexedRootedTree} are queried through their index where possible.
+ *
  * @author Andrew Rambaut
  * @author Alexei Drummond
  *
@@ -24,6 +26,10 @@ public class RootedTreeUtils {
 	 * @return the number of leaves under this node.
 	 */
 	public static final int getTipCount(RootedTree tree, Node node) {
+		if (tree instanceof IndexedRootedTree) {
+			return ((IndexedRootedTree) tree).getIndex().getTipCount(node);
+		}
+
 		int tipCount = 0;
 		for (Node child : tree.getChildren(node)) {
 			tipCount += getTipCount(tree, child);
@@ -113,6 +119,11 @@ public class RootedTreeUtils {
 	 */
 	public static Set<Node> getDescendantTips(RootedTree tree, Node node) {
 
+		if (tree instanceof IndexedRootedTree) {
+			if (tree.isExternal(node)) return new LinkedHashSet<Node>();
+			return new LinkedHashSet<Node>(((IndexedRootedTree) tree).getIndex().getDescendantTips(node));
+		}
+
 		Set<Node> tipNodes = new LinkedHashSet<Node>();
 		getDescendantTips(tree, node, tipNodes);
 		return tipNodes;
@@ -146,6 +157,10 @@ public class RootedTreeUtils {
 
 		if (tipNodes.size() == 1) return tipNodes.iterator().next();
 
+		if (tree instanceof IndexedRootedTree) {
+			return ((IndexedRootedTree) tree).getIndex().getMRCA(tipNodes);
+		}
+
 		Node[] mrca = new Node[] { null };
 		getCommonAncestorNode(tree, tree.getRootNode(), tipNodes, mrca);
 
@@ -209,6 +224,10 @@ public class RootedTreeUtils {
 			return true;
 		}
 
+		if (tree instanceof IndexedRootedTree) {
+			return ((IndexedRootedTree) tree).getIndex().isMonophyletic(tipNodes);
+		}
+
 		int[] matchCount = new int[] { 0 };
 		int[] tipCount = new int[] { 0 };
 
@@ -4,6 +4,7 @@ import jebl.evolution.graphs.Edge;
 import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.util.AttributableHelper;
+import jebl.util.AttributeColumns;
 
 import java.util.*;
 
@@ -11,6 +12,8 @@ import java.util.*;
  * A simple, and initially immutable rooted tree implementation. All returned collections
  * are defensively copied. The implementation of Node is private. A number of methods are
  * provided that can be used to construct a tree (createExternalNode & createInternalNode).
+ * For repeated traversals use getTraversal(), which returns a cached array based snapshot
+ * rather than a copy.
  *
  * @author Andrew Rambaut
  * @author Alexei Drummond
@@ -170,6 +173,7 @@ final public class SimpleRootedTree implements RootedTree {
         internalNodes.add(node);
 
         rootNode = node;
+        traversal = null;
         return node;
     }
 
@@ -189,6 +193,7 @@ final public class SimpleRootedTree implements RootedTree {
             rootNode = (SimpleRootedNode) getChildren(node).get(0);
         }
         internalNodes.remove(node);
+        simpleRootedNode.detachAttributes();
         SimpleRootedNode parentNode = (SimpleRootedNode)simpleRootedNode.getParent();
         if(parentNode != null) {
             parentNode.removeChild(node);
@@ -366,6 +371,21 @@ final public class SimpleRootedTree implements RootedTree {
         return rootNode;
     }
 
+    /**
+     * The traversal orders of this tree as dense arrays. The snapshot is cached and shared between calls
+     * until the topology of the tree changes.
+     *
+     * @return traversal of the current tree
+     */
+    public RootedTreeTraversal getTraversal() {
+        RootedTreeTraversal t = traversal;
+        if (t == null || (rootNode != null && (t.getNodeCount() == 0 || t.getNode(0) != rootNode))) {
+            t = new RootedTreeTraversal(this);
+            traversal = t;
+        }
+        return t;
+    }
+
 
     /**
      * @return a set of all nodes that have degree 1.
@@ -721,6 +741,14 @@ final public class SimpleRootedTree implements RootedTree {
 
     private boolean conceptuallyUnrooted = false;
 
+    // cached traversal, dropped whenever the topology changes
+    private RootedTreeTraversal traversal = null;
+
+    // attributes of all nodes, by column. Each node of the tree has its own row, which is reused once the node is
+    // deleted. Not synchronized: setting an attribute of one node must not happen at the same time as reading those
+    // of another.
+    private final AttributeColumns nodeAttributes = new AttributeColumns();
+
     private class SimpleRootedNode extends BaseNode {
         public SimpleRootedNode(Taxon taxon) {
             this.children = Collections.unmodifiableList(new ArrayList<Node>());
@@ -732,13 +760,57 @@ final public class SimpleRootedTree implements RootedTree {
             this.taxon = null;
         }
 
+        // Node attributes are kept by the tree, in row attributeRow of nodeAttributes, until the node is deleted
+
+        public void setAttribute(String name, Object value) {
+            if( attributeRow < 0 ) {
+                super.setAttribute(name, value);
+            } else {
+                nodeAttributes.set(attributeRow, name, value);
+            }
+        }
+
+        public Object getAttribute(String name) {
+            return attributeRow < 0 ? super.getAttribute(name) : nodeAttributes.get(attributeRow, name);
+        }
+
+        public void removeAttribute(String name) {
+            if( attributeRow < 0 ) {
+                super.removeAttribute(name);
+            } else {
+                nodeAttributes.remove(attributeRow, name);
+            }
+        }
+
+        public Set<String> getAttributeNames() {
+            return attributeRow < 0 ? super.getAttributeNames() : nodeAttributes.getNames(attributeRow);
+        }
+
+        public Map<String, Object> getAttributeMap() {
+            return attributeRow < 0 ? super.getAttributeMap() : nodeAttributes.getMap(attributeRow);
+        }
+
+        /**
+         * Move the attributes of a node deleted from the tree to the node itself, and free its row for new nodes.
+         */
+        void detachAttributes() {
+            final int row = attributeRow;
+            attributeRow = -1;
+            for( Map.Entry<String, Object> e : nodeAttributes.getMap(row).entrySet() ) {
+                super.setAttribute(e.getKey(), e.getValue());
+            }
+            nodeAttributes.freeRow(row);
+        }
+
         public void removeChild(Node node) {
+            traversal = null;
             List<Node> c = new ArrayList<Node>(children);
             c.remove(node);
             children = Collections.unmodifiableList(c);
         }
 
         public void addChild(SimpleRootedNode node) {
+            traversal = null;
             List<Node> c = new ArrayList<Node>(children);
             c.add(node);
             node.setParent(this);
@@ -746,6 +818,7 @@ final public class SimpleRootedTree implements RootedTree {
         }
 
         public void replaceChildren(List<SimpleRootedNode> nodes) {
+            traversal = null;
             for( SimpleRootedNode n : nodes ) {
                 n.setParent(this);
             }
@@ -753,6 +826,7 @@ final public class SimpleRootedTree implements RootedTree {
         }
 
         void swapChildren(int i0, int i1) {
+            traversal = null;
             ArrayList<Node> nc = new ArrayList<Node>(children);
             //there was a user reported crash where i0 was > size of the array of children nodes
             if (i0 < 0 || i0 >= nc.size() || i1 < 0 || i1 >= nc.size()) {
@@ -769,6 +843,7 @@ final public class SimpleRootedTree implements RootedTree {
         }
 
         public void setParent(Node parent) {
+            traversal = null;
             this.parent = parent;
         }
 
@@ -859,6 +934,8 @@ final public class SimpleRootedTree implements RootedTree {
             return taxon;
         }
 
+        private int attributeRow = nodeAttributes.newRow();
+
         private List<Node> children;
         private Taxon taxon;
 
@@ -77,10 +77,12 @@ public class TreeBiPartitionInfo {
             wasComplemented = true;
         }
 
-        all.put(p, new BiPartiotionInfo(n));
-
         if( wasComplemented ) {
+            // store a copy, since p is restored below and a key must not change once in the map
+            all.put(new FixedBitSet(p), new BiPartiotionInfo(n));
             p.complement();
+        } else {
+            all.put(p, new BiPartiotionInfo(n));
         }
         return p;
     }
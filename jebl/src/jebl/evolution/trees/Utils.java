@@ -677,6 +677,12 @@ public final class Utils {
             return cache.get(node);
         }
 
+        // trees which cache their traversal already know all counts
+        final RootedTreeTraversal traversal = RootedTreeTraversal.getCached(tree);
+        if (traversal != null) {
+            return traversal.getExternalNodeCounts()[traversal.getIndex(node)];
+        }
+
         Stack<Node> countStack = new Stack<Node>();
         int count  = 0;
         countStack.push(node);
@@ -11,12 +11,16 @@ package jebl.evolution.treesimulation;
 import jebl.evolution.coalescent.*;
 import jebl.evolution.graphs.Node;
 import jebl.evolution.io.NexusExporter;
+import jebl.evolution.io.TreeExporter;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.*;
+import jebl.math.MersenneTwisterFast;
 import jebl.math.Random;
+import jebl.util.ParallelUtils;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * This class provides the framework for (backwards-through-time) tree simulation. Basically,
@@ -170,6 +174,137 @@ public class TreeSimulator {
 		return tree;
 	}
 
+	/**
+	 * Simulate many trees in parallel.
+	 *
+	 * The trees are split into fixed size blocks, each simulated with its own MersenneTwisterFast stream seeded
+	 * from seed, so the trees depend on the seed but not on the number of threads. Lineages are picked by swapping
+	 * with the last active lineage and the trees are built directly as CompactRootedTrees.
+	 *
+	 * @param intervalGenerator generator of the intervals. It must be safe to call from several threads, as a
+	 * CoalescentIntervalGenerator is while its demographic function is not changed.
+	 * @param count number of trees
+	 * @param seed seed of the random number streams
+	 * @param threadCount number of threads. Values less than 1 mean one per processor.
+	 * @return the trees
+	 */
+	public List<RootedTree> simulate(IntervalGenerator intervalGenerator, int count, long seed, int threadCount) {
+		final List<RootedTree> trees = new ArrayList<RootedTree>(count);
+		final MersenneTwisterFast seeds = new MersenneTwisterFast(seed);
+		for (int start = 0; start < count; start += TREES_PER_BATCH) {
+			trees.addAll(simulateBatch(intervalGenerator, Math.min(TREES_PER_BATCH, count - start), seeds, threadCount));
+		}
+		return trees;
+	}
+
+	/**
+	 * Simulate many trees in parallel as simulate(IntervalGenerator, int, long, int), passing them to an exporter
+	 * in batches so that only a batch of trees is held in memory at a time.
+	 *
+	 * @param exporter receives the trees in order, a batch at a time
+	 * @throws IOException from the exporter
+	 */
+	public void simulate(IntervalGenerator intervalGenerator, int count, long seed, int threadCount,
+	                     TreeExporter exporter) throws IOException {
+		final MersenneTwisterFast seeds = new MersenneTwisterFast(seed);
+		for (int start = 0; start < count; start += TREES_PER_BATCH) {
+			exporter.exportTrees(simulateBatch(intervalGenerator, Math.min(TREES_PER_BATCH, count - start), seeds,
+					threadCount));
+		}
+	}
+
+	private List<RootedTree> simulateBatch(final IntervalGenerator intervalGenerator, int count,
+	                                       MersenneTwisterFast seeds, int threadCount) {
+		final int tipCount = taxa.size();
+		if (tipCount < 2) {
+			throw new IllegalArgumentException("At least two taxa are required");
+		}
+		final Taxon[] tipTaxa = taxa.toArray(new Taxon[tipCount]);
+		final double[] tipHeights = new double[tipCount];
+		for (int i = 0; i < tipCount; i++) {
+			final Double height = (Double)tipTaxa[i].getAttribute(heightAttributeName);
+			tipHeights[i] = height != null ? height : 0.0;
+		}
+
+		final List<Callable<List<RootedTree>>> tasks = new ArrayList<Callable<List<RootedTree>>>();
+		for (int start = 0; start < count; start += TREES_PER_BLOCK) {
+			final int blockSize = Math.min(TREES_PER_BLOCK, count - start);
+			final long blockSeed = seeds.nextInt();
+			tasks.add(new Callable<List<RootedTree>>() {
+				public List<RootedTree> call() {
+					final MersenneTwisterFast random = new MersenneTwisterFast(blockSeed);
+					final int[] active = new int[tipCount];
+					final List<RootedTree> trees = new ArrayList<RootedTree>(blockSize);
+					for (int i = 0; i < blockSize; i++) {
+						trees.add(simulate(intervalGenerator, random, tipTaxa, tipHeights, active));
+					}
+					return trees;
+				}
+			});
+		}
+
+		final List<RootedTree> trees = new ArrayList<RootedTree>(count);
+		for (List<RootedTree> block : ParallelUtils.invokeAll(tasks, threadCount)) {
+			trees.addAll(block);
+		}
+		return trees;
+	}
+
+	/**
+	 * Simulate one tree as simulate(IntervalGenerator) does, with tips 0 to n-1 and internal nodes numbered
+	 * from n in the order they are created.
+	 *
+	 * @param active work space with room for all tips
+	 */
+	private static RootedTree simulate(IntervalGenerator intervalGenerator, MersenneTwisterFast random,
+	                                   Taxon[] tipTaxa, double[] tipHeights, int[] active) {
+		final int tipCount = tipTaxa.length;
+		final int[] children = new int[2 * (tipCount - 1)];
+		final double[] heights = new double[2 * tipCount - 1];
+		System.arraycopy(tipHeights, 0, heights, 0, tipCount);
+
+		int activeCount = 0;
+		int nextNode = tipCount;
+
+		double currentHeight = 0.0;
+		double nextHeight = 0.0;
+
+		int nextSampleNode = 0;
+		boolean hasMoreSamples = true;
+
+		do {
+			while (hasMoreSamples && (activeCount < 2 || currentHeight >= nextHeight)) {
+				currentHeight = heights[nextSampleNode];
+				active[activeCount++] = nextSampleNode;
+				nextSampleNode++;
+
+				if (nextSampleNode < tipCount) {
+					nextHeight = heights[nextSampleNode];
+				} else {
+					hasMoreSamples = false;
+				}
+			}
+
+			currentHeight = currentHeight + intervalGenerator.getInterval(random.nextDouble(), activeCount, currentHeight);
+
+			if (!hasMoreSamples || currentHeight < nextHeight) {
+				// remove two random lineages, filling each gap with the last active lineage
+				final int k = 2 * (nextNode - tipCount);
+				for (int j = 0; j < 2; j++) {
+					final int i = random.nextInt(activeCount);
+					children[k + j] = active[i];
+					active[i] = active[--activeCount];
+				}
+				heights[nextNode] = currentHeight;
+				active[activeCount++] = nextNode;
+				nextNode++;
+			}
+
+		} while (hasMoreSamples || activeCount > 1);
+
+		return new CompactRootedTree(tipTaxa, children, heights);
+	}
+
 	private Node coalesce(Node leftNode, Node rightNode, SimpleRootedTree tree, double height) {
 
 		Node node = null;
@@ -184,6 +319,11 @@ public class TreeSimulator {
 	private List<Taxon> taxa;
 	private String heightAttributeName;
 
+	// trees simulated with each random number stream
+	private static final int TREES_PER_BLOCK = 64;
+	// trees simulated (and held in memory) at a time by the bulk methods
+	private static final int TREES_PER_BATCH = 64 * TREES_PER_BLOCK;
+
 	/**
 	 * A main() to test the tree simulation classes. In this case the interval generator is a simple
 	 * anonymous class that simply returns the uniform random deviate that it is passed.
@@ -53,9 +53,10 @@ import java.io.Serializable;
  * <P>
  * - added shuffling method (Alexei Drummond)
  *
- * This is now package private - it should be accessed using the instance in Random
+ * Instances are not synchronized. For a single shared stream use the instance in Random; code
+ * drawing from several threads (such as TreeSimulator) should give each thread its own instance.
  */
-class MersenneTwisterFast implements Serializable {
+public class MersenneTwisterFast implements Serializable {
     // Period parameters
     private static final int N = 624;
     private static final int M = 397;
@@ -95,7 +96,7 @@ class MersenneTwisterFast implements Serializable {
     /**
      * Constructor using the time of day as default seed.
      */
-    MersenneTwisterFast() {
+    public MersenneTwisterFast() {
         this(System.currentTimeMillis()+seedAdditive_);
         seedAdditive_+=nextInt();
     }
@@ -106,7 +107,7 @@ class MersenneTwisterFast implements Serializable {
      *
      * @param seed generator starting number, often the time of day.
      */
-    MersenneTwisterFast(long seed)
+    public MersenneTwisterFast(long seed)
     {
         if (seed == 0)
         {
@@ -0,0 +1,445 @@
+package jebl.util;
+
+import java.util.*;
+
+/**
+ * Column oriented storage for the attributes of many objects (rows), typically all nodes of a tree.
+ *
+ * Instead of one map per object, each attribute name gets one column holding the values of all rows. Columns are
+ * typed: Double and Integer values are stored in primitive arrays and String values are interned, so that a
+ * dozen numeric annotations on every node of a large tree cost a few arrays instead of a map and boxed values per
+ * node. A column falls back to holding objects when it is given a value of any other type (or of mixed types).
+ *
+ * Otherwise each row behaves as an {@link AttributableHelper}: an attribute may be set to null, which is a value
+ * like any other (it is listed by {@link #getNames} until removed), and the names of a row are listed in the order
+ * they were first set on that row. Rows are either chosen by the owner (such as the index of a node in an array) or
+ * handed out by {@link #newRow()} and returned by {@link #freeRow(int)}, so the rows of objects which are gone are
+ * used again.
+ *
+ * Values are boxed again when read through {@link #get} or an {@link Attributable} view ({@link #getRow}); code
+ * which wants to avoid that can read the typed columns directly with {@link #getType}, {@link #getDouble} and
+ * {@link #getInt}.
+ *
+ * Not synchronized. Unlike objects with a map each, rows share their columns, so a change to any row must not
+ * happen at the same time as any other access to the same AttributeColumns, even to another row. Reading from
+ * several threads is safe.
+ */
+public final class AttributeColumns {
+
+    /**
+     * Storage type of a column.
+     */
+    public enum Type {
+        DOUBLE,
+        INTEGER,
+        STRING,
+        OBJECT
+    }
+
+    /**
+     * @return a row without attributes: the last one freed by {@link #freeRow(int)}, or else a new one.
+     */
+    public int newRow() {
+        return freeCount > 0 ? freeRows[--freeCount] : rowCount++;
+    }
+
+    /**
+     * Remove all attributes of row, and let {@link #newRow()} return it again.
+     *
+     * @param row row from newRow()
+     */
+    public void freeRow(int row) {
+        if( row < rowColumns.length ) {
+            for(int k = 0; k < rowSizes[row]; ++k) {
+                columnList.get(rowColumns[row][k]).clear(row);
+            }
+            rowColumns[row] = null;
+            rowSizes[row] = 0;
+        }
+        if( freeCount == freeRows.length ) {
+            final int[] f = new int[Math.max(16, 2 * freeCount)];
+            System.arraycopy(freeRows, 0, f, 0, freeCount);
+            freeRows = f;
+        }
+        freeRows[freeCount++] = row;
+    }
+
+    /**
+     * @param row   row
+     * @param name  attribute name
+     * @param value new value, possibly null
+     */
+    public void set(int row, String name, Object value) {
+        Column column = columns.get(name);
+        if( column == null ) {
+            column = new Column(columnList.size());
+            columns.put(name, column);
+            columnList.add(column);
+            columnNames.add(name);
+        }
+        if( !column.has(row) ) {
+            addToRow(row, column.id);
+        }
+        column.set(row, value, this);
+    }
+
+    /**
+     * @param row  row
+     * @param name attribute name
+     * @return value of attribute for row, or null if row does not have it (or has it with a null value).
+     */
+    public Object get(int row, String name) {
+        final Column column = columns.get(name);
+        if( column == null || !column.has(row) ) {
+            return null;
+        }
+        return column.get(row);
+    }
+
+    /**
+     * @param row  row
+     * @param name attribute name
+     * @return true if row has a value (possibly null) for the attribute
+     */
+    public boolean has(int row, String name) {
+        final Column column = columns.get(name);
+        return column != null && column.has(row);
+    }
+
+    /**
+     * @param row  row
+     * @param name attribute name
+     */
+    public void remove(int row, String name) {
+        final Column column = columns.get(name);
+        if( column != null && column.has(row) ) {
+            column.clear(row);
+            removeFromRow(row, column.id);
+        }
+    }
+
+    /**
+     * @return names of all columns, including ones which may currently hold no values.
+     */
+    public Set<String> getColumnNames() {
+        return Collections.unmodifiableSet(columns.keySet());
+    }
+
+    /**
+     * @param name attribute name
+     * @return storage type of column, or null if there is no such column or it has only been given null values
+     */
+    public Type getType(String name) {
+        final Column column = columns.get(name);
+        return column == null ? null : column.type;
+    }
+
+    /**
+     * Unboxed access to a DOUBLE column.
+     *
+     * @param row  row
+     * @param name attribute name
+     * @param missing value to return if row has no value, or a null value
+     * @return value
+     */
+    public double getDouble(int row, String name, double missing) {
+        final Column column = columns.get(name);
+        if( column == null || column.type != Type.DOUBLE ) {
+            throw new IllegalArgumentException("Not a double column: " + name);
+        }
+        return column.has(row) && !column.isNull(row) ? column.doubles[row] : missing;
+    }
+
+    /**
+     * Unboxed access to an INTEGER column.
+     *
+     * @param row  row
+     * @param name attribute name
+     * @param missing value to return if row has no value, or a null value
+     * @return value
+     */
+    public int getInt(int row, String name, int missing) {
+        final Column column = columns.get(name);
+        if( column == null || column.type != Type.INTEGER ) {
+            throw new IllegalArgumentException("Not an integer column: " + name);
+        }
+        return column.has(row) && !column.isNull(row) ? column.ints[row] : missing;
+    }
+
+    /**
+     * @param row row
+     * @return names of attributes row has values for, in the order they were set
+     */
+    public Set<String> getNames(int row) {
+        final int size = row < rowSizes.length ? rowSizes[row] : 0;
+        if( size == 0 ) {
+            return Collections.emptySet();
+        }
+        final Set<String> names = new LinkedHashSet<String>();
+        for(int k = 0; k < size; ++k) {
+            names.add(columnNames.get(rowColumns[row][k]));
+        }
+        return names;
+    }
+
+    /**
+     * @param row row
+     * @return a read only snapshot of the attributes of row, in the order they were set
+     */
+    public Map<String, Object> getMap(int row) {
+        final int size = row < rowSizes.length ? rowSizes[row] : 0;
+        if( size == 0 ) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for(int k = 0; k < size; ++k) {
+            final int id = rowColumns[row][k];
+            map.put(columnNames.get(id), columnList.get(id).get(row));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @param row row
+     * @return an Attributable view of row
+     */
+    public Attributable getRow(final int row) {
+        return new Attributable() {
+            public void setAttribute(String name, Object value) {
+                set(row, name, value);
+            }
+
+            public Object getAttribute(String name) {
+                return get(row, name);
+            }
+
+            public void removeAttribute(String name) {
+                remove(row, name);
+            }
+
+            public Set<String> getAttributeNames() {
+                return getNames(row);
+            }
+
+            public Map<String, Object> getAttributeMap() {
+                return getMap(row);
+            }
+        };
+    }
+
+    private void addToRow(int row, int id) {
+        if( row >= rowColumns.length ) {
+            final int n = Math.max(row + 1, Math.max(16, 2 * rowColumns.length));
+            final int[][] c = new int[n][];
+            System.arraycopy(rowColumns, 0, c, 0, rowColumns.length);
+            rowColumns = c;
+            final int[] s = new int[n];
+            System.arraycopy(rowSizes, 0, s, 0, rowSizes.length);
+            rowSizes = s;
+        }
+        int[] ids = rowColumns[row];
+        if( ids == null ) {
+            ids = rowColumns[row] = new int[4];
+        } else if( rowSizes[row] == ids.length ) {
+            ids = new int[2 * ids.length];
+            System.arraycopy(rowColumns[row], 0, ids, 0, rowSizes[row]);
+            rowColumns[row] = ids;
+        }
+        ids[rowSizes[row]++] = id;
+    }
+
+    private void removeFromRow(int row, int id) {
+        final int[] ids = rowColumns[row];
+        final int size = rowSizes[row];
+        for(int k = 0; k < size; ++k) {
+            if( ids[k] == id ) {
+                System.arraycopy(ids, k + 1, ids, k, size - k - 1);
+                rowSizes[row] = size - 1;
+                return;
+            }
+        }
+    }
+
+    private String intern(String s) {
+        final String existing = strings.get(s);
+        if( existing != null ) {
+            return existing;
+        }
+        strings.put(s, s);
+        return s;
+    }
+
+    private static Type typeOf(Object value) {
+        if( value instanceof Double ) return Type.DOUBLE;
+        if( value instanceof Integer ) return Type.INTEGER;
+        if( value instanceof String ) return Type.STRING;
+        return Type.OBJECT;
+    }
+
+    /**
+     * One attribute for all rows. Rows without a value have their presence bit clear; rows with a null value have
+     * their null bit set as well. The type is set by the first value which is not null.
+     */
+    private static final class Column {
+        Column(int id) {
+            this.id = id;
+        }
+
+        boolean has(int row) {
+            final int w = row >> 6;
+            return w < present.length && (present[w] & (1L << row)) != 0;
+        }
+
+        boolean isNull(int row) {
+            return (nulls[row >> 6] & (1L << row)) != 0;
+        }
+
+        void clear(int row) {
+            final int w = row >> 6;
+            if( w < present.length ) {
+                present[w] &= ~(1L << row);
+                nulls[w] &= ~(1L << row);
+                clearReference(row);
+            }
+        }
+
+        Object get(int row) {
+            if( isNull(row) ) {
+                return null;
+            }
+            switch( type ) {
+                case DOUBLE:  return doubles[row];
+                case INTEGER: return ints[row];
+                case STRING:  return strings[row];
+                default:      return objects[row];
+            }
+        }
+
+        void set(int row, Object value, AttributeColumns owner) {
+            ensureCapacity(row + 1);
+            present[row >> 6] |= 1L << row;
+            if( value == null ) {
+                nulls[row >> 6] |= 1L << row;
+                clearReference(row);
+                return;
+            }
+            nulls[row >> 6] &= ~(1L << row);
+
+            if( type == null ) {
+                type = typeOf(value);
+                allocate(capacity);
+            } else if( type != Type.OBJECT && type != typeOf(value) ) {
+                toObjects();
+            }
+            switch( type ) {
+                case DOUBLE:  doubles[row] = (Double) value; break;
+                case INTEGER: ints[row] = (Integer) value; break;
+                case STRING:  strings[row] = owner.intern((String) value); break;
+                default:      objects[row] = value; break;
+            }
+        }
+
+        private void clearReference(int row) {
+            if( strings != null && row < strings.length ) {
+                strings[row] = null;
+            }
+            if( objects != null && row < objects.length ) {
+                objects[row] = null;
+            }
+        }
+
+        /**
+         * Change column to hold objects, boxing existing values.
+         */
+        void toObjects() {
+            final Object[] o = new Object[capacity];
+            for(int row = 0; row < capacity; ++row) {
+                if( has(row) ) {
+                    o[row] = get(row);
+                }
+            }
+            doubles = null;
+            ints = null;
+            strings = null;
+            objects = o;
+            type = Type.OBJECT;
+        }
+
+        /**
+         * Replace the values array of the type by one of size newCapacity, keeping existing values.
+         */
+        private void allocate(int newCapacity) {
+            if( type == null ) {
+                return;
+            }
+            switch( type ) {
+                case DOUBLE: {
+                    final double[] a = new double[newCapacity];
+                    if( doubles != null ) System.arraycopy(doubles, 0, a, 0, capacity);
+                    doubles = a;
+                    break;
+                }
+                case INTEGER: {
+                    final int[] a = new int[newCapacity];
+                    if( ints != null ) System.arraycopy(ints, 0, a, 0, capacity);
+                    ints = a;
+                    break;
+                }
+                case STRING: {
+                    final String[] a = new String[newCapacity];
+                    if( strings != null ) System.arraycopy(strings, 0, a, 0, capacity);
+                    strings = a;
+                    break;
+                }
+                default: {
+                    final Object[] a = new Object[newCapacity];
+                    if( objects != null ) System.arraycopy(objects, 0, a, 0, capacity);
+                    objects = a;
+                    break;
+                }
+            }
+        }
+
+        private void ensureCapacity(int size) {
+            if( size <= capacity ) {
+                return;
+            }
+            final int newCapacity = Math.max(size, Math.max(16, 2 * capacity));
+            allocate(newCapacity);
+            final long[] p = new long[(newCapacity + 63) >> 6];
+            System.arraycopy(present, 0, p, 0, present.length);
+            present = p;
+            final long[] n = new long[p.length];
+            System.arraycopy(nulls, 0, n, 0, nulls.length);
+            nulls = n;
+            capacity = newCapacity;
+        }
+
+        final int id;
+        Type type = null;
+        int capacity = 0;
+        long[] present = new long[0];
+        long[] nulls = new long[0];
+
+        // only the array matching type is used
+        double[] doubles;
+        int[] ints;
+        String[] strings;
+        Object[] objects;
+    }
+
+    private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+    // columns and their names by column id, in order of creation
+    private final List<Column> columnList = new ArrayList<Column>();
+    private final List<String> columnNames = new ArrayList<String>();
+    private final Map<String, String> strings = new HashMap<String, String>();
+
+    // rowColumns[row] holds the ids of the columns row has values in, the first rowSizes[row] of them in the
+    // order they were set
+    private int[][] rowColumns = new int[0][];
+    private int[] rowSizes = new int[0];
+
+    private int rowCount = 0;
+    private int[] freeRows = new int[0];
+    private int freeCount = 0;
+}
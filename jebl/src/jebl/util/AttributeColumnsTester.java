@@ -0,0 +1,150 @@
+package jebl.util;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.SimpleRootedTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that the rows of AttributeColumns, and the nodes of SimpleRootedTree which use them, behave as
+ * AttributableHelper does for null values, and keep the order in which attributes were set.
+ */
+public class AttributeColumnsTester {
+
+    public static void main(String[] args) {
+        testNullValues();
+        testOrder();
+        testTypes();
+        testRowReuse();
+        testTreeNodes();
+
+        if( failures > 0 ) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void testNullValues() {
+        final AttributeColumns columns = new AttributeColumns();
+        final int row = columns.newRow();
+        columns.set(row, "a", null);
+        check(columns.has(row, "a"), "null value is kept");
+        check(columns.get(row, "a") == null, "null value is read as null");
+        check(new ArrayList<String>(columns.getNames(row)).equals(Arrays.asList("a")), "null value is listed");
+        check(columns.getMap(row).containsKey("a") && columns.getMap(row).get("a") == null, "null value is mapped");
+        check(columns.getType("a") == null, "column of nulls has no type");
+
+        columns.set(row, "a", 1.5);
+        check(columns.getType("a") == AttributeColumns.Type.DOUBLE, "null then double is a double column");
+        check(columns.getDouble(row, "a", -1) == 1.5, "double replaces null");
+
+        final int other = columns.newRow();
+        columns.set(other, "a", null);
+        check(columns.getDouble(other, "a", -1) == -1, "null in double column reads as missing");
+        check(columns.get(other, "a") == null && columns.has(other, "a"), "null in double column is kept");
+
+        columns.set(other, "a", "x");
+        check(columns.getType("a") == AttributeColumns.Type.OBJECT, "mixed column holds objects");
+        check(Double.valueOf(1.5).equals(columns.get(row, "a")) && "x".equals(columns.get(other, "a")),
+                "values survive change to objects");
+
+        columns.remove(other, "a");
+        check(!columns.has(other, "a") && columns.getNames(other).isEmpty(), "removed attribute is not listed");
+    }
+
+    private static void testOrder() {
+        final AttributeColumns columns = new AttributeColumns();
+        final int row1 = columns.newRow();
+        final int row2 = columns.newRow();
+        columns.set(row1, "b", 1);
+        columns.set(row1, "a", "s");
+        columns.set(row1, "c", null);
+        columns.set(row2, "c", 2.0);
+        columns.set(row2, "b", 3);
+        check(new ArrayList<String>(columns.getNames(row1)).equals(Arrays.asList("b", "a", "c")), "order of row 1");
+        check(new ArrayList<String>(columns.getNames(row2)).equals(Arrays.asList("c", "b")), "order of row 2");
+        check(new ArrayList<String>(columns.getMap(row2).keySet()).equals(Arrays.asList("c", "b")), "order of map");
+
+        // replacing a value keeps its place, removing and setting again moves it to the end
+        columns.set(row1, "b", 4);
+        check(new ArrayList<String>(columns.getNames(row1)).equals(Arrays.asList("b", "a", "c")), "order after replace");
+        columns.remove(row1, "b");
+        columns.set(row1, "b", 5);
+        check(new ArrayList<String>(columns.getNames(row1)).equals(Arrays.asList("a", "c", "b")), "order after remove");
+        check(columns.getInt(row1, "b", -1) == 5, "value after remove");
+    }
+
+    private static void testTypes() {
+        final AttributeColumns columns = new AttributeColumns();
+        for(int k = 0; k < 200; ++k) {
+            columns.set(columns.newRow(), "height", (double) k);
+        }
+        check(columns.getType("height") == AttributeColumns.Type.DOUBLE, "double column");
+        check(columns.getDouble(150, "height", -1) == 150.0, "double value");
+        final String s = new String("label");
+        columns.set(3, "name", "label");
+        columns.set(4, "name", s);
+        check(columns.get(3, "name") == columns.get(4, "name"), "strings are interned");
+    }
+
+    private static void testRowReuse() {
+        final AttributeColumns columns = new AttributeColumns();
+        final int row1 = columns.newRow();
+        final int row2 = columns.newRow();
+        columns.set(row1, "a", 1);
+        columns.set(row1, "b", null);
+        columns.freeRow(row1);
+        final int row3 = columns.newRow();
+        check(row3 == row1, "freed row is reused");
+        check(columns.getNames(row3).isEmpty() && !columns.has(row3, "b"), "reused row has no attributes");
+        check(columns.newRow() != row2, "rows in use are not reused");
+    }
+
+    private static void testTreeNodes() {
+        final SimpleRootedTree tree = new SimpleRootedTree();
+        final Node a = tree.createExternalNode(Taxon.getTaxon("A"));
+        final Node b = tree.createExternalNode(Taxon.getTaxon("B"));
+        final Node c = tree.createExternalNode(Taxon.getTaxon("C"));
+        final List<Node> ab = new ArrayList<Node>();
+        ab.add(a);
+        ab.add(b);
+        final Node parent = tree.createInternalNode(ab);
+        final List<Node> top = new ArrayList<Node>();
+        top.add(parent);
+        top.add(c);
+        tree.createInternalNode(top);
+
+        parent.setAttribute("posterior", 0.9);
+        parent.setAttribute("label", null);
+        a.setAttribute("label", "a");
+        a.setAttribute("posterior", null);
+        check(new ArrayList<String>(parent.getAttributeNames()).equals(Arrays.asList("posterior", "label")),
+                "node attribute order");
+        check(new ArrayList<String>(a.getAttributeNames()).equals(Arrays.asList("label", "posterior")),
+                "order of another node");
+        check(parent.getAttributeNames().contains("label") && parent.getAttribute("label") == null,
+                "null node attribute");
+
+        // a deleted node keeps its attributes, and its row goes to the next node created
+        tree.deleteInternalNode(parent);
+        check(parent.getAttributeMap().size() == 2 && Double.valueOf(0.9).equals(parent.getAttribute("posterior")),
+                "deleted node keeps its attributes");
+        final Node added = tree.addNode(a);
+        check(added.getAttributeNames().isEmpty(), "new node does not see the attributes of a deleted node");
+        added.setAttribute("posterior", 0.5);
+        check(Double.valueOf(0.9).equals(parent.getAttribute("posterior")), "deleted node is not changed by new node");
+    }
+
+    private static void check(boolean condition, String what) {
+        if( !condition ) {
+            System.out.println("FAILED: " + what);
+            ++failures;
+        }
+    }
+
+    private static int failures = 0;
+}
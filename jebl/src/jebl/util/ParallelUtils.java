@@ -0,0 +1,121 @@
+package jebl.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Helpers for running a batch of independent tasks on a fixed size thread pool.
+ * The tasks are always run to completion (or failure) before these methods return
+ * and the results are returned in task order, so callers that reduce the results in
+ * order get the same answer regardless of the number of threads used.
+ */
+public final class ParallelUtils {
+    private ParallelUtils() { }  // make class uninstantiable
+
+    /**
+     * @return the number of threads used when the caller does not specify one.
+     */
+    public static int getDefaultThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Run all tasks and collect their results.
+     *
+     * @param tasks       tasks to run
+     * @param threadCount number of threads to use. Values less than 1 mean {@link #getDefaultThreadCount()}.
+     *                    When only one thread is requested (or only one task given) the tasks are run on the
+     *                    calling thread.
+     * @return results in the same order as the tasks
+     * @throws RuntimeException wrapping the first exception thrown by a task (checked exceptions are wrapped,
+     *                          unchecked exceptions and errors are rethrown as is).
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int threadCount) {
+        if( threadCount < 1 ) {
+            threadCount = getDefaultThreadCount();
+        }
+        threadCount = Math.min(threadCount, tasks.size());
+
+        final List<T> results = new ArrayList<T>(tasks.size());
+
+        if( threadCount <= 1 ) {
+            for( Callable<T> task : tasks ) {
+                try {
+                    results.add(task.call());
+                } catch( Exception e ) {
+                    throw asRuntimeException(e);
+                }
+            }
+            return results;
+        }
+
+        final ExecutorService executor = newThreadPool(threadCount);
+        try {
+            return invokeAll(tasks, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run all tasks on an existing pool and collect their results, as {@link #invokeAll(List, int)} does. For
+     * callers which run many small batches, and so should not start new threads for each.
+     *
+     * @param tasks    tasks to run
+     * @param executor pool to run them on
+     * @return results in the same order as the tasks
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, ExecutorService executor) {
+        final List<T> results = new ArrayList<T>(tasks.size());
+        final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        try {
+            for( Callable<T> task : tasks ) {
+                futures.add(executor.submit(task));
+            }
+            for( Future<T> future : futures ) {
+                try {
+                    results.add(future.get());
+                } catch( ExecutionException e ) {
+                    throw asRuntimeException(e.getCause());
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            // do not leave tasks running after a failure
+            for( Future<T> future : futures ) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param threadCount number of threads. Values less than 1 mean {@link #getDefaultThreadCount()}.
+     * @return a fixed size pool of daemon threads, which should be shut down when no longer needed.
+     */
+    public static ExecutorService newThreadPool(int threadCount) {
+        if( threadCount < 1 ) {
+            threadCount = getDefaultThreadCount();
+        }
+        return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "jebl-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static RuntimeException asRuntimeException(Throwable t) {
+        if( t instanceof RuntimeException ) {
+            return (RuntimeException) t;
+        }
+        if( t instanceof Error ) {
+            throw (Error) t;
+        }
+        return new RuntimeException(t);
+    }
+}